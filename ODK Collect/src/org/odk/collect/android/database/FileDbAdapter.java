@@ -121,6 +121,8 @@ public class FileDbAdapter {
 
 
     public void close() {
+        // hashes computed while the adapter was open are written out in one go
+        FileUtils.saveHashCache();
         mDbHelper.close();
     }
 
@@ -467,6 +469,7 @@ public class FileDbAdapter {
                     }
                 }
             }
+            FileUtils.saveHashCache();
 
             // clean up adapter
             if (c != null) {
@@ -502,6 +505,7 @@ public class FileDbAdapter {
                     c.close();
                 }
             }
+            FileUtils.saveHashCache();
             // clean up adapter
             if (c != null) {
                 c.close();
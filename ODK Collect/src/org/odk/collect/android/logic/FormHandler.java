@@ -28,17 +28,16 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.instance.DataModelTree;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
-import org.javarosa.core.services.transport.ByteArrayPayload;
 import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.javarosa.xform.parse.XFormParser;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.utilities.FileUtils;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Vector;
 
 
@@ -57,6 +56,10 @@ public class FormHandler {
     private FormIndex mCurrentIndex;
     private int mQuestionCount;
 
+    // cached result of getQuestionCount(), valid while the form's structure version is unchanged
+    private int mQuestionTotal = -1;
+    private int mQuestionTotalVersion;
+
 
     public FormHandler(FormDef formDef) {
         mForm = formDef;
@@ -439,10 +442,6 @@ public class FormHandler {
     }
 
 
-    // TODO: These two methods are really hacky and completely inefficient. We
-    // should figure out a way to keep
-    // track of the number of questions we have without having to loop through
-    // the entire index each time.
     public FormIndex nextIndexForCount(FormIndex i) {
         do {
             i = mForm.incrementIndex(i);
@@ -451,7 +450,21 @@ public class FormHandler {
     }
 
 
+    /**
+     * Returns the number of relevant questions in the form, plus one for the end screen. The
+     * count is only recomputed after the form reports a change in relevance or repeats (see
+     * {@link FormDef#getStructureVersion()}), not on every navigation step.
+     */
     public int getQuestionCount() {
+        if (mQuestionTotal < 0 || mQuestionTotalVersion != mForm.getStructureVersion()) {
+            mQuestionTotalVersion = mForm.getStructureVersion();
+            mQuestionTotal = countQuestions();
+        }
+        return mQuestionTotal;
+    }
+
+
+    private int countQuestions() {
         int count = 0;
         FormIndex i = FormIndex.createBeginningOfFormIndex();
 
@@ -517,6 +530,7 @@ public class FormHandler {
             // populated model to current form
             // mForm.setDataModel(new DataModelTree(templateRoot));
             mForm.getDataModel().setRoot(templateRoot);
+            mForm.structureChanged();
             
             // fix any language issues
             // TODO: http://bitbucket.org/javarosa/main/issue/5/itext-n-appearing-in-restored-instances
@@ -531,68 +545,47 @@ public class FormHandler {
 
 
     /**
-     * Loop through the data model and writes the XML file into the answer
-     * folder.
-     */
-    private boolean exportXmlFile(ByteArrayPayload payload, String path) {
-
-        // create data stream
-        InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
-
-        // read from data stream
-        byte[] data = new byte[len];
-        try {
-            int read = is.read(data, 0, len);
-            if (read > 0) {
-                // write xml file
-                try {
-                    // String filename = path + "/" +
-                    // path.substring(path.lastIndexOf('/') + 1) + ".xml";
-                    BufferedWriter bw = new BufferedWriter(new FileWriter(path));
-                    bw.write(new String(data, "UTF-8"));
-                    bw.flush();
-                    bw.close();
-                    return true;
-
-                } catch (IOException e) {
-                    Log.e(t, "Error writing XML file");
-                    e.printStackTrace();
-                    return false;
-                }
-            }
-        } catch (IOException e) {
-            Log.e(t, "Error reading from payload data stream");
-            e.printStackTrace();
-            return false;
-        }
-
-        return false;
-
-    }
-
-
-
-    /**
-     * Serialize data model and extract payload. Exports both binaries and xml.
+     * Serialize the data model into the instance file as UTF-8 xml.
      */
     public boolean exportData(String instancePath, Context context, boolean markCompleted) {
 
-        ByteArrayPayload payload;
+        // stream the xml to a temp file next to the instance, and only replace
+        // the instance once it has all been written; the model is never held
+        // in memory as a document or a byte array
+        File temp = new File(instancePath + ".tmp");
+        boolean written = false;
+        OutputStream os = null;
         try {
-
-            // assume no binary data inside the model.
-            DataModelTree datamodel = mForm.getDataModel();
+            os = new BufferedOutputStream(new FileOutputStream(temp));
             XFormSerializingVisitor serializer = new XFormSerializingVisitor();
-            payload = (ByteArrayPayload) serializer.createSerializedPayload(datamodel);
-
-            // write out xml
-            exportXmlFile(payload, instancePath);
+            if (!serializer.serializeDataModel(mForm.getDataModel(), os)) {
+                Log.e(t, "Error serializing data model");
+                return false;
+            }
+            os.close();
+            os = null;
 
+            if (!temp.renameTo(new File(instancePath))) {
+                Log.e(t, "Failed to rename " + temp + " to " + instancePath);
+                return false;
+            }
+            written = true;
         } catch (IOException e) {
-            Log.e(t, "Error creating serialized payload");
+            Log.e(t, "Error writing XML file");
             e.printStackTrace();
             return false;
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    Log.e(t, "Error closing XML file");
+                }
+            }
+            // also reached when serialization throws; the previous save is left untouched
+            if (!written) {
+                temp.delete();
+            }
         }
 
         FileDbAdapter fda = new FileDbAdapter(context);
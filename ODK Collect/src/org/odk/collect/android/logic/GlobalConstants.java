@@ -85,6 +85,12 @@ public class GlobalConstants {
      */
     public static final String CACHE_PATH = "/sdcard/odk/.cache/";
 
+    /**
+     * File hashes, keyed by path, size and modification time. Kept outside of CACHE_PATH, which
+     * only holds cached forms.
+     */
+    public static final String HASH_CACHE_PATH = "/sdcard/odk/.hashes";
+
 
     /**
      * Identifies the location of the form used to launch form entry
@@ -17,25 +17,33 @@
 package org.odk.collect.android.tasks;
 
 import android.os.AsyncTask;
+import android.util.Log;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.core.util.externalizable.ByteBufferDataInputStream;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.xform.util.XFormUtils;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FormHandler;
 import org.odk.collect.android.logic.GlobalConstants;
 import org.odk.collect.android.utilities.FileUtils;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Background task for loading a form.
@@ -44,6 +52,19 @@ import java.io.IOException;
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
 public class FormLoaderTask extends AsyncTask<String, String, FormHandler> {
+    private final static String t = "FormLoaderTask";
+
+    /**
+     * Cached FormDefs start with a header: this magic number, the format version, the hashes
+     * of the prototype classes the body was written against, and the length of the body. A
+     * file whose header doesn't match the running code is thrown away and the form is
+     * re-parsed from xml. Bump the version whenever the serialized form of FormDef changes.
+     */
+    private final static int FORMDEF_MAGIC = 0x4f444b46; // "ODKF"
+    private final static int FORMDEF_VERSION = 4;
+
+    private static byte[] sPrototypeHashes;
+
     FormLoaderListener mStateListener;
 
 
@@ -67,10 +88,13 @@ public class FormLoaderTask extends AsyncTask<String, String, FormHandler> {
             // if we have binary, deserialize binary
             fd = deserializeFormDef(formBin);
             if (fd == null) {
-                return null;
+                // stale or damaged cache entry; drop it and rebuild from the xml
+                Log.i(t, "Discarding cached form " + formBin);
+                formBin.delete();
             }
-        } else {
-            // no binary, read from xml
+        }
+        if (fd == null) {
+            // no usable binary, read from xml
             try {
                 fis = new FileInputStream(formXml);
                 fd = XFormUtils.getFormFromInputStream(fis);
@@ -84,6 +108,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormHandler> {
                 e.printStackTrace();
             }
         }
+        FileUtils.saveHashCache();
 
         // create formhandler from formdef
         fh = new FormHandler(fd);
@@ -109,14 +134,13 @@ public class FormLoaderTask extends AsyncTask<String, String, FormHandler> {
 
 
     /**
-     * Read serialized {@link FormDef} from file and recreate as object.
+     * Read serialized {@link FormDef} from file and recreate as object. The file is memory
+     * mapped and deserialized straight out of the mapping.
      * 
      * @param formDef serialized FormDef file
-     * @return {@link FormDef} object
+     * @return {@link FormDef} object, or null if the file is out of date or can't be read
      */
     public FormDef deserializeFormDef(File formDef) {
-    	System.out.println("***********deserializeFormDef");
-
         // TODO: any way to remove reliance on jrsp?
 
         // need a list of classes that formdef uses
@@ -124,27 +148,110 @@ public class FormLoaderTask extends AsyncTask<String, String, FormHandler> {
         FileInputStream fis = null;
         FormDef fd = null;
         try {
-            // create new form def
-            fd = new FormDef();
             fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
+            FileChannel fc = fis.getChannel();
+            ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (!readHeader(buffer)) {
+                return null;
+            }
 
             // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
+            fd = new FormDef();
+            fd.readExternal(new ByteBufferDataInputStream(buffer), ExtUtil.defaultPrototypes());
+            if (buffer.hasRemaining()) {
+                Log.w(t, "Cached form " + formDef + " has " + buffer.remaining() + " unread bytes");
+                fd = null;
+            }
 
         } catch (FileNotFoundException e) {
             e.printStackTrace();
+            fd = null;
         } catch (IOException e) {
             e.printStackTrace();
+            fd = null;
         } catch (DeserializationException e) {
             e.printStackTrace();
+            fd = null;
+        } catch (RuntimeException e) {
+            // a body that doesn't match the classes it is read into can fail in any number of ways
+            e.printStackTrace();
+            fd = null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
 
         return fd;
     }
 
 
+    /**
+     * Check the header of a cached FormDef, leaving the buffer positioned at the start of the
+     * body.
+     * 
+     * @return true if the body can be read by this version of the code
+     */
+    private boolean readHeader(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != FORMDEF_MAGIC) {
+                Log.w(t, "Cached form is not a FormDef");
+                return false;
+            }
+            if (buffer.getInt() != FORMDEF_VERSION) {
+                Log.i(t, "Cached form was written in an older format");
+                return false;
+            }
+
+            byte[] expected = getPrototypeHashes();
+            if (buffer.getInt() * PrototypeFactory.CLASS_HASH_SIZE != expected.length) {
+                Log.i(t, "Cached form was written against different classes");
+                return false;
+            }
+            byte[] hashes = new byte[expected.length];
+            buffer.get(hashes);
+            if (!Arrays.equals(hashes, expected)) {
+                Log.i(t, "Cached form was written against different classes");
+                return false;
+            }
+
+            if (buffer.getLong() != buffer.remaining()) {
+                Log.w(t, "Cached form is truncated");
+                return false;
+            }
+            return true;
+
+        } catch (BufferUnderflowException e) {
+            Log.w(t, "Cached form is truncated");
+            return false;
+        }
+    }
+
+
+    /**
+     * @return the concatenated hashes of {@link GlobalConstants#SERIALIABLE_CLASSES}
+     */
+    private static synchronized byte[] getPrototypeHashes() {
+        if (sPrototypeHashes == null) {
+            ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+            for (String className : GlobalConstants.SERIALIABLE_CLASSES) {
+                try {
+                    byte[] hash = PrototypeFactory.getClassHash(Class.forName(className));
+                    hashes.write(hash, 0, hash.length);
+                } catch (ClassNotFoundException e) {
+                    throw new RuntimeException(className + ": not found");
+                }
+            }
+            sPrototypeHashes = hashes.toByteArray();
+        }
+        return sPrototypeHashes;
+    }
+
+
     /**
      * Write the FormDef to the file system as a binary blog.
      * 
@@ -160,17 +267,35 @@ public class FormLoaderTask extends AsyncTask<String, String, FormHandler> {
 
             // formdef does not exist, create one.
             if (!formDef.exists()) {
-                FileOutputStream fos;
+                // written to a temp file first, so a half-written cache entry is never picked up
+                File temp = new File(formDef.getAbsolutePath() + ".tmp");
                 try {
-                    fos = new FileOutputStream(formDef);
-                    DataOutputStream dos = new DataOutputStream(fos);
-                    fd.writeExternal(dos);
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    DataOutputStream bos = new DataOutputStream(body);
+                    fd.writeExternal(bos);
+                    bos.flush();
+
+                    byte[] prototypeHashes = getPrototypeHashes();
+                    DataOutputStream dos =
+                            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                    dos.writeInt(FORMDEF_MAGIC);
+                    dos.writeInt(FORMDEF_VERSION);
+                    dos.writeInt(prototypeHashes.length / PrototypeFactory.CLASS_HASH_SIZE);
+                    dos.write(prototypeHashes);
+                    dos.writeLong(body.size());
+                    body.writeTo(dos);
                     dos.flush();
                     dos.close();
+
+                    if (!temp.renameTo(formDef)) {
+                        Log.e(t, "Failed to rename " + temp + " to " + formDef);
+                        temp.delete();
+                    }
                 } catch (FileNotFoundException e) {
                     e.printStackTrace();
                 } catch (IOException e) {
                     e.printStackTrace();
+                    temp.delete();
                 }
             }
         }
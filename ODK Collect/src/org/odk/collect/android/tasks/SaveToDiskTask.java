@@ -21,6 +21,7 @@ import android.os.AsyncTask;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.instance.TreeReference;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.logic.FormHandler;
@@ -89,19 +90,19 @@ public class SaveToDiskTask extends AsyncTask<Void, String, Integer> {
 
     // make sure this validates for all on done
     private int validateAnswers(boolean markCompleted) {
-        mFormHandler.setFormIndex(FormIndex.createBeginningOfFormIndex());
-        mFormHandler.nextQuestionPrompt();
-        while (!mFormHandler.isEnd()) {
-            int saveStatus =
-                    mFormHandler.saveAnswer(mFormHandler.currentPrompt(), mFormHandler
-                            .currentPrompt().getAnswerValue(), true);
-            if (saveStatus == GlobalConstants.ANSWER_CONSTRAINT_VIOLATED
-                    || (markCompleted && saveStatus != GlobalConstants.ANSWER_OK)) {
-                return saveStatus;
-            }
-            mFormHandler.nextQuestionPrompt();
+        // checks the stored answers in place; re-saving each one would re-run every calculation
+        FormDef form = mFormHandler.getForm();
+        FormIndex violation = form.getFirstViolation(markCompleted);
+        if (violation == null) {
+            return VALIDATED;
         }
 
-        return VALIDATED;
+        mFormHandler.setFormIndex(violation);
+        TreeReference ref = form.getChildInstanceRef(violation);
+        if (!form.evaluateConstraint(ref, form.getDataModel().resolveReference(ref).getValue())) {
+            return GlobalConstants.ANSWER_CONSTRAINT_VIOLATED;
+        } else {
+            return GlobalConstants.ANSWER_REQUIRED_BUT_EMPTY;
+        }
     }
 }
@@ -19,15 +19,24 @@ package org.odk.collect.android.utilities;
 import android.os.Environment;
 import android.util.Log;
 
+import org.odk.collect.android.logic.GlobalConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Static methods used for common file operations.
@@ -38,6 +47,25 @@ import java.util.ArrayList;
 public class FileUtils {
     private final static String t = "FileUtils";
 
+    /**
+     * Files modified less than this long ago (in ms) don't get their hash cached, as a
+     * second change within the file system's timestamp resolution wouldn't be noticed.
+     */
+    private final static long MODIFIED_RESOLUTION = 2000;
+
+    /**
+     * md5 hashes by absolute path, valid as long as the file's size and modification time
+     * still match. Persisted to {@link GlobalConstants#HASH_CACHE_PATH}.
+     */
+    private static HashMap<String, CachedHash> sHashCache;
+    private static boolean sHashCacheDirty;
+
+    private static class CachedHash {
+        long size;
+        long modified;
+        String hash;
+    }
+
 
     public static ArrayList<String> getFoldersAsArrayList(String path) {
         ArrayList<String> mFolderList = new ArrayList<String>();
@@ -233,11 +261,50 @@ public class FileUtils {
     }
 
 
+    /**
+     * Get the md5 hash of a file. The file is only read if its size or modification time
+     * changed since it was last hashed. New hashes are only kept in memory until
+     * {@link #saveHashCache()} is called.
+     */
     public static String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+
+        synchronized (FileUtils.class) {
+            CachedHash cached = getHashCache().get(path);
+            if (cached != null && cached.size == size && cached.modified == modified) {
+                return cached.hash;
+            }
+        }
+
+        String md5 = computeMd5Hash(file);
+        if (md5 != null && System.currentTimeMillis() - modified > MODIFIED_RESOLUTION) {
+            CachedHash cached = new CachedHash();
+            cached.size = size;
+            cached.modified = modified;
+            cached.hash = md5;
+            synchronized (FileUtils.class) {
+                getHashCache().put(path, cached);
+                sHashCacheDirty = true;
+            }
+        }
+        return md5;
+    }
+
+
+    private static String computeMd5Hash(File file) {
+        InputStream is = null;
         try {
             MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] messageDigest = md.digest(getFileAsBytes(file));
-            BigInteger number = new BigInteger(1, messageDigest);
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+
+            BigInteger number = new BigInteger(1, md.digest());
             String md5 = number.toString(16);
             while (md5.length() < 32)
                 md5 = "0" + md5;
@@ -247,6 +314,98 @@ public class FileUtils {
             Log.e("MD5", e.getMessage());
             return null;
 
+        } catch (IOException e) {
+            Log.e(t, "Cannot read " + file.getName());
+            e.printStackTrace();
+            return null;
+
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(t, "Cannot close input stream for " + file.getName());
+                }
+            }
+        }
+    }
+
+
+    private static HashMap<String, CachedHash> getHashCache() {
+        if (sHashCache == null) {
+            sHashCache = new HashMap<String, CachedHash>();
+
+            File cacheFile = new File(GlobalConstants.HASH_CACHE_PATH);
+            if (!cacheFile.exists()) {
+                return sHashCache;
+            }
+
+            DataInputStream dis = null;
+            try {
+                dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = dis.readUTF();
+                    CachedHash cached = new CachedHash();
+                    cached.size = dis.readLong();
+                    cached.modified = dis.readLong();
+                    cached.hash = dis.readUTF();
+
+                    // forget files that have since been deleted
+                    if (new File(path).exists()) {
+                        sHashCache.put(path, cached);
+                    }
+                }
+            } catch (IOException e) {
+                // start over with whatever was read
+                Log.e(t, "Cannot read hash cache: " + e);
+            } finally {
+                if (dis != null) {
+                    try {
+                        dis.close();
+                    } catch (IOException e) {
+                        Log.e(t, "Cannot close hash cache");
+                    }
+                }
+            }
+        }
+        return sHashCache;
+    }
+
+
+    /**
+     * Write the hash cache to {@link GlobalConstants#HASH_CACHE_PATH} if any hashes were
+     * added since it was last written. Call once after a batch of {@link #getMd5Hash(File)}.
+     */
+    public static synchronized void saveHashCache() {
+        if (!sHashCacheDirty || !storageReady()) {
+            return;
+        }
+
+        File cacheFile = new File(GlobalConstants.HASH_CACHE_PATH);
+        File temp = new File(GlobalConstants.HASH_CACHE_PATH + ".tmp");
+        try {
+            DataOutputStream dos =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            dos.writeInt(sHashCache.size());
+            for (Map.Entry<String, CachedHash> entry : sHashCache.entrySet()) {
+                CachedHash cached = entry.getValue();
+                dos.writeUTF(entry.getKey());
+                dos.writeLong(cached.size);
+                dos.writeLong(cached.modified);
+                dos.writeUTF(cached.hash);
+            }
+            dos.close();
+
+            if (temp.renameTo(cacheFile)) {
+                sHashCacheDirty = false;
+            } else {
+                Log.e(t, "Failed to rename " + temp + " to " + cacheFile);
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.e(t, "Cannot write hash cache: " + e);
+            temp.delete();
         }
     }
 
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.benchmark;
+
+/**
+ * A single timed operation. setUp() runs before every call to run() but isn't
+ * timed, so an operation that consumes its input (e.g. initializing a form) can
+ * get a fresh one each time.
+ */
+public abstract class Benchmark {
+	private String name;
+
+	public Benchmark (String name) {
+		this.name = name;
+	}
+
+	public String getName () {
+		return name;
+	}
+
+	public void setUp () throws Exception {
+
+	}
+
+	public abstract void run () throws Exception;
+
+	/**
+	 * Run the operation [warmup] times untimed, then [rounds] times timed, and print
+	 * the mean time per run
+	 *
+	 * @return mean time per run, in ms
+	 */
+	public double measure (int warmup, int rounds) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			setUp();
+			run();
+		}
+
+		long elapsed = 0;
+		for (int i = 0; i < rounds; i++) {
+			setUp();
+			long start = System.nanoTime();
+			run();
+			elapsed += System.nanoTime() - start;
+		}
+
+		double ms = elapsed / 1000000.0 / rounds;
+		System.out.println(pad(name, 44) + format(ms) + " ms/op");
+		return ms;
+	}
+
+	private static String pad (String s, int width) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < width) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	private static String format (double ms) {
+		return String.valueOf(Math.round(ms * 1000) / 1000.0);
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.benchmark;
+
+import java.io.StringReader;
+import java.util.Vector;
+
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.SelectOneData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.model.instance.DataModelTree;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.instance.utils.CompactModelWrapper;
+import org.javarosa.core.model.instance.utils.DataModelTemplateManager;
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.model.xform.XFormSerializingVisitor;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xform.parse.XFormParser;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+
+/**
+ * Times the hot paths of javarosa-core on generated forms (see FormGenerator):
+ * parsing, initialization, triggerable cascades, validation, xpath parsing,
+ * reference expansion, predicate lookups, repeat creation, binary
+ * serialization, restoring a saved instance and xml serialization of the
+ * instance.
+ *
+ * usage: CoreBenchmarks [rounds]
+ */
+public class CoreBenchmarks {
+	private static final String[] XPATHS = {
+		"/data/q0",
+		"/data/r1[position() = 2]/q3 != 0",
+		"if(/data/q1 > 5 and /data/q2 < 10, 'in', 'out')",
+		"count(/data/r1) * 2 + sum(/data/r1/q0) div 3",
+		"selected(/data/q3, '1') or string-length(../q4) > 0",
+		"concat('a', /data/q0, 'b') = 'a1b' and not(boolean(/data/q9))",
+		"regex(/data/q5, '^[0-9]+$') and . >= 0",
+		"-(/data/q6 mod 4) | /data/r1/r2/q7"
+	};
+
+	public static void main (String[] args) throws Exception {
+		int rounds = (args.length > 0 ? Integer.parseInt(args[0]) : 20);
+
+		PrototypeManager.registerPrototypes(SerializationBenchmark.PROTOTYPES);
+		new XFormsModule().registerModule();
+
+		parse("small", FormGenerator.SMALL).measure(rounds, rounds);
+		parse("medium", FormGenerator.MEDIUM).measure(rounds, rounds);
+		parse("large", FormGenerator.LARGE).measure(rounds, rounds);
+
+		new Benchmark("FormDef.initialize (medium)") {
+			FormDef f;
+
+			public void setUp () {
+				f = XFormParser.getFormDef(new StringReader(FormGenerator.MEDIUM));
+			}
+
+			public void run () {
+				f.initialize(true);
+			}
+		}.measure(rounds, rounds);
+
+		final FormDef form = filledForm(FormGenerator.MEDIUM);
+		final DataModelTree model = form.getDataModel();
+
+		new Benchmark("triggerable cascade (medium)") {
+			TreeReference first = ref("/data/q0");
+			int value;
+
+			public void setUp () {
+				value = (value == 0 ? 1 : 0);
+			}
+
+			//flips the relevance of every question on the top level
+			public void run () {
+				form.setValue(new IntegerData(value), first);
+			}
+		}.measure(rounds, rounds);
+
+		new Benchmark("FormDef.validate (medium)") {
+			public void run () {
+				form.validate(true, false);
+			}
+		}.measure(rounds, rounds);
+
+		new Benchmark("XPathParseTool.parseXPath") {
+			public void run () throws Exception {
+				for (int i = 0; i < XPATHS.length; i++) {
+					XPathParseTool.parseXPath(XPATHS[i]);
+				}
+			}
+		}.measure(rounds, rounds);
+
+		//30 x 30 instances of the innermost repeat
+		final DataModelTree large = filledForm(FormGenerator.generateForm(5, 2, 30)).getDataModel();
+		new Benchmark("expandReference (900 repeats)") {
+			TreeReference deepest = ref(FormGenerator.repeatPath(2) + "/q0");
+
+			public void run () {
+				large.expandReference(deepest);
+			}
+		}.measure(rounds, rounds);
+
+		//q0 is numbered 1..900 across the instances; the first lookup goes through the key index
+		final EvaluationContext root = new EvaluationContext(new EvaluationContext(), TreeReference.rootRef());
+		lookup("predicate lookup by key (900 repeats)", large, "count(" + FormGenerator.repeatPath(2) + "[q0 = 450])", root).measure(rounds, rounds);
+		lookup("predicate scan (900 repeats)", large, "count(" + FormGenerator.repeatPath(2) + "[./q0 = 450])", root).measure(rounds, rounds);
+
+		new Benchmark("ExtUtil FormDef round-trip (medium)") {
+			public void run () throws Exception {
+				ExtUtil.deserialize(ExtUtil.serialize(form), FormDef.class);
+			}
+		}.measure(rounds, rounds);
+
+		new Benchmark("ExtUtil DataModelTree round-trip (medium)") {
+			public void run () throws Exception {
+				ExtUtil.deserialize(ExtUtil.serialize(model), DataModelTree.class);
+			}
+		}.measure(rounds, rounds);
+
+		final DataModelTree template = XFormParser.getFormDef(new StringReader(FormGenerator.MEDIUM)).getDataModel();
+		template.setFormId(model.getFormId());
+		new Benchmark("CompactModelWrapper round-trip (medium)") {
+			DataModelTemplateManager templates = new DataModelTemplateManager() {
+				public DataModelTree getTemplateModel (int formID) {
+					return template;
+				}
+			};
+
+			public void run () throws Exception {
+				CompactModelWrapper wrapper = new CompactModelWrapper(templates);
+				wrapper.setData(model);
+				ExtUtil.deserialize(ExtUtil.serialize(wrapper), new CompactModelWrapper(templates));
+			}
+		}.measure(rounds, rounds);
+
+		final DataModelTree repeats = filledForm(FormGenerator.LARGE).getDataModel();
+		new Benchmark("DataModelTree.copyNode (repeat, large)") {
+			TreeElement template = repeats.getTemplate(ref("/data/r1"));
+			TreeReference dest = ref("/data/r1");
+
+			//drop the instance added by the last run
+			public void setUp () {
+				repeats.getRoot().removeChild("r1", 4);
+			}
+
+			public void run () {
+				repeats.copyNode(template, dest);
+			}
+		}.measure(rounds, rounds);
+
+		final byte[] saved = new XFormSerializingVisitor().serializeDataModel(model);
+		new Benchmark("restore saved instance (medium)") {
+			TreeElement savedRoot;
+
+			public void setUp () {
+				savedRoot = XFormParser.restoreDataModel(saved, null).getRoot();
+			}
+
+			//as when a saved form is opened for editing
+			public void run () {
+				TreeElement root = template.getRoot().deepCopy(true);
+				TreeReference ref = TreeReference.rootRef();
+				ref.add(root.getName(), TreeReference.INDEX_UNBOUND);
+				DataModelTree.populateNode(root, savedRoot, ref, form);
+			}
+		}.measure(rounds, rounds);
+
+		new Benchmark("XFormSerializingVisitor (medium)") {
+			public void run () throws Exception {
+				new XFormSerializingVisitor().serializeDataModel(model);
+			}
+		}.measure(rounds, rounds);
+	}
+
+	private static Benchmark parse (String size, final String form) {
+		return new Benchmark("XFormParser.getFormDef (" + size + ")") {
+			public void run () {
+				XFormParser.getFormDef(new StringReader(form));
+			}
+		};
+	}
+
+	private static Benchmark lookup (String name, final DataModelTree model, String xpath, final EvaluationContext ec) throws Exception {
+		final XPathExpression expr = XPathParseTool.parseXPath(xpath);
+		return new Benchmark(name) {
+			public void run () {
+				expr.eval(model, ec);
+			}
+		};
+	}
+
+	private static TreeReference ref (String xpath) {
+		return (TreeReference)new XPathReference(xpath).getReference();
+	}
+
+	/**
+	 * @return an initialized form with every question (in every repeat) answered
+	 */
+	private static FormDef filledForm (String xml) {
+		FormDef f = XFormParser.getFormDef(new StringReader(xml));
+		Vector questions = new Vector();
+		collectQuestions(f, questions);
+
+		for (int i = 0; i < questions.size(); i++) {
+			QuestionDef q = (QuestionDef)questions.elementAt(i);
+			Vector refs = f.getDataModel().expandReference((TreeReference)q.getBind().getReference());
+			for (int j = 0; j < refs.size(); j++) {
+				TreeElement node = f.getDataModel().resolveReference((TreeReference)refs.elementAt(j));
+				if (q.getControlType() == Constants.CONTROL_SELECT_ONE) {
+					Selection s = new Selection("1");
+					s.attachQuestionDef(q);
+					node.setValue(new SelectOneData(s));
+				} else {
+					node.setValue(new IntegerData(j + 1));
+				}
+			}
+		}
+
+		f.initialize(false);
+		return f;
+	}
+
+	private static void collectQuestions (IFormElement e, Vector questions) {
+		if (e instanceof QuestionDef) {
+			questions.addElement(e);
+		} else if (e.getChildren() != null) {
+			for (int i = 0; i < e.getChildren().size(); i++) {
+				collectQuestions((IFormElement)e.getChildren().elementAt(i), questions);
+			}
+		}
+	}
+}
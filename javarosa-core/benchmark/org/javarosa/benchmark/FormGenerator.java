@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.benchmark;
+
+/**
+ * Builds synthetic xforms for the benchmarks, so they don't depend on sample forms
+ * that may not exist (or may not be big enough).
+ *
+ * Each level of a generated form has the given number of questions: integer inputs
+ * with a constraint, each relevant only if its predecessor is non-zero, with every
+ * fifth one a select, every fifth a calculate on its predecessor, and every fifth
+ * label showing its predecessor through an output. Levels below the top are
+ * repeats nested inside each other, each present in the instance a given number of
+ * times, so setting the first question of a level cascades through the whole level.
+ */
+public class FormGenerator {
+	public static final String SMALL = generateForm(10, 0, 0);
+	public static final String MEDIUM = generateForm(100, 1, 5);
+	public static final String LARGE = generateForm(300, 2, 4);
+
+	/**
+	 * @return a form with a single (non-repeated) level of questions
+	 */
+	public static String generateForm (int questions) {
+		return generateForm(questions, 0, 0);
+	}
+
+	/**
+	 * @param questions number of questions at each level
+	 * @param repeatDepth number of levels of nested repeats below the top level
+	 * @param repeatCount number of instances of each repeat in the initial instance
+	 */
+	public static String generateForm (int questions, int repeatDepth, int repeatCount) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">");
+		sb.append("<h:head><h:title>generated</h:title><model><instance><data>");
+		instance(sb, questions, 1, repeatDepth, repeatCount);
+		sb.append("</data></instance>");
+		String path = "/data";
+		for (int level = 0; level <= repeatDepth; level++) {
+			if (level > 0) {
+				path += "/r" + level;
+			}
+			binds(sb, path, questions);
+		}
+		sb.append("</model></h:head><h:body>");
+		body(sb, "/data", questions, 1, repeatDepth);
+		sb.append("</h:body></h:html>");
+		return sb.toString();
+	}
+
+	/**
+	 * @return the path of the repeat at the given depth (1 being the outermost)
+	 */
+	public static String repeatPath (int depth) {
+		String path = "/data";
+		for (int level = 1; level <= depth; level++) {
+			path += "/r" + level;
+		}
+		return path;
+	}
+
+	private static void instance (StringBuffer sb, int questions, int level, int repeatDepth, int repeatCount) {
+		for (int i = 0; i < questions; i++) {
+			sb.append("<q" + i + "/>");
+		}
+		if (level <= repeatDepth) {
+			for (int j = 0; j < repeatCount; j++) {
+				sb.append("<r" + level + ">");
+				instance(sb, questions, level + 1, repeatDepth, repeatCount);
+				sb.append("</r" + level + ">");
+			}
+		}
+	}
+
+	private static void binds (StringBuffer sb, String path, int questions) {
+		for (int i = 0; i < questions; i++) {
+			sb.append("<bind nodeset=\"" + path + "/q" + i + "\"");
+			if (i % 5 == 3) {
+				sb.append(" type=\"select1\"");
+			} else {
+				sb.append(" type=\"int\" constraint=\". &gt;= 0\"");
+			}
+			if (i > 0) {
+				sb.append(" relevant=\"" + path + "/q" + (i - 1) + " != 0\"");
+			}
+			if (i % 5 == 4) {
+				sb.append(" calculate=\"" + path + "/q" + (i - 1) + " + 1\"");
+			}
+			sb.append("/>");
+		}
+	}
+
+	private static void body (StringBuffer sb, String path, int questions, int level, int repeatDepth) {
+		for (int i = 0; i < questions; i++) {
+			String ref = path + "/q" + i;
+			String label = "q" + i;
+			if (i % 5 == 2) {
+				label += " after <output value=\"" + path + "/q" + (i - 1) + "\"/>";
+			}
+
+			if (i % 5 == 3) {
+				sb.append("<select1 ref=\"" + ref + "\"><label>" + label + "</label>");
+				for (int c = 0; c < 3; c++) {
+					sb.append("<item><label>choice " + c + "</label><value>" + c + "</value></item>");
+				}
+				sb.append("</select1>");
+			} else {
+				sb.append("<input ref=\"" + ref + "\"><label>" + label + "</label></input>");
+			}
+		}
+		if (level <= repeatDepth) {
+			String repeat = path + "/r" + level;
+			sb.append("<group><label>r" + level + "</label><repeat nodeset=\"" + repeat + "\">");
+			body(sb, repeat, questions, level + 1, repeatDepth);
+			sb.append("</repeat></group>");
+		}
+	}
+}
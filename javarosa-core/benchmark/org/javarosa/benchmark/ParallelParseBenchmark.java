@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.benchmark;
+
+import java.io.StringReader;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.xform.parse.XFormParser;
+
+/**
+ * Parses N copies of a form on N threads, and compares against parsing the
+ * same N forms one after the other on a single thread.
+ *
+ * usage: ParallelParseBenchmark [threads] [questions] [rounds]
+ *
+ * threads defaults to the number of available processors.
+ */
+public class ParallelParseBenchmark {
+	public static void main (String[] args) throws Exception {
+		int threads = (args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors());
+		int questions = (args.length > 1 ? Integer.parseInt(args[1]) : 200);
+		int rounds = (args.length > 2 ? Integer.parseInt(args[2]) : 10);
+
+		String form = FormGenerator.generateForm(questions);
+		System.out.println("parsing " + threads + " forms of " + questions + " questions; " + threads + " thread(s), " + rounds + " rounds");
+
+		//warm up
+		parseSequential(form, threads);
+		parseParallel(form, threads);
+
+		long sequential = 0;
+		long parallel = 0;
+		for (int i = 0; i < rounds; i++) {
+			sequential += parseSequential(form, threads);
+			parallel += parseParallel(form, threads);
+		}
+
+		System.out.println("sequential: " + (sequential / rounds) + " ms/round");
+		System.out.println("parallel:   " + (parallel / rounds) + " ms/round");
+		System.out.println("speedup:    " + ((double)sequential / Math.max(parallel, 1)));
+	}
+
+	private static long parseSequential (String form, int n) {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			parse(form);
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private static long parseParallel (final String form, int n) throws InterruptedException {
+		Thread[] threads = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			threads[i] = new Thread() {
+				public void run () {
+					parse(form);
+				}
+			};
+		}
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			threads[i].start();
+		}
+		for (int i = 0; i < n; i++) {
+			threads[i].join();
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private static void parse (String form) {
+		FormDef f = XFormParser.getFormDef(new StringReader(form));
+		if (f == null) {
+			throw new RuntimeException("form failed to parse");
+		}
+		f.initialize(true);
+	}
+}
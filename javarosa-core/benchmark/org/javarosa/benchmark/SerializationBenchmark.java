@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.core.services.locale.Localizer;
+import org.javarosa.core.services.locale.TableLocaleSource;
+import org.javarosa.core.util.externalizable.ByteBufferDataInputStream;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.javarosa.xform.parse.XFormParser;
+import org.javarosa.xpath.XPathParseTool;
+
+/**
+ * Times FormDef serialization round-trips (write to bytes, read back) of a
+ * generated form. Every tagged object costs a class hash lookup on read and a
+ * class hash on write, so this is dominated by PrototypeFactory/ExtWrapTagged.
+ *
+ * Every question also gets a text mapping in each of [languages] locales; only the
+ * current one (and the default) should be read back, so the cost of reading the
+ * form should barely depend on how many languages it has.
+ *
+ * usage: SerializationBenchmark [questions] [rounds] [languages]
+ */
+public class SerializationBenchmark {
+	//the classes a parsed FormDef tags; registering the modules would also need storage set up
+	static final String[] PROTOTYPES = {
+		"org.javarosa.core.model.QuestionDef",
+		"org.javarosa.core.model.GroupDef",
+		"org.javarosa.core.model.instance.DataModelTree",
+		"org.javarosa.core.model.data.IntegerData",
+		"org.javarosa.core.model.data.StringData",
+		"org.javarosa.core.model.data.SelectOneData",
+		"org.javarosa.model.xform.XPathReference",
+		"org.javarosa.xpath.XPathConditional",
+		"org.javarosa.core.services.locale.TableLocaleSource"
+	};
+
+	public static void main (String[] args) throws Exception {
+		int questions = (args.length > 0 ? Integer.parseInt(args[0]) : 500);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 50);
+		int languages = (args.length > 2 ? Integer.parseInt(args[2]) : 1);
+
+		PrototypeManager.registerPrototypes(PROTOTYPES);
+		PrototypeManager.registerPrototypes(XPathParseTool.xpathClasses);
+
+		FormDef f = XFormParser.getFormDef(new StringReader(FormGenerator.generateForm(questions)));
+		f.setLocalizer(generateLocalizer(questions, languages));
+		byte[] data = ExtUtil.serialize(f);
+		System.out.println("round-tripping a form of " + questions + " questions in " + languages + " language(s) (" + data.length + " bytes); " + rounds + " rounds");
+
+		//warm up
+		for (int i = 0; i < rounds; i++) {
+			roundTrip(f);
+		}
+
+		long writeTime = 0;
+		long readTime = 0;
+		long bufferReadTime = 0;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.currentTimeMillis();
+			data = ExtUtil.serialize(f);
+			long mid = System.currentTimeMillis();
+			read(data);
+			long end = System.currentTimeMillis();
+			readBuffer(direct(data));
+			long bufferEnd = System.currentTimeMillis();
+
+			writeTime += mid - start;
+			readTime += end - mid;
+			bufferReadTime += bufferEnd - end;
+		}
+
+		System.out.println("serialize:   " + ((double)writeTime / rounds) + " ms/round");
+		System.out.println("deserialize: " + ((double)readTime / rounds) + " ms/round");
+		System.out.println("deserialize (direct ByteBuffer): " + ((double)bufferReadTime / rounds) + " ms/round");
+	}
+
+	private static Localizer generateLocalizer (int questions, int languages) {
+		Localizer l = new Localizer(true, true);
+		for (int i = 0; i < languages; i++) {
+			String locale = "lang" + i;
+			TableLocaleSource table = new TableLocaleSource();
+			for (int j = 0; j < questions; j++) {
+				table.setLocaleMapping("q" + j, "question " + j + " in " + locale);
+			}
+			l.addAvailableLocale(locale);
+			l.registerLocaleResource(locale, table);
+		}
+		l.setDefaultLocale("lang0");
+		l.setToDefault();
+		return l;
+	}
+
+	private static void roundTrip (FormDef f) throws Exception {
+		byte[] data = ExtUtil.serialize(f);
+		read(data);
+		readBuffer(direct(data));
+	}
+
+	private static FormDef read (byte[] data) throws Exception {
+		PrototypeFactory pf = ExtUtil.defaultPrototypes();
+		return (FormDef)ExtUtil.read(new DataInputStream(new ByteArrayInputStream(data)), FormDef.class, pf);
+	}
+
+	//reads the way a memory-mapped form file is read
+	private static FormDef readBuffer (ByteBuffer data) throws Exception {
+		PrototypeFactory pf = ExtUtil.defaultPrototypes();
+		return (FormDef)ExtUtil.read(new ByteBufferDataInputStream(data), FormDef.class, pf);
+	}
+
+	private static ByteBuffer direct (byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data).flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.core.api;
+
+/**
+ * Receives timings from the hot paths of the form engine, for finding out which
+ * expressions make a form slow. Register one with the Instrumentation service;
+ * when none is registered the engine doesn't even read the clock.
+ *
+ * Times are inclusive: a triggerable's time includes the functions and reference
+ * lookups it performs, which are also recorded under their own categories.
+ */
+public interface IInstrumentation {
+	/** evaluation of a triggerable over all its contexts (FormDef.evaluateTriggerable); keyed by xpath */
+	public static final String TRIGGERABLE = "triggerable";
+	/** evaluation of a triggerable in a single context, including setting its targets; keyed by xpath */
+	public static final String TRIGGERABLE_APPLY = "apply";
+	/** an xpath function call; keyed by function name */
+	public static final String FUNCTION = "function";
+	/** DataModelTree.resolveReference; keyed by generic reference */
+	public static final String RESOLVE_REFERENCE = "resolve";
+	/** DataModelTree.expandReference; keyed by generic reference */
+	public static final String EXPAND_REFERENCE = "expand";
+	/** a phase of XFormParser; keyed by phase name */
+	public static final String PARSE = "parse";
+
+	/**
+	 * @param category One of the category constants
+	 * @param key What was timed (an xpath, function name, reference, etc.)
+	 * @param nanos How long it took
+	 */
+	public void record (String category, String key, long nanos);
+}
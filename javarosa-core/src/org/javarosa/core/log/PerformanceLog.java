@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.core.log;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.javarosa.core.api.IInstrumentation;
+import org.javarosa.core.services.IncidentLogger;
+
+/**
+ * Instrumentation that keeps a count and cumulative time for everything it is
+ * told about, e.g. how often each relevance condition was evaluated and how long
+ * that took in total. The totals can be dumped as a plain-text report, or posted
+ * to the incident log so they go wherever the application's logs go.
+ *
+ * usage: Instrumentation.registerInstrumentation(new PerformanceLog()), use the
+ * form, then call logReport() or getReport().
+ */
+public class PerformanceLog implements IInstrumentation {
+	public static final String LOG_TYPE_PERFORMANCE = "PERF";
+
+	private Hashtable categories; /* String -> Hashtable { String -> long[] {count, nanos} } */
+
+	public PerformanceLog () {
+		categories = new Hashtable();
+	}
+
+	public synchronized void record (String category, String key, long nanos) {
+		Hashtable entries = (Hashtable)categories.get(category);
+		if (entries == null) {
+			entries = new Hashtable();
+			categories.put(category, entries);
+		}
+
+		long[] totals = (long[])entries.get(key);
+		if (totals == null) {
+			totals = new long[2];
+			entries.put(key, totals);
+		}
+		totals[0]++;
+		totals[1] += nanos;
+	}
+
+	/**
+	 * @return How many times key was recorded under category
+	 */
+	public synchronized long getCount (String category, String key) {
+		long[] totals = getTotals(category, key);
+		return (totals == null ? 0 : totals[0]);
+	}
+
+	/**
+	 * @return Total time recorded for key under category, in nanoseconds
+	 */
+	public synchronized long getNanos (String category, String key) {
+		long[] totals = getTotals(category, key);
+		return (totals == null ? 0 : totals[1]);
+	}
+
+	private long[] getTotals (String category, String key) {
+		Hashtable entries = (Hashtable)categories.get(category);
+		return (entries == null ? null : (long[])entries.get(key));
+	}
+
+	public synchronized void clear () {
+		categories.clear();
+	}
+
+	/**
+	 * @return One section per category, listing each key with its count and total
+	 * time, most expensive first
+	 */
+	public synchronized String getReport () {
+		StringBuffer sb = new StringBuffer();
+		for (Enumeration e = categories.keys(); e.hasMoreElements(); ) {
+			String category = (String)e.nextElement();
+			Hashtable entries = (Hashtable)categories.get(category);
+
+			//insertion sort by total time, descending
+			Vector keys = new Vector();
+			for (Enumeration f = entries.keys(); f.hasMoreElements(); ) {
+				String key = (String)f.nextElement();
+				long nanos = ((long[])entries.get(key))[1];
+				int i = keys.size();
+				while (i > 0 && ((long[])entries.get(keys.elementAt(i - 1)))[1] < nanos) {
+					i--;
+				}
+				keys.insertElementAt(key, i);
+			}
+
+			sb.append(category).append(":\n");
+			for (int i = 0; i < keys.size(); i++) {
+				String key = (String)keys.elementAt(i);
+				long[] totals = (long[])entries.get(key);
+				sb.append("  ").append(totals[1] / 1000000.0).append(" ms  ");
+				sb.append(totals[0]).append("x  ").append(key).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Post the report to the incident log (see IncidentLogger)
+	 */
+	public void logReport () {
+		IncidentLogger.logIncident(LOG_TYPE_PERFORMANCE, getReport());
+	}
+}
@@ -20,11 +20,14 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.NoSuchElementException;
 import java.util.Vector;
 
+import org.javarosa.core.api.IInstrumentation;
 import org.javarosa.core.model.condition.Condition;
 import org.javarosa.core.model.condition.Constraint;
 import org.javarosa.core.model.condition.EvaluationContext;
@@ -40,15 +43,19 @@ import org.javarosa.core.model.instance.DataModelTree;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.utils.QuestionPreloader;
+import org.javarosa.core.services.Instrumentation;
 import org.javarosa.core.services.locale.Localizable;
 import org.javarosa.core.services.locale.Localizer;
 import org.javarosa.core.services.storage.IMetaData;
 import org.javarosa.core.services.storage.Persistable;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapLazy;
 import org.javarosa.core.util.externalizable.ExtWrapList;
 import org.javarosa.core.util.externalizable.ExtWrapListPoly;
+import org.javarosa.core.util.externalizable.ExtWrapMap;
 import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 
 /**
@@ -79,7 +86,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 	
 	public Vector triggerables; // <Triggerable>; this list is topologically ordered, meaning for any tA and tB in
 	//the list, where tA comes before tB, evaluating tA cannot depend on any result from evaluating tB
-	private boolean triggerablesInOrder; //true if triggerables has been ordered topologically (DON'T DELETE ME EVEN THOUGH I'M UNUSED)
+	private boolean triggerablesInOrder; //true if triggerables has been ordered topologically; ranks and cascadeIndex are only valid while this is set
 	
 	private DataModelTree model;
 	private Vector outputFragments; // <IConditionExpr> contents of <output>
@@ -87,12 +94,23 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 	// arguments to captions
 
 	public Hashtable triggerIndex; // <TreeReference, Vector<Triggerable>>
+	private Hashtable cascadeIndex; // <TreeReference, BitSet>; for a generic trigger ref, the ranks of every triggerable
+	// that must be re-evaluated when it changes (directly triggered + all cascades); built lazily
+	// and thrown away whenever the set of triggerables changes
 	private Hashtable conditionRepeatTargetIndex; // <TreeReference, Condition>;
 	// associates repeatable
 	// nodes with the Condition
 	// that determines their
 	// relevancy
 	private EvaluationContext exprEvalContext;
+	private Hashtable templates; // <String, String[]> label templates, parsed once; see Localizer.parseTemplate()
+	private Hashtable renderedTemplates; // <TreeReference, Hashtable<String, String>>; for a context ref, its
+	// templates with the <output>s filled in
+	private Hashtable renderedTemplateDependents; // <TreeReference, Vector<TreeReference>>; for the generic ref of
+	// a node read by an <output>, the context refs whose filled-in templates are stale once it changes
+	private int renderedTemplatesVersion; // the structureVersion renderedTemplates is valid for
+	private StringBuffer templateBuffer;
+	private int structureVersion; // bumped whenever the set of relevant questions may have changed; see getStructureVersion()
 
 	private QuestionPreloader preloader = new QuestionPreloader();
 
@@ -105,7 +123,12 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		triggerables = new Vector();
 		triggerablesInOrder = true;
 		triggerIndex = new Hashtable();
+		cascadeIndex = new Hashtable();
 		conditionRepeatTargetIndex = new Hashtable();
+		templates = new Hashtable();
+		renderedTemplates = new Hashtable();
+		renderedTemplateDependents = new Hashtable();
+		templateBuffer = new StringBuffer();
 		setEvaluationContext(new EvaluationContext());
 		outputFragments = new Vector();
 	}
@@ -182,7 +205,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		TreeReference ref = DataModelTree.unpackReference(
 				((IFormElement) elements.lastElement()).getBind()).clone();
 		for (int i = 0; i < ref.size(); i++) {
-			ref.multiplicity.setElementAt(new Integer(0), i);
+			ref.setMultiplicity(i, 0);
 		}
 
 		// fill in multiplicities for repeats along the way
@@ -194,8 +217,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 				if (repRef.isParentOf(ref, false)) {
 					int repMult = ((Integer) multiplicities.elementAt(i))
 							.intValue();
-					ref.multiplicity.setElementAt(new Integer(repMult), repRef
-							.size() - 1);
+					ref.setMultiplicity(repRef.size() - 1, repMult);
 				} else {
 					return null; // question/repeat hierarchy is not consistent
 					// with instance model and bindings
@@ -233,15 +255,57 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 	}
 
 	public void setValue(IAnswerData data, TreeReference ref, TreeElement node) {
-		setAnswer(data, node);
+		//storing the answer a question already has can't change anything that depends on it
+		if (sameAnswer(node.getValue(), data)) {
+			return;
+		}
+
+		setAnswer(data, ref, node);
 		triggerTriggerables(ref);
 	}
 
+	//whether storing 'answer' in a node whose value is 'current' would leave its value as it was; errs on
+	//the side of 'changed' for answer types whose values can't be compared
+	private static boolean sameAnswer(IAnswerData current, IAnswerData answer) {
+		if (current == answer) {
+			return true;
+		} else if (current == null || answer == null || current.getClass() != answer.getClass()) {
+			return false;
+		} else {
+			return sameValue(current.getValue(), answer.getValue());
+		}
+	}
+
+	private static boolean sameValue(Object a, Object b) {
+		if (a instanceof Selection) {
+			//a selection made in the ui isn't linked up to its question until it's stored, so compare by value only
+			String va = ((Selection) a).xmlValue;
+			return (b instanceof Selection && va != null && va.length() > 0 && va.equals(((Selection) b).xmlValue));
+		} else if (a instanceof Vector) {
+			if (!(b instanceof Vector) || ((Vector) a).size() != ((Vector) b).size())
+				return false;
+			for (int i = 0; i < ((Vector) a).size(); i++) {
+				if (!sameValue(((Vector) a).elementAt(i), ((Vector) b).elementAt(i)))
+					return false;
+			}
+			return true;
+		} else {
+			return ExtUtil.equals(a, b);
+		}
+	}
+
 	public void setAnswer(IAnswerData data, TreeReference ref) {
-		setAnswer(data, model.resolveReference(ref));
+		setAnswer(data, ref, model.resolveReference(ref));
 	}
 	
 	public void setAnswer(IAnswerData data, TreeElement node) {
+		// we don't know where in the model the node is, so any filled-in template may be stale
+		clearRenderedTemplates();
+		node.setAnswer(data);
+	}
+
+	private void setAnswer(IAnswerData data, TreeReference ref, TreeElement node) {
+		invalidateRenderedTemplates(ref);
 		node.setAnswer(data);
 	}
 	
@@ -284,11 +348,11 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 
 		int childMult = deleteElement.getMult();
 		parentElement.removeChild(deleteElement);
+		structureChanged();
 
 		// update multiplicities of other child nodes
-		Vector v = parentElement.getChildren();
-		for (int i = 0; i < v.size(); i++) {
-			TreeElement child = (TreeElement) v.elementAt(i);
+		for (int i = 0; i < parentElement.getNumChildren(); i++) {
+			TreeElement child = parentElement.getChildAt(i);
 			if (child.getMult() > childMult) {
 				child.setMult(child.getMult() - 1);
 			}
@@ -303,6 +367,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		TreeElement template = model.getTemplate(destRef);
 
 		model.copyNode(template, destRef);
+		structureChanged();
 
 		preloadModel(model.resolveReference(destRef));
 		triggerTriggerables(destRef); // trigger conditions that depend on the
@@ -312,7 +377,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 	}
 
 	public boolean canCreateRepeat(TreeReference repeatRef) {
-		Condition c = (Condition) conditionRepeatTargetIndex.get(repeatRef.genericize());
+		Condition c = (Condition) conditionRepeatTargetIndex.get(repeatRef.getGenericRef());
 		if (c != null) {
 			return c.evalBool(model, new EvaluationContext(exprEvalContext,	repeatRef));
 		} /* else check # child constraints of parent
@@ -340,6 +405,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		} else {
 			triggerables.addElement(t);
 			triggerablesInOrder = false;
+			cascadeIndex.clear();
 
 			Vector triggers = t.getTriggers();
 			for (int i = 0; i < triggers.size(); i++) {
@@ -353,86 +419,172 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 				}
 			}
 
-			if (t instanceof Condition) {
-				// droos 5/14: this this might be a bug? what if we encounter
-				// the same condition again, but the targets
-				// have since changed? we'll return the original condition
-				// (above), and not update this index
-				Vector targets = t.getTargets();
-				for (int i = 0; i < targets.size(); i++) {
-					TreeReference target = (TreeReference) targets.elementAt(i);
-					if (model.getTemplate(target) != null) {
-						conditionRepeatTargetIndex.put(target, (Condition) t);
-					}
-				}
-			}
-
 			return t;
 		}
 	}
 
 	public void finalizeTriggerables () {
-		Vector partialOrdering = new Vector();
-		for (int i = 0; i < triggerables.size(); i++) {
-			Triggerable t = (Triggerable)triggerables.elementAt(i);
-			Vector deps = new Vector();
-			
+		int n = triggerables.size();
+		Triggerable[] unordered = new Triggerable[n];
+		triggerables.copyInto(unordered);
+		for (int i = 0; i < n; i++) {
+			unordered[i].rank = i;
+		}
+
+		//edges[i] lists (once each) the triggerables that depend on a target of triggerable i
+		int[][] edges = new int[n][];
+		int[] inDegree = new int[n];
+		int[] lastSource = new int[n];
+		int[] scratch = new int[n];
+		for (int i = 0; i < n; i++) {
+			lastSource[i] = -1;
+		}
+		for (int i = 0; i < n; i++) {
+			Triggerable t = unordered[i];
+			int numEdges = 0;
+
 			if (t.canCascade()) {
 				for (int j = 0; j < t.getTargets().size(); j++) {
 					TreeReference target = (TreeReference)t.getTargets().elementAt(j);
 					Vector triggered = (Vector)triggerIndex.get(target);
 					if (triggered != null) {
 						for (int k = 0; k < triggered.size(); k++) {
-							Triggerable u = (Triggerable)triggered.elementAt(k);
-							if (!deps.contains(u))
-								deps.addElement(u);
+							int u = ((Triggerable)triggered.elementAt(k)).rank;
+							if (lastSource[u] != i) {
+								lastSource[u] = i;
+								scratch[numEdges++] = u;
+								inDegree[u]++;
+							}
 						}
 					}
 				}
 			}
-			
-			for (int j = 0; j < deps.size(); j++) {
-				Triggerable u = (Triggerable)deps.elementAt(j);
-				Triggerable[] edge = {t, u};
-				partialOrdering.addElement(edge);
+
+			edges[i] = new int[numEdges];
+			System.arraycopy(scratch, 0, edges[i], 0, numEdges);
+		}
+
+		//peel off the triggerables with no remaining dependencies one layer at a time. each layer is kept in
+		//the order the triggerables were added, so triggerables that don't depend on each other are evaluated
+		//in the same order as they appear in the form
+		int[] order = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (inDegree[i] == 0)
+				order[count++] = i;
+		}
+		int layerStart = 0;
+		while (layerStart < count) {
+			int layerEnd = count;
+			for (int i = layerStart; i < layerEnd; i++) {
+				int[] deps = edges[order[i]];
+				for (int k = 0; k < deps.length; k++) {
+					if (--inDegree[deps[k]] == 0)
+						order[count++] = deps[k];
+				}
 			}
+			Arrays.sort(order, layerEnd, count);
+			layerStart = layerEnd;
 		}
-		
-		Vector vertices = new Vector();
-		for (int i = 0; i < triggerables.size(); i++)
-			vertices.addElement(triggerables.elementAt(i));
+
+		//if some triggerables never ran out of dependencies, the graph has cycles
+		if (count < n) {
+			throw new RuntimeException("Cannot create partial ordering of triggerables due to dependency cycle. Why wasn't this caught during parsing?");
+		}
+
 		triggerables.removeAllElements();
-		
-		while (vertices.size() > 0) {
-			//determine root nodes
-			Vector roots = new Vector();
-			for (int i = 0; i < vertices.size(); i++) {
-				roots.addElement(vertices.elementAt(i));
-			}
-			for (int i = 0; i < partialOrdering.size(); i++) {
-				Triggerable[] edge = (Triggerable[])partialOrdering.elementAt(i);
-				roots.removeElement(edge[1]);
-			}
-			
-			//if no root nodes while graph still has nodes, graph has cycles
-			if (roots.size() == 0) {
-				throw new RuntimeException("Cannot create partial ordering of triggerables due to dependency cycle. Why wasn't this caught during parsing?");
+		for (int i = 0; i < n; i++) {
+			Triggerable t = unordered[order[i]];
+			t.rank = i;
+			triggerables.addElement(t);
+		}
+
+		//a condition's targets are only attached once all the binds have been parsed, well after
+		//addTriggerable(), so the repeat targets are indexed here instead
+		conditionRepeatTargetIndex.clear();
+		if (model != null) {
+			for (int i = 0; i < n; i++) {
+				Triggerable t = (Triggerable)triggerables.elementAt(i);
+				if (t instanceof Condition) {
+					Vector targets = t.getTargets();
+					for (int j = 0; j < targets.size(); j++) {
+						TreeReference target = (TreeReference)targets.elementAt(j);
+						if (model.getTemplate(target) != null) {
+							conditionRepeatTargetIndex.put(target, t);
+						}
+					}
+				}
 			}
+		}
+		cascadeIndex.clear();
+		triggerablesInOrder = true;
+		compileTriggerables();
+	}
 
-			//remove root nodes and edges originating from them
-			for (int i = 0; i < roots.size(); i++) {
-				Triggerable root = (Triggerable)roots.elementAt(i);
-				triggerables.addElement(root);
-				vertices.removeElement(root);
-			}			
-			for (int i = partialOrdering.size() - 1; i >= 0; i--) {
-				Triggerable[] edge = (Triggerable[])partialOrdering.elementAt(i);
-				if (roots.contains(edge[0]))
-					partialOrdering.removeElementAt(i);
+	/**
+	 * Install a triggerable graph that was finalized before the form was serialized,
+	 * instead of re-adding every triggerable and sorting them again
+	 *
+	 * @param ordered the triggerables, topologically ordered
+	 * @param triggerRanks <TreeReference, Vector<Integer>> triggerIndex, with triggerables given by rank
+	 * @param repeatTargetRanks <TreeReference, Integer> conditionRepeatTargetIndex, with conditions given by rank
+	 */
+	private void restoreTriggerables (Triggerable[] ordered, Hashtable triggerRanks, Hashtable repeatTargetRanks) {
+		triggerables.removeAllElements();
+		for (int i = 0; i < ordered.length; i++) {
+			ordered[i].rank = i;
+			triggerables.addElement(ordered[i]);
+		}
+
+		triggerIndex.clear();
+		for (Enumeration e = triggerRanks.keys(); e.hasMoreElements(); ) {
+			TreeReference trigger = (TreeReference)e.nextElement();
+			Vector ranks = (Vector)triggerRanks.get(trigger);
+			Vector triggered = new Vector(ranks.size());
+			for (int i = 0; i < ranks.size(); i++) {
+				triggered.addElement(ordered[((Integer)ranks.elementAt(i)).intValue()]);
 			}
+			triggerIndex.put(trigger, triggered);
 		}
-		
+
+		conditionRepeatTargetIndex.clear();
+		for (Enumeration e = repeatTargetRanks.keys(); e.hasMoreElements(); ) {
+			TreeReference target = (TreeReference)e.nextElement();
+			conditionRepeatTargetIndex.put(target, ordered[((Integer)repeatTargetRanks.get(target)).intValue()]);
+		}
+
+		cascadeIndex.clear();
 		triggerablesInOrder = true;
+		compileTriggerables();
+	}
+
+	//precompile triggerable and constraint expressions against the model; redone if the model is replaced
+	private void compileTriggerables() {
+		if (model == null)
+			return;
+
+		for (int i = 0; i < triggerables.size(); i++) {
+			((Triggerable)triggerables.elementAt(i)).compile(model);
+		}
+		TreeReference topRef = TreeReference.rootRef();
+		topRef.add(model.getRoot().getName(), TreeReference.INDEX_UNBOUND);
+		compileConstraints(model.getRoot(), topRef);
+	}
+
+	private void compileConstraints(TreeElement node, TreeReference genericRef) {
+		if (node.getConstraint() != null) {
+			node.getConstraint().constraint.compile(model, genericRef);
+		}
+
+		for (int i = 0; i < node.getNumChildren(); i++) {
+			TreeElement child = node.getChildAt(i);
+			if (child.getMult() > 0)
+				continue; //repeat instances share their constraints with the template
+
+			TreeReference childRef = genericRef.clone();
+			childRef.add(child.getName(), TreeReference.INDEX_UNBOUND);
+			compileConstraints(child, childRef);
+		}
 	}
 	
 	public void initializeTriggerables() {
@@ -444,75 +596,125 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 	 * current context.
 	 */
 	private void initializeTriggerables(TreeReference rootRef) {
-		TreeReference genericRoot = rootRef.genericize();
+		TreeReference genericRoot = rootRef.getGenericRef();
+		ensureTriggerablesFinalized();
 
-		Vector applicable = new Vector();
+		BitSet applicable = new BitSet(triggerables.size());
 		for (int i = 0; i < triggerables.size(); i++) {
 			Triggerable t = (Triggerable)triggerables.elementAt(i);
 			for (int j = 0; j < t.getTargets().size(); j++) {
 				TreeReference target = (TreeReference)t.getTargets().elementAt(j);
 				if (genericRoot.isParentOf(target, false)) {
-					applicable.addElement(t);
+					applicable.set(t.rank);
 					break;
 				}
 			}
 		}
 		
+		addCascades(applicable);
 		evaluateTriggerables(applicable, rootRef);
 	}
 	
 	// ref: unambiguous ref of node that just changed
 	public void triggerTriggerables(TreeReference ref) {
 		// turn unambiguous ref into a generic ref
-		TreeReference genericRef = ref.genericize();
+		TreeReference genericRef = ref.getGenericRef();
 
-		// get conditions triggered by this node
-		Vector triggered = (Vector)triggerIndex.get(genericRef);
-		if (triggered == null)
+		// get conditions triggered by this node, plus everything they cascade into
+		BitSet cascade = getCascade(genericRef);
+		if (cascade == null)
 			return;
 
-		Vector triggeredCopy = new Vector();
-		for (int i = 0; i < triggered.size(); i++)
-			triggeredCopy.addElement(triggered.elementAt(i));
-		evaluateTriggerables(triggeredCopy, ref);
+		evaluateTriggerables(cascade, ref);
 	}
 
-	private void evaluateTriggerables(Vector tv, TreeReference anchorRef) {
-		//add all cascaded triggerables to queue
-		for (int i = 0; i < tv.size(); i++) {
-			Triggerable t = (Triggerable)tv.elementAt(i);
-			if (t.canCascade()) {
-				for (int j = 0; j < t.getTargets().size(); j++) {
-					TreeReference target = (TreeReference)t.getTargets().elementAt(j);
-					Vector triggered = (Vector)triggerIndex.get(target);
-					if (triggered != null) {
-						for (int k = 0; k < triggered.size(); k++) {
-							Triggerable u = (Triggerable)triggered.elementAt(k);
-							if (!tv.contains(u))
-								tv.addElement(u);
+	private void ensureTriggerablesFinalized() {
+		if (!triggerablesInOrder) {
+			finalizeTriggerables();
+		}
+	}
+
+	/**
+	 * Get the set of triggerables (as a bitset of ranks) that must be
+	 * re-evaluated when the node(s) matching a generic ref change: those
+	 * triggered by the ref directly, plus the transitive closure of their
+	 * cascades. The set is computed once per ref and cached until the
+	 * triggerables change.
+	 * 
+	 * @param genericRef
+	 * @return null if no triggerables depend on the ref. The returned set is
+	 *         shared; do not modify it.
+	 */
+	private BitSet getCascade(TreeReference genericRef) {
+		if (!triggerIndex.containsKey(genericRef))
+			return null;
+
+		ensureTriggerablesFinalized();
+		BitSet cascade = (BitSet)cascadeIndex.get(genericRef);
+		if (cascade == null) {
+			Vector triggered = (Vector)triggerIndex.get(genericRef);
+			cascade = new BitSet(triggerables.size());
+			for (int i = 0; i < triggered.size(); i++) {
+				cascade.set(((Triggerable)triggered.elementAt(i)).rank);
+			}
+			addCascades(cascade);
+			cascadeIndex.put(genericRef, cascade);
+		}
+		return cascade;
+	}
+
+	// expand a set of triggerable ranks to include every triggerable that
+	// transitively depends on the targets of those in the set
+	private void addCascades(BitSet dirty) {
+		int[] stack = new int[triggerables.size()];
+		int top = 0;
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+			stack[top++] = i;
+		}
+
+		while (top > 0) {
+			Triggerable t = (Triggerable)triggerables.elementAt(stack[--top]);
+			if (!t.canCascade())
+				continue;
+
+			for (int j = 0; j < t.getTargets().size(); j++) {
+				TreeReference target = (TreeReference)t.getTargets().elementAt(j);
+				Vector triggered = (Vector)triggerIndex.get(target);
+				if (triggered != null) {
+					for (int k = 0; k < triggered.size(); k++) {
+						int rank = ((Triggerable)triggered.elementAt(k)).rank;
+						if (!dirty.get(rank)) {
+							dirty.set(rank);
+							stack[top++] = rank;
 						}
 					}
 				}
 			}
 		}
-		
-		//'triggerables' is topologically-ordered by dependencies, so evaluate the triggerables in 'tv'
-		//in the order they appear in 'triggerables'
-		for (int i = 0; i < triggerables.size(); i++) {
-			Triggerable t = (Triggerable)triggerables.elementAt(i);
-			if (tv.contains(t)) {
-				evaluateTriggerable(t, anchorRef);
-			}
+	}
+
+	//'triggerables' is topologically-ordered by dependencies, and each triggerable's rank is its position in
+	//that ordering, so draining the dirty set in rank order evaluates every triggerable after all of its inputs
+	private void evaluateTriggerables(BitSet dirty, TreeReference anchorRef) {
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+			evaluateTriggerable((Triggerable)triggerables.elementAt(i), anchorRef);
 		}
 	}
 	
 	private void evaluateTriggerable(Triggerable t, TreeReference anchorRef) {
+		IInstrumentation inst = Instrumentation._();
+		long start = (inst == null ? 0 : System.nanoTime());
+
 		TreeReference contextRef = t.contextRef.contextualize(anchorRef);
 		Vector v = model.expandReference(contextRef);
 		for (int i = 0; i < v.size(); i++) {
 			EvaluationContext ec = new EvaluationContext(exprEvalContext, (TreeReference)v.elementAt(i));
 			t.apply(model, ec, this);
 		}
+
+		if (inst != null) {
+			Instrumentation.record(inst, IInstrumentation.TRIGGERABLE, t.expr.toString(), start);
+		}
 	}
 
 	public boolean evaluateConstraint(TreeReference ref, IAnswerData data) {
@@ -531,6 +733,49 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		return c.constraint.eval(model, ec);
 	}
 
+	/**
+	 * Check the current answer of every relevant question against its
+	 * constraint and, optionally, its required flag. Nothing in the model is
+	 * changed, so unlike re-saving each answer no triggerables are fired.
+	 * 
+	 * @param checkRequired
+	 *            whether a required question with no answer is a violation
+	 * @param stopAtFirst
+	 *            stop looking once one violation has been found
+	 * @return Vector<FormIndex> of the questions that fail, in form order;
+	 *         empty if there are none
+	 */
+	public Vector validate(boolean checkRequired, boolean stopAtFirst) {
+		Vector violations = new Vector();
+		FormIndex index = FormIndex.createBeginningOfFormIndex();
+		while (!(index = incrementIndex(index)).isEndOfFormIndex()) {
+			if (!(getChild(index) instanceof QuestionDef))
+				continue;
+
+			TreeReference ref = getChildInstanceRef(index);
+			TreeElement node = model.resolveReference(ref);
+			if (node == null || !node.isRelevant())
+				continue;
+
+			IAnswerData value = node.getValue();
+			if (!evaluateConstraint(ref, value) || (checkRequired && node.required && value == null)) {
+				violations.addElement(index);
+				if (stopAtFirst)
+					break;
+			}
+		}
+		return violations;
+	}
+
+	/**
+	 * @return the first question that fails validation (see validate()), or
+	 *         null if the form is valid
+	 */
+	public FormIndex getFirstViolation(boolean checkRequired) {
+		Vector violations = validate(checkRequired, true);
+		return (violations.size() == 0 ? null : (FormIndex) violations.elementAt(0));
+	}
+
 	/**
 	 * @param ec
 	 *            The new Evaluation Context
@@ -538,6 +783,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 	public void setEvaluationContext(EvaluationContext ec) {
 		initEvalContext(ec);
 		this.exprEvalContext = ec;
+		clearRenderedTemplates();
 	}
 
 	private void initEvalContext(EvaluationContext ec) {
@@ -576,46 +822,144 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		}
 	}
 
+	/**
+	 * Fill in the <output>s of a label template, as seen from the given context
+	 * ref. Templates are parsed once, and the result is cached per context ref
+	 * until a node read by one of its <output>s changes (or relevance or the
+	 * repeat structure does). <output>s that read no nodes at all, such as
+	 * now(), are evaluated afresh every time.
+	 */
 	public String fillTemplateString(String template, TreeReference contextRef) {
-		Hashtable args = new Hashtable();
-
-		int depth = 0;
-		Vector outstandingArgs = Localizer.getArgs(template);
-		while (outstandingArgs.size() > 0) {
-			for (int i = 0; i < outstandingArgs.size(); i++) {
-				String argName = (String) outstandingArgs.elementAt(i);
-				if (!args.containsKey(argName)) {
-					int ix = -1;
-					try {
-						ix = Integer.parseInt(argName);
-					} catch (NumberFormatException nfe) {
-						System.err
-								.println("Warning: expect arguments to be numeric ["
-										+ argName + "]");
-					}
+		if (template.indexOf("${") == -1) {
+			return template;
+		}
+
+		if (renderedTemplatesVersion != structureVersion) {
+			clearRenderedTemplates();
+			renderedTemplatesVersion = structureVersion;
+		}
+		Hashtable rendered = (contextRef == null ? null : (Hashtable) renderedTemplates.get(contextRef));
+		String text = (rendered == null ? null : (String) rendered.get(template));
+		if (text != null) {
+			return text;
+		}
+
+		String[] parts = (String[]) templates.get(template);
+		if (parts == null) {
+			parts = Localizer.parseTemplate(template);
+			templates.put(template, parts);
+		}
 
-					if (ix < 0 || ix >= outputFragments.size())
-						continue;
+		Vector triggers = new Vector();
+		StringBuffer sb = templateBuffer;
+		sb.setLength(0);
+		boolean cacheable = fillTemplate(parts, sb, new EvaluationContext(exprEvalContext, contextRef), new Hashtable(), triggers, 0);
+		text = sb.toString();
+
+		if (cacheable && contextRef != null) {
+			TreeReference key = contextRef.clone();
+			if (rendered == null) {
+				rendered = new Hashtable();
+				renderedTemplates.put(key, rendered);
+			}
+			rendered.put(template, text);
 
-					IConditionExpr expr = (IConditionExpr) outputFragments
-							.elementAt(ix);
-					String value = expr.evalReadable(this.getDataModel(),
-							new EvaluationContext(exprEvalContext, contextRef));
-					args.put(argName, value);
+			for (int i = 0; i < triggers.size(); i++) {
+				TreeReference trigger = (TreeReference) triggers.elementAt(i);
+				Vector contexts = (Vector) renderedTemplateDependents.get(trigger);
+				if (contexts == null) {
+					contexts = new Vector();
+					renderedTemplateDependents.put(trigger, contexts);
+				}
+				if (!contexts.contains(key)) {
+					contexts.addElement(key);
 				}
 			}
+		}
+		return text;
+	}
 
-			template = Localizer.processArguments(template, args);
-			outstandingArgs = Localizer.getArgs(template);
+	/**
+	 * Append a parsed template to sb with its args filled in from the
+	 * <output>s. An <output>'s value may itself contain args, which are filled
+	 * in recursively.
+	 * 
+	 * @param args <String, String> values of the <output>s evaluated so far
+	 * @param triggers collects the generic refs of every node read
+	 * @return false if the result depends on more than the nodes in triggers
+	 *         (e.g. on now()), and so can't be cached
+	 */
+	private boolean fillTemplate(String[] parts, StringBuffer sb, EvaluationContext ec, Hashtable args,
+			Vector triggers, int depth) {
+		if (depth >= TEMPLATING_RECURSION_LIMIT) {
+			throw new RuntimeException(
+					"Dependency cycle in <output>s; recursion limit exceeded!!");
+		}
+
+		boolean cacheable = true;
+		for (int i = 0; i < parts.length; i++) {
+			if (i % 2 == 0) {
+				sb.append(parts[i]);
+				continue;
+			}
+
+			String argName = parts[i];
+			String value = (String) args.get(argName);
+			if (value == null) {
+				int ix = -1;
+				try {
+					ix = Integer.parseInt(argName);
+				} catch (NumberFormatException nfe) {
+					System.err
+							.println("Warning: expect arguments to be numeric ["
+									+ argName + "]");
+				}
+
+				if (ix < 0 || ix >= outputFragments.size()) {
+					sb.append("${").append(argName).append("}");
+					continue;
+				}
+
+				IConditionExpr expr = getOutputFragment(ix);
+				value = expr.evalReadable(this.getDataModel(), ec);
+				args.put(argName, value);
+
+				Vector exprTriggers = expr.getTriggers();
+				if (exprTriggers.size() == 0 || ec.getContextRef() == null || expr.isVolatile(ec)) {
+					cacheable = false;
+				}
+				for (int j = 0; cacheable && j < exprTriggers.size(); j++) {
+					TreeReference trigger = ((TreeReference) exprTriggers.elementAt(j)).anchor(ec.getContextRef());
+					if (trigger == null) {
+						cacheable = false;
+					} else if (!triggers.contains(trigger.getGenericRef())) {
+						triggers.addElement(trigger.getGenericRef());
+					}
+				}
+			}
 
-			depth++;
-			if (depth >= TEMPLATING_RECURSION_LIMIT) {
-				throw new RuntimeException(
-						"Dependency cycle in <output>s; recursion limit exceeded!!");
+			if (value.indexOf("${") != -1) {
+				cacheable &= fillTemplate(Localizer.parseTemplate(value), sb, ec, args, triggers, depth + 1);
+			} else {
+				sb.append(value);
 			}
 		}
+		return cacheable;
+	}
 
-		return template;
+	// throw away the filled-in templates that read the node at ref
+	private void invalidateRenderedTemplates(TreeReference ref) {
+		Vector contexts = (Vector) renderedTemplateDependents.remove(ref.getGenericRef());
+		if (contexts != null) {
+			for (int i = 0; i < contexts.size(); i++) {
+				renderedTemplates.remove(contexts.elementAt(i));
+			}
+		}
+	}
+
+	private void clearRenderedTemplates() {
+		renderedTemplates.clear();
+		renderedTemplateDependents.clear();
 	}
 
 	/**
@@ -673,6 +1017,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 	 * data bindings.
 	 */
 	public void preloadModel(TreeElement node) {
+		clearRenderedTemplates();
 		// if (node.isLeaf()) {
 		IAnswerData preload = null;
 		if (node.getPreloadHandler() != null) {
@@ -686,8 +1031,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		// } else {
 		if (!node.isLeaf()) {
 			for (int i = 0; i < node.getNumChildren(); i++) {
-				TreeElement child = (TreeElement) node.getChildren().elementAt(
-						i);
+				TreeElement child = node.getChildAt(i);
 				if (child.getMult() != TreeReference.INDEX_TEMPLATE) // don't
 					// preload
 					// templates;
@@ -744,8 +1088,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		} else {
 			boolean modelModified = false;
 			for (int i = 0; i < node.getNumChildren(); i++) {
-				TreeElement child = (TreeElement) node.getChildren().elementAt(
-						i);
+				TreeElement child = node.getChildAt(i);
 				if (child.getMult() != TreeReference.INDEX_TEMPLATE)
 					modelModified |= postProcessModel(child);
 			}
@@ -777,14 +1120,21 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		setLocalizer((Localizer) ExtUtil.read(dis, new ExtWrapNullable(Localizer.class), pf));
 
 		Vector vcond = (Vector) ExtUtil.read(dis, new ExtWrapList(Condition.class), pf);
-		for (Enumeration e = vcond.elements(); e.hasMoreElements(); )
-			addTriggerable((Condition) e.nextElement());
 		Vector vcalc = (Vector) ExtUtil.read(dis, new ExtWrapList(Recalculate.class), pf);
-		for (Enumeration e = vcalc.elements(); e.hasMoreElements();)
-			addTriggerable((Recalculate) e.nextElement());
-		finalizeTriggerables();
+		Vector ranks = (Vector) ExtUtil.read(dis, new ExtWrapList(Integer.class), pf);
+		if (ranks.size() != vcond.size() + vcalc.size()) {
+			throw new DeserializationException("Triggerable ordering does not match the number of triggerables");
+		}
+		Triggerable[] ordered = new Triggerable[ranks.size()];
+		for (int i = 0; i < ranks.size(); i++) {
+			Object t = (i < vcond.size() ? vcond.elementAt(i) : vcalc.elementAt(i - vcond.size()));
+			ordered[((Integer) ranks.elementAt(i)).intValue()] = (Triggerable) t;
+		}
+		Hashtable triggerRanks = (Hashtable) ExtUtil.read(dis, new ExtWrapMap(TreeReference.class, new ExtWrapList(Integer.class)), pf);
+		Hashtable repeatTargetRanks = (Hashtable) ExtUtil.read(dis, new ExtWrapMap(TreeReference.class, Integer.class), pf);
+		restoreTriggerables(ordered, triggerRanks, repeatTargetRanks);
 		
-		outputFragments = (Vector) ExtUtil.read(dis, new ExtWrapListPoly(), pf);
+		outputFragments = (Vector) ExtUtil.read(dis, new ExtWrapList(new ExtWrapLazy(new ExtWrapTagged())), pf);
 	}
 
 	/**
@@ -820,8 +1170,7 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		IAnswerData data = node.getValue();
 		if (data == null) {
 			for (int i = 0; i < node.getNumChildren(); i++)
-				fixSelectQuestionDeserialization((TreeElement) node
-						.getChildren().elementAt(i), questionMapping);
+				fixSelectQuestionDeserialization(node.getChildAt(i), questionMapping);
 		} else if (data instanceof SelectOneData
 				|| data instanceof SelectMultiData) {
 			Vector selections;
@@ -876,20 +1225,51 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		ExtUtil.write(dos, model);
 		ExtUtil.write(dos, new ExtWrapNullable(localizer));
 
+		// the finalized triggerable graph is written as-is (the topological order,
+		// plus triggerIndex and conditionRepeatTargetIndex in terms of ranks) so
+		// that reading the form doesn't have to rebuild it
+		ensureTriggerablesFinalized();
 		Vector conditions = new Vector();
 		Vector recalcs = new Vector();
+		Vector conditionRanks = new Vector();
+		Vector recalcRanks = new Vector();
 		for (int i = 0; i < triggerables.size(); i++) {
 			Triggerable t = (Triggerable) triggerables.elementAt(i);
 			if (t instanceof Condition) {
 				conditions.addElement(t);
+				conditionRanks.addElement(new Integer(i));
 			} else if (t instanceof Recalculate) {
 				recalcs.addElement(t);
+				recalcRanks.addElement(new Integer(i));
 			}
 		}
+		for (int i = 0; i < recalcRanks.size(); i++) {
+			conditionRanks.addElement(recalcRanks.elementAt(i));
+		}
 		ExtUtil.write(dos, new ExtWrapList(conditions));
 		ExtUtil.write(dos, new ExtWrapList(recalcs));
+		ExtUtil.write(dos, new ExtWrapList(conditionRanks));
+
+		Hashtable triggerRanks = new Hashtable();
+		for (Enumeration e = triggerIndex.keys(); e.hasMoreElements(); ) {
+			TreeReference trigger = (TreeReference) e.nextElement();
+			Vector triggered = (Vector) triggerIndex.get(trigger);
+			Vector ranks = new Vector(triggered.size());
+			for (int i = 0; i < triggered.size(); i++) {
+				ranks.addElement(new Integer(((Triggerable) triggered.elementAt(i)).rank));
+			}
+			triggerRanks.put(trigger, ranks);
+		}
+		ExtUtil.write(dos, new ExtWrapMap(triggerRanks, new ExtWrapList(Integer.class)));
+
+		Hashtable repeatTargetRanks = new Hashtable();
+		for (Enumeration e = conditionRepeatTargetIndex.keys(); e.hasMoreElements(); ) {
+			TreeReference target = (TreeReference) e.nextElement();
+			repeatTargetRanks.put(target, new Integer(((Triggerable) conditionRepeatTargetIndex.get(target)).rank));
+		}
+		ExtUtil.write(dos, new ExtWrapMap(repeatTargetRanks));
 
-		ExtUtil.write(dos, new ExtWrapListPoly(outputFragments));
+		ExtUtil.write(dos, new ExtWrapList(outputFragments, new ExtWrapLazy(new ExtWrapTagged())));
 	}
 
 	public void collapseIndex(FormIndex index, Vector indexes,
@@ -1150,6 +1530,24 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 		this.title = title;
 	}
 
+	/**
+	 * A counter that changes whenever a triggerable changes the relevance of a node,
+	 * or a repeat is added or removed. Anything derived from the set of relevant
+	 * questions (e.g., a question count) stays valid until this changes.
+	 */
+	public int getStructureVersion() {
+		return structureVersion;
+	}
+
+	/**
+	 * Note that relevance or the repeat structure of the model has changed. Called by
+	 * the triggerable engine; callers that modify the model directly (such as
+	 * importing saved data) should call this too.
+	 */
+	public void structureChanged() {
+		structureVersion++;
+	}
+
 	public int getID() {
 		return id;
 	}
@@ -1184,14 +1582,39 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 
 	public void setDataModel(IFormDataModel model) {
 		this.model = (DataModelTree) model;
+		structureChanged();
+		if (triggerablesInOrder) {
+			compileTriggerables();
+		}
 	}
 
 	public Vector getOutputFragments() {
+		for (int i = 0; i < outputFragments.size(); i++) {
+			getOutputFragment(i);
+		}
 		return outputFragments;
 	}
 
+	/**
+	 * Output fragments of a deserialized form are only read when a label
+	 * first uses them
+	 */
+	private IConditionExpr getOutputFragment(int ix) {
+		Object fragment = outputFragments.elementAt(ix);
+		if (fragment instanceof ExtWrapLazy) {
+			try {
+				fragment = ((ExtWrapLazy) fragment).get();
+			} catch (DeserializationException de) {
+				throw new RuntimeException("Unable to read output fragment " + ix + ": " + de.getMessage());
+			}
+			outputFragments.setElementAt(fragment, ix);
+		}
+		return (IConditionExpr) fragment;
+	}
+
 	public void setOutputFragments(Vector outputFragments) {
 		this.outputFragments = outputFragments;
+		clearRenderedTemplates();
 	}
 
 	public Hashtable getMetaData() {
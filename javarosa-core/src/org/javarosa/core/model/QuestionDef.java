@@ -74,6 +74,7 @@ public class QuestionDef implements IFormElement, Localizable {
 	// they are complicit in so many bugs
 	private OrderedHashtable selectItems;  	/** String -> String */
 	private OrderedHashtable selectItemIDs;	/** String -> String */
+	private Hashtable selectValueIndex;		/** String -> Integer; choice value to its index, built lazily from the tables above */
 	
 	//Select item image for direct path
 	private OrderedHashtable selectItemImages; 
@@ -258,6 +259,7 @@ public class QuestionDef implements IFormElement, Localizable {
 	//this function is dangerous: QuestionDef will not serialize properly unless selectItemIDs is set as well
 	public void setSelectItems (OrderedHashtable selectItems) {
 		this.selectItems = selectItems;
+		selectValueIndex = null;
 	}
 	
 	//this function is dangerous: QuestionDef will not serialize properly unless selectItemIDs is set as well
@@ -265,6 +267,7 @@ public class QuestionDef implements IFormElement, Localizable {
 		if (selectItems == null)
 			selectItems = new OrderedHashtable();
 		selectItems.put(label, value);
+		selectValueIndex = null;
 	}
 	
 	public OrderedHashtable getSelectItemIDs () {
@@ -278,6 +281,7 @@ public class QuestionDef implements IFormElement, Localizable {
 	public void setSelectItemIDs (OrderedHashtable selectItemIDs, Vector selectItemsLocalizable, Localizer localizer) {
 		this.selectItemIDs = selectItemIDs;
 		this.selectItemsLocalizable = selectItemsLocalizable;
+		selectValueIndex = null;
 		if(localizer != null) {
 			localizeSelectMap(localizer);
 		}
@@ -290,6 +294,7 @@ public class QuestionDef implements IFormElement, Localizable {
 		}
 		selectItemIDs.put(labelID, value);
 		selectItemsLocalizable.addElement(new Boolean(type));
+		selectValueIndex = null;
 	}
 	
 	//calling when localizer == null is meant for when there is no localization data and selectIDMap contains only
@@ -310,15 +315,28 @@ public class QuestionDef implements IFormElement, Localizable {
 		}
 	}
   
+	/**
+	 * @return the index of the choice with the given value, or -1 if there is no such choice. Choice
+	 * lists can run to thousands of items, so this is a hash lookup rather than a scan.
+	 */
 	public int getSelectedItemIndex(String value) {
-		if (selectItems != null) {
-			for (int i = 0; i < selectItems.size(); i++) {
-				if (((String)selectItems.elementAt(i)).equals(value)) {
-					return i;
-				}
+		OrderedHashtable choices = (selectItemIDs != null ? selectItemIDs : selectItems);
+		if (choices == null || value == null) {
+			return -1;
+		}
+		
+		Hashtable index = selectValueIndex;
+		if (index == null) {
+			index = new Hashtable();
+			for (int i = choices.size() - 1; i >= 0; i--) {
+				//iterate backwards so the first of any duplicate values wins, as with a scan
+				index.put(choices.elementAt(i), new Integer(i));
 			}
+			selectValueIndex = index;
 		}
-		return -1;
+		
+		Integer i = (Integer)index.get(value);
+		return (i != null ? i.intValue() : -1);
 	}
 		
 	/*
@@ -69,7 +69,12 @@ public class Condition extends Triggerable {
 	
 	public void apply (TreeReference ref, Object rawResult, IFormDataModel model, FormDef f) {
 		boolean result = ((Boolean)rawResult).booleanValue();
-		performAction(((DataModelTree)model).resolveReference(ref), result ? trueAction : falseAction);
+		TreeElement node = ((DataModelTree)model).resolveReference(ref);
+		boolean wasRelevant = node.isRelevant();
+		performAction(node, result ? trueAction : falseAction);
+		if (node.isRelevant() != wasRelevant) {
+			f.structureChanged();
+		}
 	}
 
 	public boolean canCascade () {
@@ -19,6 +19,7 @@ package org.javarosa.core.model.condition;
 import java.util.Vector;
 
 import org.javarosa.core.model.IFormDataModel;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.util.externalizable.Externalizable;
 
 public interface IConditionExpr extends Externalizable {
@@ -26,4 +27,6 @@ public interface IConditionExpr extends Externalizable {
 	Object evalRaw (IFormDataModel model, EvaluationContext evalContext);
 	String evalReadable (IFormDataModel model, EvaluationContext evalContext);
 	Vector getTriggers (); /* vector of TreeReference */
+	boolean isVolatile (EvaluationContext evalContext); /* true if the value can change without any trigger changing, e.g. now() */
+	void compile (IFormDataModel model, TreeReference contextRef); /* prepare for repeated evaluation from contexts matching generic contextRef */
 }
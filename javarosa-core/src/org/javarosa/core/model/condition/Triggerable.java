@@ -21,10 +21,12 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Vector;
 
+import org.javarosa.core.api.IInstrumentation;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.IFormDataModel;
 import org.javarosa.core.model.instance.DataModelTree;
 import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.services.Instrumentation;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapList;
@@ -36,6 +38,7 @@ public abstract class Triggerable implements Externalizable {
 	public IConditionExpr expr;
 	public Vector targets;
 	public TreeReference contextRef;  //generic ref used to turn triggers into absolute references
+	public int rank = -1; //position in the form's topologically-ordered triggerable list; assigned in FormDef.finalizeTriggerables
 		
 	public Triggerable () {
 		
@@ -54,6 +57,9 @@ public abstract class Triggerable implements Externalizable {
 	public abstract boolean canCascade ();
 	
 	public void apply (IFormDataModel model, EvaluationContext evalContext, FormDef f) {
+		IInstrumentation inst = Instrumentation._();
+		long start = (inst == null ? 0 : System.nanoTime());
+
 		Object result = eval(model, evalContext);
 
 		for (int i = 0; i < targets.size(); i++) {
@@ -64,6 +70,18 @@ public abstract class Triggerable implements Externalizable {
 				apply(affectedRef, result, model, f);
 			}
 		}		
+
+		if (inst != null) {
+			Instrumentation.record(inst, IInstrumentation.TRIGGERABLE_APPLY, expr.toString(), start);
+		}
+	}
+	
+	/**
+	 * Precompile the expression for evaluation against 'model'. Called by the
+	 * form once its triggerables are finalized; apply() works either way.
+	 */
+	public void compile (IFormDataModel model) {
+		expr.compile(model, contextRef);
 	}
 	
 	public void addTarget (TreeReference target) {
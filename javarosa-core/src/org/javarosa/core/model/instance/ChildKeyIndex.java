@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.core.model.instance;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * An index of the same-named children of a node (usually the instances of a
+ * repeat) by the value of one of their own children, the key: e.g. the
+ * household instances by their 'id'. What counts as equal keys is up to the
+ * caller, who supplies a KeyFunction; an index keeps one table per function.
+ *
+ * Tables are built on first lookup and thrown away as soon as anything they
+ * were built from changes: a row or key node being added or removed, changing
+ * value or changing relevance. Nodes know which indexes they are part of (see
+ * TreeElement.invalidateIndexes()), so the index itself never has to rescan to
+ * find out whether it is still valid.
+ *
+ * Get one with TreeElement.getChildKeyIndex().
+ */
+public class ChildKeyIndex {
+	/**
+	 * Computes the key of a row from its key node
+	 */
+	public interface KeyFunction {
+		/**
+		 * @param keyNode The row's key node; null if the row doesn't have
+		 * exactly one
+		 * @return The key, compared with equals(); null if this row can't be
+		 * keyed, in which case it is returned by every lookup
+		 */
+		public Object getKey (TreeElement keyNode);
+	}
+
+	private TreeElement parent;
+	private String name;
+	private String keyName;
+
+	private Hashtable tables; // <KeyFunction, Hashtable<Object, Vector<TreeElement>>>
+	private Hashtable unkeyed; // <KeyFunction, Vector<TreeElement>>: rows that have no key under each function
+	private Vector members; // <TreeElement>: rows and key nodes this index has registered with
+
+	ChildKeyIndex (TreeElement parent, String name, String keyName) {
+		this.parent = parent;
+		this.name = name;
+		this.keyName = keyName;
+		this.tables = new Hashtable();
+		this.unkeyed = new Hashtable();
+	}
+
+	/**
+	 * @return The rows whose key under f equals any of keys, plus any rows f
+	 * couldn't compute a key for, in multiplicity order. Callers still have to
+	 * check rows of the second kind themselves.
+	 */
+	public Vector lookup (KeyFunction f, Object[] keys) {
+		Hashtable table = (Hashtable)tables.get(f);
+		if (table == null) {
+			table = build(f);
+		}
+
+		Vector rows = (Vector)unkeyed.get(f);
+		for (int i = 0; i < keys.length; i++) {
+			Vector matches = (Vector)table.get(keys[i]);
+			if (matches != null) {
+				rows = merge(rows, matches);
+			}
+		}
+		return (rows == unkeyed.get(f) ? copy(rows) : rows);
+	}
+
+	private Hashtable build (KeyFunction f) {
+		Vector rows = parent.getChildrenWithName(name);
+		boolean register = (members == null);
+		if (register) {
+			members = new Vector();
+		}
+
+		Hashtable table = new Hashtable();
+		Vector others = new Vector();
+		for (int i = 0; i < rows.size(); i++) {
+			TreeElement row = (TreeElement)rows.elementAt(i);
+			//like resolving row/keyName, which fails if the name is ambiguous
+			TreeElement keyNode = (row.getChildMultiplicity(keyName) == 1 ? row.getChild(keyName, TreeReference.DEFAULT_MUTLIPLICITY) : null);
+			if (register) {
+				register(row);
+				if (keyNode != null) {
+					register(keyNode);
+				}
+			}
+
+			Object key = f.getKey(keyNode);
+			if (key == null) {
+				others.addElement(row);
+			} else {
+				Vector matches = (Vector)table.get(key);
+				if (matches == null) {
+					matches = new Vector();
+					table.put(key, matches);
+				}
+				matches.addElement(row);
+			}
+		}
+
+		tables.put(f, table);
+		unkeyed.put(f, others);
+		return table;
+	}
+
+	private void register (TreeElement node) {
+		node.addIndex(this);
+		members.addElement(node);
+	}
+
+	/**
+	 * Drop all tables; called by the nodes the index was built from when they change
+	 */
+	void invalidate () {
+		if (members != null) {
+			for (Enumeration e = members.elements(); e.hasMoreElements(); ) {
+				((TreeElement)e.nextElement()).removeIndex(this);
+			}
+			members = null;
+		}
+		tables.clear();
+		unkeyed.clear();
+	}
+
+	private static Vector copy (Vector v) {
+		Vector c = new Vector(v.size());
+		for (int i = 0; i < v.size(); i++) {
+			c.addElement(v.elementAt(i));
+		}
+		return c;
+	}
+
+	//merge two lists of rows, each in multiplicity order
+	private static Vector merge (Vector a, Vector b) {
+		Vector merged = new Vector(a.size() + b.size());
+		int i = 0;
+		int j = 0;
+		while (i < a.size() || j < b.size()) {
+			if (j == b.size() || (i < a.size() && ((TreeElement)a.elementAt(i)).getMult() < ((TreeElement)b.elementAt(j)).getMult())) {
+				merged.addElement(a.elementAt(i++));
+			} else {
+				merged.addElement(b.elementAt(j++));
+			}
+		}
+		return merged;
+	}
+}
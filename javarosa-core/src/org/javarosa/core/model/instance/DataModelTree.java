@@ -24,6 +24,7 @@ import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
+import org.javarosa.core.api.IInstrumentation;
 import org.javarosa.core.model.Constants;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.IDataReference;
@@ -34,6 +35,7 @@ import org.javarosa.core.model.util.restorable.Restorable;
 import org.javarosa.core.model.util.restorable.RestoreUtils;
 import org.javarosa.core.model.utils.IDataModelVisitor;
 import org.javarosa.core.services.ITransportManager;
+import org.javarosa.core.services.Instrumentation;
 import org.javarosa.core.services.TransportManager;
 import org.javarosa.core.services.storage.IStorageUtility;
 import org.javarosa.core.services.storage.Persistable;
@@ -109,7 +111,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 		if (root.getNumChildren() == 0)
 			throw new RuntimeException("root node has no children");
 
-		return (TreeElement) root.getChildren().elementAt(0);
+		return root.getChildAt(0);
 	}
 
 	// throws classcastexception if not using XPathReference
@@ -136,8 +138,8 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 			return false;
 
 		// strip out dest node info and get dest parent
-		String dstName = (String) to.names.lastElement();
-		int dstMult = ((Integer) to.multiplicity.lastElement()).intValue();
+		String dstName = to.getName(to.size() - 1);
+		int dstMult = to.getMultiplicity(to.size() - 1);
 		TreeReference toParent = to.getParentRef();
 
 		TreeElement parent = resolveReference(toParent);
@@ -200,13 +202,25 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 	// ref is '/'
 	// can be used to retrieve template nodes
 	public TreeElement resolveReference(TreeReference ref) {
+		IInstrumentation inst = Instrumentation._();
+		if (inst == null) {
+			return resolve(ref);
+		}
+
+		long start = System.nanoTime();
+		TreeElement node = resolve(ref);
+		Instrumentation.record(inst, IInstrumentation.RESOLVE_REFERENCE, ref.getGenericRef().toString(), start);
+		return node;
+	}
+
+	private TreeElement resolve(TreeReference ref) {
 		if (!ref.isAbsolute())
 			return null;
 
 		TreeElement node = root;
 		for (int i = 0; i < ref.size(); i++) {
-			String name = (String) ref.names.elementAt(i);
-			int mult = ((Integer) ref.multiplicity.elementAt(i)).intValue();
+			String name = ref.getName(i);
+			int mult = ref.getMultiplicity(i);
 			if (mult == TreeReference.INDEX_UNBOUND) {
 				if (node.getChildMultiplicity(name) == 1) {
 					mult = 0;
@@ -235,8 +249,8 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 		Vector nodes = new Vector();
 		TreeElement cur = root;
 		for (int i = 0; i < ref.size(); i++) {
-			String name = (String) ref.names.elementAt(i);
-			int mult = ((Integer) ref.multiplicity.elementAt(i)).intValue();
+			String name = ref.getName(i);
+			int mult = ref.getMultiplicity(i);
 			if (mult == TreeReference.INDEX_UNBOUND) {
 				if (cur.getChildMultiplicity(name) == 1) {
 					mult = 0;
@@ -278,8 +292,21 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 		if (!ref.isAbsolute())
 			return null;
 
+		IInstrumentation inst = Instrumentation._();
+		long start = (inst == null ? 0 : System.nanoTime());
+
 		Vector v = new Vector();
 		expandReference(ref, TreeReference.rootRef(), root, v, includeTemplates);
+
+		//every match has the same generic form as ref, so let them share it
+		TreeReference generic = ref.getGenericRef();
+		for (int i = 0; i < v.size(); i++) {
+			((TreeReference)v.elementAt(i)).shareGenericRef(generic);
+		}
+
+		if (inst != null) {
+			Instrumentation.record(inst, IInstrumentation.EXPAND_REFERENCE, ref.getGenericRef().toString(), start);
+		}
 		return v;
 	}
 
@@ -297,9 +324,8 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 		if (depth == sourceRef.size()) {
 			refs.addElement(templateRef);
 		} else if (node.getNumChildren() > 0) {
-			String name = (String) sourceRef.names.elementAt(depth);
-			int mult = ((Integer) sourceRef.multiplicity.elementAt(depth))
-					.intValue();
+			String name = sourceRef.getName(depth);
+			int mult = sourceRef.getMultiplicity(depth);
 
 			Vector children = new Vector();
 			if (mult == TreeReference.INDEX_UNBOUND) {
@@ -331,9 +357,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 				TreeReference newTemplateRef = (children.size() == 1 ? templateRef
 						: templateRef.clone()); // don't clone templateRef
 				// unnecessarily
-				newTemplateRef.names.addElement(child.getName());
-				newTemplateRef.multiplicity.addElement(new Integer(child
-						.getMult()));
+				newTemplateRef.add(child.getName(), child.getMult());
 
 				expandReference(sourceRef, newTemplateRef, child, refs,
 						includeTemplates);
@@ -357,7 +381,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 
 		TreeElement node = root;
 		for (int i = 0; i < ref.size(); i++) {
-			String name = (String) ref.names.elementAt(i);
+			String name = ref.getName(i);
 
 			TreeElement newNode = node.getChild(name,
 					TreeReference.INDEX_TEMPLATE);
@@ -391,8 +415,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 				TreeElement n2 = (k == 0 ? b : a);
 
 				for (int i = 0; i < n1.getNumChildren(); i++) {
-					TreeElement child1 = (TreeElement) n1.getChildren()
-							.elementAt(i);
+					TreeElement child1 = n1.getChildAt(i);
 					if (child1.repeatable)
 						continue;
 					TreeElement child2 = n2.getChild(child1.getName(), 0);
@@ -405,7 +428,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 
 			// compare children
 			for (int i = 0; i < a.getNumChildren(); i++) {
-				TreeElement childA = (TreeElement) a.getChildren().elementAt(i);
+				TreeElement childA = a.getChildAt(i);
 				if (childA.repeatable)
 					continue;
 				TreeElement childB = b.getChild(childA.getName(), 0);
@@ -582,9 +605,9 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 		TreeElement node = root;
 
 		for (int k = 0; k < ref.size(); k++) {
-			String name = (String) ref.names.elementAt(k);
+			String name = ref.getName(k);
 			int count = node.getChildMultiplicity(name);
-			int mult = ((Integer) ref.multiplicity.elementAt(k)).intValue();
+			int mult = ref.getMultiplicity(k);
 
 			TreeElement child;
 			if (k < ref.size() - 1) {
@@ -594,7 +617,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 					} else {
 						// will use existing (if one and only one) or create new
 						mult = 0;
-						ref.multiplicity.setElementAt(new Integer(0), k);
+						ref.setMultiplicity(k, 0);
 					}
 				}
 
@@ -605,7 +628,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 						// create
 						child = new TreeElement(name, count);
 						node.addChild(child);
-						ref.multiplicity.setElementAt(new Integer(count), k);
+						ref.setMultiplicity(k, count);
 					} else {
 						return null; // intermediate node does not exist
 					}
@@ -624,7 +647,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 					// create new
 					child = new TreeElement(name, count);
 					node.addChild(child);
-					ref.multiplicity.setElementAt(new Integer(count), k);
+					ref.setMultiplicity(k, count);
 				} else {
 					return null; // final node must be a newly-created node
 				}
@@ -704,7 +727,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
         TreeElement names = dm.resolveReference(RestoreUtils.absRef("namespace", dm));
         if (names != null) {
             for (int i = 0; i < names.getNumChildren(); i++) {
-            	TreeElement child = (TreeElement)names.getChildren().elementAt(i);
+            	TreeElement child = names.getChildAt(i);
             	String name = child.getName();
             	Object value = RestoreUtils.getValue("namespace/" + name, dm);
             	if (value != null){
@@ -728,8 +751,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 	public static TreeElement processSavedDataModel(
 			TreeElement newInstanceRoot, DataModelTree template, FormDef f) {
 		TreeElement newModelRoot = template.getRoot().deepCopy(true);
-		TreeElement incomingRoot = (TreeElement) newInstanceRoot.getChildren()
-				.elementAt(0);
+		TreeElement incomingRoot = newInstanceRoot.getChildAt(0);
 
 		if (!newModelRoot.getName().equals(incomingRoot.getName())
 				|| incomingRoot.getMult() != 0) {
@@ -765,8 +787,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 		} else {
 			Vector names = new Vector();
 			for (int i = 0; i < node.getNumChildren(); i++) {
-				TreeElement child = (TreeElement) node.getChildren().elementAt(
-						i);
+				TreeElement child = node.getChildAt(i);
 				if (!names.contains(child.getName())) {
 					names.addElement(child.getName());
 				}
@@ -775,8 +796,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 			// remove all default repetitions from skeleton data model
 			// (_preserving_ templates, though)
 			for (int i = 0; i < node.getNumChildren(); i++) {
-				TreeElement child = (TreeElement) node.getChildren().elementAt(
-						i);
+				TreeElement child = node.getChildAt(i);
 				if (child.repeatable
 						&& child.getMult() != TreeReference.INDEX_TEMPLATE) {
 					node.removeChildAt(i);
@@ -790,8 +810,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 				throw new RuntimeException("sanity check failed");
 			}
 			for (int i = 0; i < node.getNumChildren(); i++) {
-				TreeElement child = (TreeElement) node.getChildren().elementAt(
-						i);
+				TreeElement child = node.getChildAt(i);
 				String expectedName = (String) names.elementAt(i);
 
 				if (!child.getName().equals(expectedName)) {
@@ -799,7 +818,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 					int j;
 
 					for (j = i + 1; j < node.getNumChildren(); j++) {
-						child2 = (TreeElement) node.getChildren().elementAt(j);
+						child2 = node.getChildAt(j);
 						if (child2.getName().equals(expectedName)) {
 							break;
 						}
@@ -809,14 +828,13 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 					}
 
 					node.removeChildAt(j);
-					node.getChildren().insertElementAt(child2, i);
+					node.insertChildAt(child2, i);
 				}
 			}
 			// java i hate you so much
 
 			for (int i = 0; i < node.getNumChildren(); i++) {
-				TreeElement child = (TreeElement) node.getChildren().elementAt(
-						i);
+				TreeElement child = node.getChildAt(i);
 				Vector newChildren = incoming.getChildrenWithName(child
 						.getName());
 
@@ -827,7 +845,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 				    for (int k = 0; k < newChildren.size(); k++) {
 				        TreeElement newChild = child.deepCopy(true);
 				        newChild.setMult(k);
-				        node.getChildren().insertElementAt(newChild, i + k + 1);
+				        node.insertChildAt(newChild, i + k + 1);
 				        populateNode(newChild, (TreeElement) newChildren.elementAt(k), childRef, f);
 				    }
 				    i += newChildren.size();
@@ -871,9 +889,9 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 	// TreeElement node = root;
 	//		
 	// for (int k = 0; k < ref.size(); k++) {
-	// String name = (String)ref.names.elementAt(k);
+	// String name = ref.getName(k);
 	// int count = node.getChildMultiplicity(name);
-	// int mult = ((Integer)ref.multiplicity.elementAt(k)).intValue();
+	// int mult = ref.getMultiplicity(k);
 	//			
 	// TreeElement child;
 	// if (mult >= 0 && mult < count) {
@@ -899,7 +917,7 @@ public class DataModelTree implements IFormDataModel, Persistable, Restorable {
 	// //create new
 	// child = new TreeElement(name, count);
 	// node.addChild(child);
-	// ref.multiplicity.setElementAt(new Integer(count), k);
+	// ref.setMultiplicity(k, count);
 	// } else {
 	// return null;
 	// }
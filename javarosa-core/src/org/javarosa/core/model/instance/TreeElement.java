@@ -20,6 +20,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import org.javarosa.core.model.Constants;
@@ -51,6 +52,7 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	 */
 	public int multiplicity;// TODO comment and make private
 	private Vector attributes = new Vector();
+	private boolean attributesShared; // 'attributes' may also belong to a copy of this node; see setAttribute()
 
 	public boolean repeatable;
 	// public boolean isAttribute; for when we support xml attributes as data
@@ -61,6 +63,13 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	 */
 	private IAnswerData value;
 	private Vector children = new Vector();
+	private Hashtable childIndex; // <String, Vector<TreeElement>>: children grouped by name, each group in
+	// multiplicity order (template first); null until first needed. see getChildrenByName()
+	private Hashtable keyIndexes; // <String, ChildKeyIndex>: indexes of children by key; see getChildKeyIndex()
+	private Vector indexedBy; // <ChildKeyIndex>: indexes this node is a row or key node of; see invalidateIndexes()
+	private SharedChildren sharedChildren; // non-null while 'children' is shared with copies of this node (or with the
+	// node this is a copy of); see deepCopy() and materialize()
+	private boolean templatesExcluded; // while sharing, the repeat templates in 'children' aren't children of this node
 
 	/* model properties */
 	public int dataType = Constants.DATATYPE_NULL;//TODO
@@ -94,7 +103,7 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	}
 
 	public boolean isLeaf() {
-		return (children.size() == 0);
+		return (getNumChildren() == 0);
 	}
 
 	/**
@@ -110,6 +119,7 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	public void setValue(IAnswerData value) {
 		if (isLeaf()) {
 			this.value = value;
+			invalidateIndexes();
 		} else {
 			throw new RuntimeException(
 					"Can't set data value for node that has children!");
@@ -118,20 +128,80 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 
 	public TreeElement getChild(String name, int multiplicity) {
 		if (name.equals(TreeReference.NAME_WILDCARD)) {
+			materialize();
 			return (TreeElement) this.children.elementAt(multiplicity);
 		} else {
-			for (int i = 0; i < this.children.size(); i++) {
-				TreeElement child = (TreeElement) this.children.elementAt(i);
-				if (name.equals(child.getName())
-						&& child.getMult() == multiplicity) {
-					return child;
-				}
+			Vector siblings = getChildrenByName(name);
+			int i = indexOfMult(siblings, multiplicity);
+			if (i != -1) {
+				return (TreeElement) siblings.elementAt(i);
 			}
 		}
 
 		return null;
 	}
 
+	/**
+	 * Get the (live, indexed) group of children with the given name, in
+	 * multiplicity order. The index is rebuilt after getChildren() has handed
+	 * out the list of children.
+	 * 
+	 * @param name
+	 * @return null if there are no children with that name
+	 */
+	private Vector getChildrenByName(String name) {
+		materialize();
+		if (childIndex == null) {
+			childIndex = new Hashtable();
+			for (int i = 0; i < children.size(); i++) {
+				TreeElement child = (TreeElement) children.elementAt(i);
+				if (child.getName() != null) {
+					Vector siblings = (Vector) childIndex.get(child.getName());
+					if (siblings == null) {
+						siblings = new Vector();
+						childIndex.put(child.getName(), siblings);
+					}
+					siblings.addElement(child);
+				}
+			}
+		}
+		return (Vector) childIndex.get(name);
+	}
+
+	/**
+	 * Find the position of the element with the given multiplicity in a group
+	 * of same-named children. Repeat instances are numbered contiguously after
+	 * the (optional) template, so the slot the multiplicity maps to is checked
+	 * first; a scan is only needed if the numbering has gaps.
+	 * 
+	 * @return -1 if not found
+	 */
+	private static int indexOfMult(Vector siblings, int multiplicity) {
+		if (siblings == null || siblings.size() == 0) {
+			return -1;
+		}
+
+		int i;
+		if (multiplicity == TreeReference.INDEX_TEMPLATE) {
+			i = 0;
+		} else if (((TreeElement) siblings.elementAt(0)).getMult() == TreeReference.INDEX_TEMPLATE) {
+			i = multiplicity + 1;
+		} else {
+			i = multiplicity;
+		}
+		if (i >= 0 && i < siblings.size()
+				&& ((TreeElement) siblings.elementAt(i)).getMult() == multiplicity) {
+			return i;
+		}
+
+		for (i = 0; i < siblings.size(); i++) {
+			if (((TreeElement) siblings.elementAt(i)).getMult() == multiplicity) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * 
 	 * Get all the child nodes of this element, with specific name
@@ -146,12 +216,14 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	private Vector getChildrenWithName(String name, boolean includeTemplate) {
 		Vector v = new Vector();
 
-		for (int i = 0; i < this.children.size(); i++) {
-			TreeElement child = (TreeElement) this.children.elementAt(i);
-			if ((child.getName().equals(name) || name
-					.equals(TreeReference.NAME_WILDCARD))
-					&& (includeTemplate || child.multiplicity != TreeReference.INDEX_TEMPLATE))
-				v.addElement(child);
+		materialize();
+		Vector siblings = (name.equals(TreeReference.NAME_WILDCARD) ? children : getChildrenByName(name));
+		if (siblings != null) {
+			for (int i = 0; i < siblings.size(); i++) {
+				TreeElement child = (TreeElement) siblings.elementAt(i);
+				if (includeTemplate || child.multiplicity != TreeReference.INDEX_TEMPLATE)
+					v.addElement(child);
+			}
 		}
 
 		return v;
@@ -188,27 +260,41 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		}
 
 		// try to keep things in order
+		Vector siblings = getChildrenByName(child.getName());
+		if (siblings == null) {
+			siblings = new Vector();
+			childIndex.put(child.getName(), siblings);
+		}
 		int i = children.size();
+		int j = siblings.size();
 		if (child.getMult() == TreeReference.INDEX_TEMPLATE) {
-			TreeElement anchor = getChild(child.getName(), 0);
-			if (anchor != null)
-				i = children.indexOf(anchor);
+			int anchor = indexOfMult(siblings, 0);
+			if (anchor != -1) {
+				i = children.indexOf(siblings.elementAt(anchor));
+				j = anchor;
+			}
 		} else {
-			TreeElement anchor = getChild(child.getName(),
+			int anchor = indexOfMult(siblings,
 					(child.getMult() == 0 ? TreeReference.INDEX_TEMPLATE
 							: child.getMult() - 1));
-			if (anchor != null)
-				i = children.indexOf(anchor) + 1;
+			if (anchor != -1) {
+				i = children.indexOf(siblings.elementAt(anchor)) + 1;
+				j = anchor + 1;
+			}
 		}
 		children.insertElementAt(child, i);
+		siblings.insertElementAt(child, j);
+		childrenChanged();
 
 		child.setRelevant(isRelevant(), true);
 		child.setEnabled(isEnabled(), true);
 	}
 
 	public void removeChild(TreeElement child) {
-		children.removeElement(child);
-
+		materialize();
+		if (children.removeElement(child)) {
+			unindexChild(child);
+		}
 	}
 
 	public void removeChild(String name, int multiplicity) {
@@ -230,15 +316,151 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	}
 
 	public void removeChildAt(int i) {
+		materialize();
+		TreeElement child = (TreeElement) children.elementAt(i);
 		children.removeElementAt(i);
+		unindexChild(child);
+	}
+
+	/**
+	 * Insert a child at an exact position, bypassing the ordering rules of
+	 * addChild(). Only for callers that are rearranging children themselves.
+	 */
+	void insertChildAt(TreeElement child, int i) {
+		materialize();
+		children.insertElementAt(child, i);
+		childIndex = null;
+		childrenChanged();
+	}
 
+	private void unindexChild(TreeElement child) {
+		childrenChanged();
+		if (childIndex != null) {
+			Vector siblings = (Vector) childIndex.get(child.getName());
+			if (siblings != null && siblings.removeElement(child)) {
+				return;
+			}
+		}
+		childIndex = null;
 	}
 
+	/**
+	 * Get the index of the children with the given name by the value of their
+	 * child 'keyName', e.g. the instances of a repeat by an id field. The index
+	 * is built on first lookup and kept up to date as nodes change.
+	 * 
+	 * @see ChildKeyIndex
+	 */
+	public ChildKeyIndex getChildKeyIndex(String name, String keyName) {
+		if (keyIndexes == null) {
+			keyIndexes = new Hashtable();
+		}
+
+		String key = name + "/" + keyName;
+		ChildKeyIndex index = (ChildKeyIndex) keyIndexes.get(key);
+		if (index == null) {
+			index = new ChildKeyIndex(this, name, keyName);
+			keyIndexes.put(key, index);
+		}
+		return index;
+	}
+
+	void addIndex(ChildKeyIndex index) {
+		if (indexedBy == null) {
+			indexedBy = new Vector();
+		}
+		indexedBy.addElement(index);
+	}
+
+	void removeIndex(ChildKeyIndex index) {
+		if (indexedBy != null) {
+			indexedBy.removeElement(index);
+		}
+	}
+
+	/**
+	 * Invalidate the indexes built from this node's value, relevance or
+	 * children. They unregister themselves from all their nodes, and register
+	 * again when rebuilt.
+	 */
+	private void invalidateIndexes() {
+		if (indexedBy != null) {
+			Vector indexes = indexedBy;
+			indexedBy = null;
+			for (int i = 0; i < indexes.size(); i++) {
+				((ChildKeyIndex) indexes.elementAt(i)).invalidate();
+			}
+		}
+	}
+
+	// the rows of this node's own indexes changed, and if this node is a row
+	// its key node may have come or gone
+	private void childrenChanged() {
+		if (keyIndexes != null) {
+			for (Enumeration e = keyIndexes.elements(); e.hasMoreElements();) {
+				((ChildKeyIndex) e.nextElement()).invalidate();
+			}
+		}
+		invalidateIndexes();
+	}
+
 	public int getChildMultiplicity(String name) {
-		return getChildrenWithName(name, false).size();
+		if (name.equals(TreeReference.NAME_WILDCARD)) {
+			return getChildrenWithName(name, false).size();
+		}
+
+		Vector siblings = getChildrenByName(name);
+		if (siblings == null) {
+			return 0;
+		}
+		int count = siblings.size();
+		if (count > 0 && ((TreeElement) siblings.elementAt(0)).getMult() == TreeReference.INDEX_TEMPLATE) {
+			count--;
+		}
+		return count;
 	}
 
+	/**
+	 * Copy this node, sharing (not copying) its list of children
+	 */
 	public TreeElement shallowCopy() {
+		TreeElement newNode = copyProperties();
+		materialize();
+		newNode.children = children;
+		return newNode;
+	}
+
+	/**
+	 * Copy this node and everything below it, optionally leaving out repeat
+	 * templates at every level.
+	 * 
+	 * The copy is made lazily: the new node shares this node's children until
+	 * either of them is asked for its children, at which point that node gets a
+	 * copy of just that level (see materialize()). Subtrees nobody looks into
+	 * are never copied, so creating a repeat instance or restoring a saved
+	 * instance from a template only pays for the nodes that are actually
+	 * visited; attributes, constraints and preload settings stay shared with
+	 * the template throughout. Both nodes behave exactly as if the copy had
+	 * been made up front.
+	 */
+	public TreeElement deepCopy(boolean includeTemplates) {
+		TreeElement newNode = copyProperties();
+
+		if (children != null && children.size() > 0) {
+			if (sharedChildren == null) {
+				sharedChildren = new SharedChildren();
+			}
+			sharedChildren.holders++;
+			newNode.children = children;
+			newNode.sharedChildren = sharedChildren;
+			newNode.templatesExcluded = (templatesExcluded || !includeTemplates);
+		}
+
+		return newNode;
+	}
+
+	// a copy of this node's own properties, without any children
+	private TreeElement copyProperties() {
 		TreeElement newNode = new TreeElement(name, multiplicity);
 		newNode.repeatable = repeatable;
 		newNode.dataType = dataType;
@@ -249,29 +471,54 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		newNode.preloadHandler = preloadHandler;
 		newNode.preloadParams = preloadParams;
 
-		newNode
-				.setAttributesFromSingleStringVector(getSingleStringAttributeVector());
+		if (attributes.size() > 0) {
+			newNode.attributes = attributes;
+			newNode.attributesShared = true;
+			attributesShared = true;
+		}
 		if (value != null) {
 			newNode.value = value.clone();
 		}
 
-		newNode.children = children;
 		return newNode;
 	}
 
-	public TreeElement deepCopy(boolean includeTemplates) {
-		TreeElement newNode = shallowCopy();
+	/**
+	 * Give this node a list of children of its own, if it still shares one
+	 * with a copy (see deepCopy()). Called before any child is handed out or
+	 * the list is changed, as from then on the children may be modified. The
+	 * children are copied in turn by deepCopy(), so only this one level is
+	 * actually copied now. The last node to give up the shared list keeps it.
+	 */
+	private void materialize() {
+		if (sharedChildren == null) {
+			return;
+		}
 
-		newNode.children = new Vector();
-		for (int i = 0; i < children.size(); i++) {
-			TreeElement child = (TreeElement) children.elementAt(i);
-			if (includeTemplates
-					|| child.getMult() != TreeReference.INDEX_TEMPLATE) {
-				newNode.addChild(child.deepCopy(includeTemplates));
+		Vector shared = children;
+		boolean includeTemplates = !templatesExcluded;
+		boolean last = (--sharedChildren.holders == 0);
+		sharedChildren = null;
+		templatesExcluded = false;
+
+		if (!last || !includeTemplates) {
+			children = new Vector(shared.size());
+			for (int i = 0; i < shared.size(); i++) {
+				TreeElement child = (TreeElement) shared.elementAt(i);
+				if (includeTemplates || child.getMult() != TreeReference.INDEX_TEMPLATE) {
+					children.addElement(child.deepCopy(includeTemplates));
+				}
 			}
+			childIndex = null;
+			childrenChanged();
 		}
 
-		return newNode;
+		// as in addChild(); the shared children were last set up for another parent
+		for (int i = 0; i < children.size(); i++) {
+			TreeElement child = (TreeElement) children.elementAt(i);
+			child.setRelevant(isRelevant(), true);
+			child.setEnabled(isEnabled(), true);
+		}
 	}
 
 	/* ==== MODEL PROPERTIES ==== */
@@ -318,6 +565,8 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		}
 
 		if (isRelevant() != oldRelevancy) {
+			invalidateIndexes();
+			materialize();
 			for (int i = 0; i < children.size(); i++) {
 				((TreeElement) children.elementAt(i)).setRelevant(isRelevant(),
 						true);
@@ -331,6 +580,9 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	}
 
 	public int getNumChildren() {
+		if (templatesExcluded) {
+			materialize();
+		}
 		return this.children.size();
 	}
 
@@ -343,6 +595,7 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		}
 
 		if (isEnabled() != oldEnabled) {
+			materialize();
 			for (int i = 0; i < children.size(); i++) {
 				((TreeElement) children.elementAt(i)).setEnabled(isEnabled(),
 						true);
@@ -393,6 +646,7 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	public void accept(ITreeVisitor visitor) {
 		visitor.visit(this);
 
+		materialize();
 		Enumeration en = children.elements();
 		while (en.hasMoreElements()) {
 			((TreeElement) en.nextElement()).accept(visitor);
@@ -469,6 +723,16 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		if (namespace == null)
 			namespace = "";
 
+		if (attributesShared) {
+			Vector copy = new Vector(attributes.size());
+			for (int i = 0; i < attributes.size(); i++) {
+				String[] attribut = (String[]) attributes.elementAt(i);
+				copy.addElement(new String[] { attribut[0], attribut[1], attribut[2] });
+			}
+			attributes = copy;
+			attributesShared = false;
+		}
+
 		for (int i = attributes.size() - 1; i >= 0; i--) {
 			String[] attribut = (String[]) attributes.elementAt(i);
 			if (attribut[0].equals(namespace) && attribut[1].equals(name)) {
@@ -516,6 +780,7 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 	 */
 	public void setAttributesFromSingleStringVector(Vector attStrings) {
 		this.attributes = new Vector();
+		this.attributesShared = false;
 		if (attStrings != null) {
 			for (int i = 0; i < attStrings.size(); i++) {
 				addSingleAttribute(i, attStrings);
@@ -596,6 +861,12 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		// directly.
 		// 3.2 if read boolean false then create tagged element and deserialize
 		// child
+		childIndex = null;
+		if (sharedChildren != null) {
+			sharedChildren.holders--;
+			sharedChildren = null;
+			templatesExcluded = false;
+		}
 		if (!ExtUtil.readBool(in)) {
 			// 1.
 			children = null;
@@ -663,6 +934,7 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		// directly.
 		// 3.2 if child type != TreeElement, write boolean false, then tagged
 		// child
+		materialize();
 		if (children == null) {
 			// 1.
 			ExtUtil.writeBool(out, false);
@@ -729,10 +1001,25 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		this.preloadParams = preloadParams;
 	}
 
+	/**
+	 * Get the list of children itself, to change it directly. As the caller
+	 * may do anything to it, the child indexes are dropped and are rebuilt
+	 * the next time they are needed; make any changes before this node is used
+	 * again. To just go through the children, use getNumChildren() and
+	 * getChildAt().
+	 */
 	public Vector getChildren() {
+		materialize();
+		childIndex = null;
+		childrenChanged();
 		return children;
 	}
 
+	public TreeElement getChildAt(int i) {
+		materialize();
+		return (TreeElement) children.elementAt(i);
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -745,6 +1032,11 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		return multiplicity;
 	}
 
+	/**
+	 * Renumbering repeat instances in place (as when one is deleted) keeps the
+	 * parent's child index valid, as the index is ordered by position and each
+	 * lookup confirms the multiplicity of the element it finds.
+	 */
 	public void setMult(int multiplicity) {
 		this.multiplicity = multiplicity;
 	}
@@ -753,4 +1045,11 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 		return value;
 	}
 
+	/**
+	 * The number of nodes sharing a list of children
+	 */
+	private static class SharedChildren {
+		int holders = 1;
+	}
+
 }
\ No newline at end of file
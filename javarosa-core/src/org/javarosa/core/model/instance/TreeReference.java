@@ -27,6 +27,15 @@ import org.javarosa.core.util.externalizable.ExtWrapList;
 import org.javarosa.core.util.externalizable.Externalizable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 
+/**
+ * A reference to a node (or, for generic references, a set of nodes) in a data
+ * model tree.
+ *
+ * Each level is stored as an interned name plus a multiplicity, in parallel
+ * arrays, so copying, comparing and hashing a reference never compares String
+ * contents or boxes an Integer. Use getName()/getMultiplicity() and
+ * setMultiplicity() to get at individual levels.
+ */
 public class TreeReference implements Externalizable {
 	public static final int DEFAULT_MUTLIPLICITY = 0;//multiplicity
 	public static final int INDEX_UNBOUND = -1;//multiplicity
@@ -35,9 +44,15 @@ public class TreeReference implements Externalizable {
 	
 	public static final String NAME_WILDCARD = "*";
 	
-	public int refLevel; //0 = context node, 1 = parent, 2 = grandparent ...
-	public Vector names; //Vector<String>
-	public Vector multiplicity; //Vector<Integer>
+	private int refLevel; //0 = context node, 1 = parent, 2 = grandparent ...
+	private String[] names; //interned (String.intern()), so levels compare by identity
+	private int[] multiplicity;
+	private int size;
+
+	private int pathHash; //hash of names and multiplicities
+	private boolean pathHashValid;
+	private TreeReference generic; //cached result of getGenericRef()
+	private boolean shared; //true for the generic refs handed out by getGenericRef(); these may not be modified
 	
 	public static TreeReference rootRef () {
 		TreeReference root = new TreeReference();
@@ -52,17 +67,80 @@ public class TreeReference implements Externalizable {
 	}
 	
 	public TreeReference () {
-		names = new Vector();
-		multiplicity = new Vector();		
+		this(4);
+	}
+
+	private TreeReference (int capacity) {
+		names = new String[capacity];
+		multiplicity = new int[capacity];
 	}
 
 	public int size () {
-		return names.size();
+		return size;
+	}
+
+	public String getName (int level) {
+		checkLevel(level);
+		return names[level];
+	}
+
+	public int getMultiplicity (int level) {
+		checkLevel(level);
+		return multiplicity[level];
+	}
+
+	public void setMultiplicity (int level, int mult) {
+		checkLevel(level);
+		checkMutable();
+		multiplicity[level] = mult;
+		modified();
+	}
+
+	public int getRefLevel () {
+		return refLevel;
+	}
+
+	public void setRefLevel (int refLevel) {
+		checkMutable();
+		this.refLevel = refLevel;
+		modified();
 	}
 	
 	public void add (String name, int index) {
-		names.addElement(name);
-		multiplicity.addElement(new Integer(index));
+		addInterned(name.intern(), index);
+	}
+
+	private void addInterned (String name, int index) {
+		checkMutable();
+		if (size == names.length) {
+			String[] newNames = new String[2 * size + 1];
+			int[] newMults = new int[2 * size + 1];
+			System.arraycopy(names, 0, newNames, 0, size);
+			System.arraycopy(multiplicity, 0, newMults, 0, size);
+			names = newNames;
+			multiplicity = newMults;
+		}
+		names[size] = name;
+		multiplicity[size] = index;
+		size++;
+		modified();
+	}
+
+	private void checkLevel (int level) {
+		if (level < 0 || level >= size) {
+			throw new ArrayIndexOutOfBoundsException(level);
+		}
+	}
+
+	private void checkMutable () {
+		if (shared) {
+			throw new RuntimeException("Attempted to modify shared generic reference " + toString());
+		}
+	}
+
+	private void modified () {
+		pathHashValid = false;
+		generic = null;
 	}
 	
 	public boolean isAbsolute () {
@@ -71,12 +149,11 @@ public class TreeReference implements Externalizable {
 	
 	//return a copy of the ref
 	public TreeReference clone () {
-		TreeReference newRef = new TreeReference();
+		TreeReference newRef = new TreeReference(size + 2);
 		newRef.refLevel = refLevel;
-		for (int i = 0; i < size(); i++) {
-			newRef.names.addElement(names.elementAt(i));
-			newRef.multiplicity.addElement(multiplicity.elementAt(i));
-		}
+		System.arraycopy(names, 0, newRef.names, 0, size);
+		System.arraycopy(multiplicity, 0, newRef.multiplicity, 0, size);
+		newRef.size = size;
 		return newRef;
 	}
 	
@@ -85,17 +162,19 @@ public class TreeReference implements Externalizable {
 	 * return true if we successfully got the parent, false if there were no higher levels
 	 */
 	public boolean removeLastLevel () {
-		int size = size();
 		if (size == 0) {
 			if (refLevel == REF_ABSOLUTE) {
 				return false;
 			} else {
+				checkMutable();
 				refLevel++;
+				modified();
 				return true;
 			}
 		} else {
-			names.removeElementAt(size - 1);
-			multiplicity.removeElementAt(size - 1);
+			checkMutable();
+			size--;
+			modified();
 			return true;
 		}
 	}
@@ -121,14 +200,14 @@ public class TreeReference implements Externalizable {
 
 			if (refLevel > 0) {
 				if (parentRef.refLevel != REF_ABSOLUTE && parentRef.size() == 0) {
-					parentRef.refLevel += refLevel;
+					parentRef.setRefLevel(parentRef.refLevel + refLevel);
 				} else {
 					return null;
 				}
 			}
 			
-			for (int i = 0; i < names.size(); i++) {
-				newRef.add((String)names.elementAt(i), ((Integer)multiplicity.elementAt(i)).intValue());
+			for (int i = 0; i < size; i++) {
+				newRef.addInterned(names[i], multiplicity[i]);
 			}
 
 			return newRef;			
@@ -147,17 +226,18 @@ public class TreeReference implements Externalizable {
 		} else if (contextRef.refLevel != REF_ABSOLUTE) {
 			return null;
 		} else {
-			TreeReference newRef = contextRef.clone();
 			int contextSize = contextRef.size();
 			if (refLevel > contextSize) {
 				return null; //tried to do '/..'
 			} else {			
-				for (int i = 0; i < refLevel; i++) {
-					newRef.removeLastLevel();
-				}
-				for (int i = 0; i < size(); i++) {
-					newRef.add((String)names.elementAt(i), ((Integer)multiplicity.elementAt(i)).intValue());
-				}		
+				int keep = contextSize - refLevel;
+				TreeReference newRef = new TreeReference(keep + size);
+				newRef.refLevel = REF_ABSOLUTE;
+				System.arraycopy(contextRef.names, 0, newRef.names, 0, keep);
+				System.arraycopy(contextRef.multiplicity, 0, newRef.multiplicity, 0, keep);
+				System.arraycopy(names, 0, newRef.names, keep, size);
+				System.arraycopy(multiplicity, 0, newRef.multiplicity, keep, size);
+				newRef.size = keep + size;
 				return newRef;
 			}
 		}
@@ -172,8 +252,8 @@ public class TreeReference implements Externalizable {
 		TreeReference newRef = anchor(contextRef);
 		
 		for (int i = 0; i < contextRef.size() && i < newRef.size(); i++) {
-			if (((String)contextRef.names.elementAt(i)).equals(newRef.names.elementAt(i))) {
-				newRef.multiplicity.setElementAt(contextRef.multiplicity.elementAt(i), i);
+			if (contextRef.names[i] == newRef.names[i]) {
+				newRef.multiplicity[i] = contextRef.multiplicity[i];
 			} else {
 				break;
 			}
@@ -185,11 +265,50 @@ public class TreeReference implements Externalizable {
 	//turn unambiguous ref into a generic ref
 	public TreeReference genericize () {	
 		TreeReference genericRef = clone();
-		for (int i = 0; i < genericRef.size(); i++) {
-			genericRef.multiplicity.setElementAt(new Integer(TreeReference.INDEX_UNBOUND), i);
+		for (int i = 0; i < genericRef.size; i++) {
+			genericRef.multiplicity[i] = INDEX_UNBOUND;
 		}
 		return genericRef;
 	}
+
+	/**
+	 * Get the generic form of this reference, like genericize(), but cached on
+	 * this reference, so asking again allocates nothing. References produced by
+	 * DataModelTree.expandReference() share the generic form of the reference
+	 * they were expanded from. The returned reference may not be modified; use
+	 * genericize() for a private copy.
+	 */
+	public TreeReference getGenericRef () {
+		if (shared) {
+			return this;
+		} else if (generic == null) {
+			TreeReference g = genericize();
+			g.shared = true;
+			generic = g;
+		}
+		return generic;
+	}
+
+	/**
+	 * Use an existing generic ref as this reference's generic form, if it is
+	 * one (see getGenericRef())
+	 */
+	void shareGenericRef (TreeReference g) {
+		if (g.shared && generic == null && !shared && g.isGenericOf(this)) {
+			generic = g;
+		}
+	}
+
+	//true if 'this' is a generic ref equal to the genericized form of 'ref'
+	private boolean isGenericOf (TreeReference ref) {
+		if (refLevel != ref.refLevel || size != ref.size)
+			return false;
+		for (int i = 0; i < size; i++) {
+			if (names[i] != ref.names[i])
+				return false;
+		}
+		return true;
+	}
 	
 	//returns true if 'this' is parent of 'child'
 	//return true if 'this' equals 'child' only if properParent is false
@@ -199,13 +318,13 @@ public class TreeReference implements Externalizable {
 		if (child.size() < size() + (properParent ? 1 : 0))
 			return false;
 		
-		for (int i = 0; i < size(); i++) {
-			if (!((String)names.elementAt(i)).equals((String)child.names.elementAt(i))) {
+		for (int i = 0; i < size; i++) {
+			if (names[i] != child.names[i]) {
 				return false;
 			}
 			
-			int parMult = ((Integer)multiplicity.elementAt(i)).intValue();
-			int childMult = ((Integer)child.multiplicity.elementAt(i)).intValue();
+			int parMult = multiplicity[i];
+			int childMult = child.multiplicity[i];
 			if (parMult != INDEX_UNBOUND && parMult != childMult && !(i == 0 && parMult == 0 && childMult == INDEX_UNBOUND)) {
 				return false;
 			}
@@ -220,14 +339,12 @@ public class TreeReference implements Externalizable {
 		} else if (o instanceof TreeReference) {
 			TreeReference ref = (TreeReference)o;
 			
-			if (this.refLevel == ref.refLevel && this.size() == ref.size()) {
-				for (int i = 0; i < this.size(); i++) {
-					String nameA = (String)this.names.elementAt(i);
-					String nameB = (String)ref.names.elementAt(i);
-					int multA = ((Integer)this.multiplicity.elementAt(i)).intValue();
-					int multB = ((Integer)ref.multiplicity.elementAt(i)).intValue();
+			if (this.refLevel == ref.refLevel && this.size == ref.size) {
+				for (int i = 0; i < this.size; i++) {
+					int multA = this.multiplicity[i];
+					int multB = ref.multiplicity[i];
 					
-					if (!nameA.equals(nameB)) {
+					if (this.names[i] != ref.names[i]) {
 						return false;
 					} else if (multA != multB) {
 						if (i == 0 && (multA == 0 || multA == INDEX_UNBOUND) && (multB == 0 || multB == INDEX_UNBOUND)) {
@@ -247,16 +364,20 @@ public class TreeReference implements Externalizable {
 	}
 	
 	public int hashCode () {
-		int hash = (new Integer(refLevel)).hashCode();
-		for (int i = 0; i < size(); i++) {
-			Integer mult = (Integer)multiplicity.elementAt(i);
-			if (i == 0 && mult.intValue() == INDEX_UNBOUND)
-				mult = new Integer(0);
+		if (!pathHashValid) {
+			int h = 0;
+			for (int i = 0; i < size; i++) {
+				int mult = multiplicity[i];
+				if (i == 0 && mult == INDEX_UNBOUND)
+					mult = 0;
 			
-			hash ^= ((String)names.elementAt(i)).hashCode();
-			hash ^= mult.hashCode();
+				h = 31 * h + names[i].hashCode();
+				h = 31 * h + mult;
+			}
+			pathHash = h;
+			pathHashValid = true;
 		}
-		return hash;
+		return 31 * pathHash + refLevel;
 	}
 	
 	public String toString () {
@@ -272,8 +393,8 @@ public class TreeReference implements Externalizable {
 				sb.append("../");
 		}
 		for (int i = 0; i < size(); i++) {
-			String name = (String)names.elementAt(i);
-			int mult = ((Integer)multiplicity.elementAt(i)).intValue();
+			String name = getName(i);
+			int mult = multiplicity[i];
 			
 			sb.append(name);
 			
@@ -298,13 +419,28 @@ public class TreeReference implements Externalizable {
 	public void readExternal(DataInputStream in, PrototypeFactory pf)
 			throws IOException, DeserializationException {
 		refLevel = ExtUtil.readInt(in);
-		names = (Vector)ExtUtil.read(in, new ExtWrapList(String.class), pf);
-		multiplicity = (Vector)ExtUtil.read(in, new ExtWrapList(Integer.class), pf);
+		Vector names = (Vector)ExtUtil.read(in, new ExtWrapList(String.class), pf);
+		Vector mults = (Vector)ExtUtil.read(in, new ExtWrapList(Integer.class), pf);
+
+		this.names = new String[names.size()];
+		multiplicity = new int[names.size()];
+		size = 0;
+		modified();
+		for (int i = 0; i < names.size(); i++) {
+			add((String)names.elementAt(i), ((Integer)mults.elementAt(i)).intValue());
+		}
 	}
 
 	public void writeExternal(DataOutputStream out) throws IOException {
+		Vector names = new Vector();
+		Vector mults = new Vector();
+		for (int i = 0; i < size; i++) {
+			names.addElement(getName(i));
+			mults.addElement(new Integer(multiplicity[i]));
+		}
+
 		ExtUtil.writeNumeric(out, refLevel);
 		ExtUtil.write(out, new ExtWrapList(names));
-		ExtUtil.write(out, new ExtWrapList(multiplicity));
+		ExtUtil.write(out, new ExtWrapList(mults));
 	}
 }
@@ -20,6 +20,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Date;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import org.javarosa.core.model.Constants;
@@ -205,7 +206,7 @@ public class CompactModelWrapper implements WrappingStorageUtility.Serialization
 		if (isGroup) {
 			Vector childTypes = new Vector();
 			for (int i = 0; i < templ.getNumChildren(); i++) {
-				String childName = ((TreeElement)templ.getChildren().elementAt(i)).getName();				
+				String childName = templ.getChildAt(i).getName();				
 				if (!childTypes.contains(childName)) {
 					childTypes.addElement(childName);
 				}
@@ -266,7 +267,7 @@ public class CompactModelWrapper implements WrappingStorageUtility.Serialization
 		if (isGroup) {
 			Vector childTypesHandled = new Vector();
 			for (int i = 0; i < templ.getNumChildren(); i++) {
-				String childName = ((TreeElement)templ.getChildren().elementAt(i)).getName();
+				String childName = templ.getChildAt(i).getName();
 				if (!childTypesHandled.contains(childName)) {
 					childTypesHandled.addElement(childName);
 					
@@ -437,6 +438,9 @@ public class CompactModelWrapper implements WrappingStorageUtility.Serialization
 		case CHOICE_VALUE:
 			return s.getValue();
 		case CHOICE_INDEX:
+			if (s.index == -1 && s.question != null && s.xmlValue != null) {
+				s.index = s.question.getSelectedItemIndex(s.xmlValue);
+			}
 			if (s.index == -1) {
 				throw new RuntimeException("trying to serialize in choice-index mode but selections do not have indexes set!");
 			}
@@ -495,14 +499,17 @@ public class CompactModelWrapper implements WrappingStorageUtility.Serialization
 			throw new RuntimeException("model is not compatible with formdef");
 		}
 		
+		Hashtable questions = new Hashtable();
+		indexQuestionsByRef(f, questions);
+		
 		TreeElement root = model.getRoot();
-		linkSelectQuestions(root, initRef(root), f);
+		linkSelectQuestions(root, initRef(root), questions);
 	}
 		
-	private static void linkSelectQuestions (TreeElement node, TreeReference ref, FormDef f) {
+	private static void linkSelectQuestions (TreeElement node, TreeReference ref, Hashtable questions) {
 		for (int i = 0; i < node.getNumChildren(); i++) {
-			TreeElement child = (TreeElement)node.getChildren().elementAt(i);
-			linkSelectQuestions(child, extendRef(ref, child.getName(), TreeReference.INDEX_UNBOUND), f);
+			TreeElement child = node.getChildAt(i);
+			linkSelectQuestions(child, extendRef(ref, child.getName(), TreeReference.INDEX_UNBOUND), questions);
 		}
 		
 		IAnswerData val = node.getValue();
@@ -515,7 +522,7 @@ public class CompactModelWrapper implements WrappingStorageUtility.Serialization
 		}
 			
 		if (selections != null) {
-			QuestionDef q = findQuestionByRef(ref, f);
+			QuestionDef q = (QuestionDef)questions.get(ref);
 			if (q == null) {
 				throw new RuntimeException("can't find question to link");
 			}
@@ -527,18 +534,18 @@ public class CompactModelWrapper implements WrappingStorageUtility.Serialization
 		}
 	}
 		
-	private static QuestionDef findQuestionByRef (TreeReference ref, IFormElement fe) {
+	//map each question's bind reference to the question, so linking doesn't search the whole form per answer
+	private static void indexQuestionsByRef (IFormElement fe, Hashtable questions) { // <TreeReference, QuestionDef>
 		if (fe instanceof QuestionDef) {
 			QuestionDef q = (QuestionDef)fe;
 			TreeReference bind = (TreeReference)q.getBind().getReference();
-			return (ref.equals(bind) ? q : null);
+			if (!questions.containsKey(bind)) {
+				questions.put(bind, q);
+			}
 		} else {
 			for (int i = 0; i < fe.getChildren().size(); i++) {
-				QuestionDef ret = findQuestionByRef(ref, fe.getChild(i));
-				if (ret != null)
-					return ret;
+				indexQuestionsByRef(fe.getChild(i), questions);
 			}
-			return null;
 		}
 	}
 }
@@ -127,10 +127,8 @@ public class QuestionPreloader {
 			}
 			
 			public boolean handlePostProcess(TreeElement node, String params) {
-				Vector kids = node.getChildren();
-				Enumeration en = kids.elements();
-				while(en.hasMoreElements()) {
-					TreeElement kid = (TreeElement)en.nextElement();
+				for (int i = 0; i < node.getNumChildren(); i++) {
+					TreeElement kid = node.getChildAt(i);
 					if(kid.getName().equals("uid")) {
 						kid.setValue(new StringData(PropertyUtils.genGUID(25)));
 					}
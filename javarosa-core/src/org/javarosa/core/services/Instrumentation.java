@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.core.services;
+
+import org.javarosa.core.api.IInstrumentation;
+
+/**
+ * Holds the instrumentation the form engine reports its timings to. Nothing is
+ * registered by default, and instrumented code checks _() for null before reading
+ * the clock, so leaving instrumentation off costs one static field read per call.
+ */
+public class Instrumentation {
+	private static IInstrumentation instrumentation;
+
+	public static void registerInstrumentation (IInstrumentation theInstrumentation) {
+		instrumentation = theInstrumentation;
+	}
+
+	/**
+	 * @return The registered instrumentation, or null if instrumentation is off
+	 */
+	public static IInstrumentation _ () {
+		return instrumentation;
+	}
+
+	/**
+	 * Record a timing that started at 'start' (from System.nanoTime()) and ended now
+	 *
+	 * @return now, so consecutive phases can be timed back to back
+	 */
+	public static long record (IInstrumentation inst, String category, String key, long start) {
+		long now = System.nanoTime();
+		inst.record(category, key, now - start);
+		return now;
+	}
+}
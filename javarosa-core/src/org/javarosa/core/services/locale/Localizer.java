@@ -28,6 +28,7 @@ import org.javarosa.core.util.OrderedHashtable;
 import org.javarosa.core.util.UnregisteredLocaleException;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapLazy;
 import org.javarosa.core.util.externalizable.ExtWrapList;
 import org.javarosa.core.util.externalizable.ExtWrapListPoly;
 import org.javarosa.core.util.externalizable.ExtWrapMap;
@@ -45,8 +46,10 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
  */
 public class Localizer implements Externalizable {
 	private Vector locales; /* Vector<String> */
-	private OrderedHashtable localeResources; /* String -> Vector<LocaleDataSource> */
+	private OrderedHashtable localeResources; /* String -> Vector<LocaleDataSource> (or ExtWrapLazy until first used, if deserialized) */
 	private OrderedHashtable currentLocaleData; /* Hashtable{ String -> String } */
+	private Hashtable localeDataCache; /* String -> OrderedHashtable{ String -> String } */
+	private int localeDataLoads;
 	private String defaultLocale;
 	private String currentLocale;
 	private boolean fallbackDefaultLocale;
@@ -71,6 +74,7 @@ public class Localizer implements Externalizable {
 	public Localizer (boolean fallbackDefaultLocale, boolean fallbackDefaultForm) {
 		localeResources = new OrderedHashtable();
 		currentLocaleData = new OrderedHashtable(); 
+		localeDataCache = new Hashtable();
 		locales = new Vector();
 		defaultLocale = null;
 		currentLocale = null;
@@ -84,6 +88,8 @@ public class Localizer implements Externalizable {
 			Localizer l = (Localizer)o;
 			
 			//TODO: Compare all resources
+			loadAllLocaleResources();
+			l.loadAllLocaleResources();
 			return (ExtUtil.equals(locales, locales) &&
 					ExtUtil.equals(localeResources, l.localeResources) &&
 					ExtUtil.equals(defaultLocale, l.defaultLocale) &&
@@ -212,6 +218,7 @@ public class Localizer implements Externalizable {
 			throw new UnregisteredLocaleException("Attempted to set default to a locale that is not defined");
 		
 		this.defaultLocale = defaultLocale;
+		localeDataCache.clear(); //with fallback on, every locale's table is built on top of the default's
 	}
 	
 	/**
@@ -242,7 +249,7 @@ public class Localizer implements Externalizable {
 	 * 4. For each resource file for the current locale, load each definition
 	 */
 	private void loadCurrentLocaleResources() {
-		this.currentLocaleData = getLocaleData(currentLocale);
+		this.currentLocaleData = getLocaleMap(currentLocale);
 	}
 	
 	/**
@@ -277,10 +284,11 @@ public class Localizer implements Externalizable {
 		}
 		Vector resources = new Vector();
 		if(localeResources.containsKey(locale)) {
-			resources = (Vector)localeResources.get(locale);
+			resources = getLocaleResources(locale);
 		}
 		resources.addElement(resource);
 		localeResources.put(locale, resources);
+		localeDataCache.clear(); //this locale may also be the fallback for the others
 		
 		if(locale.equals(currentLocale)) {
 			loadCurrentLocaleResources();
@@ -296,7 +304,8 @@ public class Localizer implements Externalizable {
 	public OrderedHashtable getLocaleData (String locale) {
 		if(locale == null || !this.locales.contains(locale)) {
 			return null;
-		}
+		}
+		localeDataLoads++;
 		
 		//It's very important that any default locale contain the appropriate strings to localize the interface
 		//for any possible language. As such, we'll keep around a table with only the default locale keys to
@@ -311,7 +320,7 @@ public class Localizer implements Externalizable {
 		// If there's a default locale, we load all of its elements into memory first, then allow
 		// the current locale to overwrite any differences between the two.    
 		if (fallbackDefaultLocale && defaultLocale != null) {
-			Vector defaultResources = (Vector) localeResources.get(defaultLocale);
+			Vector defaultResources = getLocaleResources(defaultLocale);
 			for (int i = 0; i < defaultResources.size(); ++i) {
 				loadTable(data,((LocaleDataSource)defaultResources.elementAt(i)).getLocalizedText());
 			}
@@ -320,7 +329,7 @@ public class Localizer implements Externalizable {
 			}
 		}
 		
-		Vector resources = (Vector)localeResources.get(locale);
+		Vector resources = getLocaleResources(locale);
 		for(int i = 0 ; i < resources.size() ; ++i ) {
 			loadTable(data,((LocaleDataSource)resources.elementAt(i)).getLocalizedText());
 		}
@@ -354,17 +363,66 @@ public class Localizer implements Externalizable {
 	/**
 	 * Get the mappings for a locale, but throw an exception if locale is not defined.
 	 * 
+	 * Unlike getLocaleData, the mappings are built once and cached until a resource is registered, a locale
+	 * destroyed, or the default locale changed; the returned table is shared and must not be modified.
+	 * 
 	 * @param locale Locale
 	 * @return Text mappings for locale.
 	 * @throws UnregisteredLocaleException If locale is not defined or null.
 	 */
 	public OrderedHashtable getLocaleMap (String locale) {
-		OrderedHashtable mapping = getLocaleData(locale);
-		if (mapping == null)
-			throw new UnregisteredLocaleException("Attempted to access an undefined locale.");
+		OrderedHashtable mapping = (locale == null ? null : (OrderedHashtable)localeDataCache.get(locale));
+		if (mapping == null) {
+			mapping = getLocaleData(locale);
+			if (mapping == null)
+				throw new UnregisteredLocaleException("Attempted to access an undefined locale.");
+			localeDataCache.put(locale, mapping);
+		}
 		return mapping;
 	}
 	
+	/**
+	 * @return How many times the full mappings for a locale have been built from its resources. Lookups
+	 * served from the cached mappings (including default-locale fallbacks) do not count.
+	 */
+	public int getLocaleDataLoads () {
+		return localeDataLoads;
+	}
+	
+	/**
+	 * Get the data sources registered for a locale. A deserialized localizer only reads a locale's sources
+	 * the first time they're needed here, so forms with many languages don't pay for the ones never shown.
+	 * 
+	 * @param locale Locale
+	 * @return Vector<LocaleDataSource> for the locale, or null if none are registered
+	 */
+	private Vector getLocaleResources (String locale) {
+		Object resources = localeResources.get(locale);
+		if (resources instanceof ExtWrapLazy) {
+			try {
+				resources = ((ExtWrapLazy)resources).get();
+			} catch (DeserializationException de) {
+				throw new RuntimeException("Unable to read the resources for locale " + locale + ": " + de.getMessage());
+			}
+			localeResources.put(locale, resources);
+		}
+		return (Vector)resources;
+	}
+	
+	private void loadAllLocaleResources () {
+		for (Enumeration en = localeResources.keys(); en.hasMoreElements(); ) {
+			getLocaleResources((String)en.nextElement());
+		}
+	}
+	
+	/**
+	 * @return Whether the data sources for a locale have been read; always true unless this localizer was
+	 * deserialized and the locale hasn't been used since.
+	 */
+	public boolean isLocaleLoaded (String locale) {
+		return !(localeResources.get(locale) instanceof ExtWrapLazy);
+	}
+	
 	/**
 	 * Determine whether a locale has a mapping for a given text handle. Only tests the specified locale and form; does
 	 * not fallback to any default locale or text form.
@@ -378,7 +436,7 @@ public class Localizer implements Externalizable {
 		if (locale == null || !locales.contains(locale)) {
 			throw new UnregisteredLocaleException("Attempted to access an undefined locale (" + locale + ") while checking for a mapping for  " + textID);
 		}
-		Vector resources = (Vector)localeResources.get(locale);
+		Vector resources = getLocaleResources(locale);
 		for(Enumeration en = resources.elements(); en.hasMoreElements(); ) {
 			LocaleDataSource source = (LocaleDataSource)en.nextElement();
 			if(source.getLocalizedText().containsKey(textID)) {
@@ -404,6 +462,7 @@ public class Localizer implements Externalizable {
 		boolean removed = hasLocale(locale);
 		locales.removeElement(locale);
 		localeResources.remove(locale);
+		localeDataCache.clear();
 
 		if (locale.equals(defaultLocale))
 			defaultLocale = null;
@@ -604,7 +663,17 @@ public class Localizer implements Externalizable {
 		return args;
 	}
 	
-	public static String processArguments(String text, Hashtable args) {
+	/**
+	 * Split text into its literal pieces and ${...} args, so that it can be filled in repeatedly
+	 * without being rescanned.
+	 * 
+	 * @param text Text containing ${...} args
+	 * @return Literal text at even indexes and arg names at odd indexes; always starts and ends
+	 * with a (possibly empty) literal. An unterminated arg is treated as literal text.
+	 */
+	public static String[] parseTemplate(String text) {
+		Vector parts = new Vector();
+		int last = 0;
 		int i = text.indexOf("${");
 		while (i != -1) {
 			int j = text.indexOf("}", i);
@@ -612,17 +681,39 @@ public class Localizer implements Externalizable {
 				System.err.println("Warning: unterminated ${...} arg");
 				break;
 			}
-
-			String argName = text.substring(i + 2, j);
-			String argVal = (String)args.get(argName);
-			if (argVal != null) {
-				text = text.substring(0, i) + argVal + text.substring(j + 1);
-				j = i + argVal.length() - 1;
-			}
 			
-			i = text.indexOf("${", j + 1);
+			parts.addElement(text.substring(last, i));
+			parts.addElement(text.substring(i + 2, j));
+			last = j + 1;
+			i = text.indexOf("${", last);
 		}
-		return text;
+		parts.addElement(text.substring(last));
+		
+		String[] template = new String[parts.size()];
+		parts.copyInto(template);
+		return template;
+	}
+	
+	public static String processArguments(String text, Hashtable args) {
+		if (text.indexOf("${") == -1) {
+			return text;
+		}
+		
+		String[] template = parseTemplate(text);
+		StringBuffer sb = new StringBuffer(text.length());
+		for (int i = 0; i < template.length; i++) {
+			if (i % 2 == 0) {
+				sb.append(template[i]);
+			} else {
+				String argVal = (String)args.get(template[i]);
+				if (argVal != null) {
+					sb.append(argVal);
+				} else {
+					sb.append(arg(template[i]));
+				}
+			}
+		}
+		return sb.toString();
 	}
 	
 	public static String processArguments(String text, String[] args) {
@@ -663,7 +754,8 @@ public class Localizer implements Externalizable {
 	public void readExternal(DataInputStream dis, PrototypeFactory pf) throws IOException, DeserializationException {
 		fallbackDefaultLocale = ExtUtil.readBool(dis);
 		fallbackDefaultForm = ExtUtil.readBool(dis);
-		localeResources = (OrderedHashtable)ExtUtil.read(dis, new ExtWrapMap(String.class, new ExtWrapListPoly(), true),	pf);;
+		localeResources = (OrderedHashtable)ExtUtil.read(dis, new ExtWrapMap(String.class, new ExtWrapLazy(new ExtWrapListPoly()), true),	pf);
+		localeDataCache.clear();
 		locales = (Vector)ExtUtil.read(dis, new ExtWrapList(String.class));
 		setDefaultLocale((String)ExtUtil.read(dis, new ExtWrapNullable(String.class), pf));
 		String currentLocale = (String)ExtUtil.read(dis, new ExtWrapNullable(String.class), pf);
@@ -678,7 +770,7 @@ public class Localizer implements Externalizable {
 	public void writeExternal(DataOutputStream dos) throws IOException {
 		ExtUtil.writeBool(dos, fallbackDefaultLocale);
 		ExtUtil.writeBool(dos, fallbackDefaultForm);
-		ExtUtil.write(dos, new ExtWrapMap(localeResources, new ExtWrapListPoly()));
+		ExtUtil.write(dos, new ExtWrapMap(localeResources, new ExtWrapLazy(new ExtWrapListPoly())));
 		ExtUtil.write(dos, new ExtWrapList(locales));
 		ExtUtil.write(dos, new ExtWrapNullable(defaultLocale));
 		ExtUtil.write(dos, new ExtWrapNullable(currentLocale));
@@ -67,11 +67,9 @@ public class OrderedHashtable extends Hashtable {
     		throw new NullPointerException();
     	}
     	
-        int i = orderedKeys.indexOf(key);
-        if (i == -1)  {
+    	//check the hashtable rather than scanning orderedKeys; the two always hold the same keys
+        if (!containsKey(key))  {
             orderedKeys.addElement(key); 
-        } else {
-            orderedKeys.setElementAt(key, i);
         }
         return super.put(key, value);
     }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.core.util.externalizable;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * A DataInputStream that reads straight out of a ByteBuffer (heap, direct, or
+ * memory-mapped), so serialized data never has to be copied into an array or
+ * pass through a stream buffer. It can be handed to any readExternal().
+ *
+ * DataInputStream does no buffering of its own, so the buffer's position is
+ * always exactly where the last read left off; ExtUtil uses this to decode
+ * strings directly from the buffer rather than through readUTF().
+ */
+public class ByteBufferDataInputStream extends DataInputStream {
+	private ByteBuffer buffer;
+	private char[] chars = new char[64]; //scratch space for decoding strings
+
+	public ByteBufferDataInputStream (ByteBuffer buffer) {
+		super(new BufferStream(buffer));
+		this.buffer = buffer;
+	}
+
+	public ByteBuffer getBuffer () {
+		return buffer;
+	}
+
+	/**
+	 * Read a string written by DataOutputStream.writeUTF(), decoding it in place
+	 * in the buffer; the only allocation is the String itself.
+	 */
+	public String readUTFString () throws IOException {
+		if (buffer.remaining() < 2) {
+			throw new EOFException();
+		}
+		int len = buffer.getShort() & 0xffff;
+		if (buffer.remaining() < len) {
+			throw new EOFException();
+		}
+
+		if (chars.length < len) {
+			chars = new char[Math.max(len, 2 * chars.length)];
+		}
+
+		int pos = buffer.position();
+		int end = pos + len;
+		int n = 0;
+		while (pos < end) {
+			int c = buffer.get(pos) & 0xff;
+			if (c < 0x80) {
+				chars[n++] = (char)c;
+				pos++;
+			} else if ((c & 0xe0) == 0xc0) {
+				if (pos + 1 >= end) {
+					throw new UTFDataFormatException("malformed input: partial character at end");
+				}
+				int c2 = buffer.get(pos + 1);
+				if ((c2 & 0xc0) != 0x80) {
+					throw new UTFDataFormatException("malformed input around byte " + pos);
+				}
+				chars[n++] = (char)(((c & 0x1f) << 6) | (c2 & 0x3f));
+				pos += 2;
+			} else if ((c & 0xf0) == 0xe0) {
+				if (pos + 2 >= end) {
+					throw new UTFDataFormatException("malformed input: partial character at end");
+				}
+				int c2 = buffer.get(pos + 1);
+				int c3 = buffer.get(pos + 2);
+				if ((c2 & 0xc0) != 0x80 || (c3 & 0xc0) != 0x80) {
+					throw new UTFDataFormatException("malformed input around byte " + pos);
+				}
+				chars[n++] = (char)(((c & 0x0f) << 12) | ((c2 & 0x3f) << 6) | (c3 & 0x3f));
+				pos += 3;
+			} else {
+				throw new UTFDataFormatException("malformed input around byte " + pos);
+			}
+		}
+		buffer.position(end);
+
+		return new String(chars, 0, n);
+	}
+
+	private static class BufferStream extends InputStream {
+		private ByteBuffer buffer;
+
+		public BufferStream (ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read () {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		public int read (byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			} else if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		public long skip (long n) {
+			int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		public int available () {
+			return buffer.remaining();
+		}
+	}
+}
@@ -23,6 +23,7 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -43,28 +44,38 @@ public class ExtUtil {
 	}
 
 	public static Object deserialize (byte[] data, Class type) throws DeserializationException {
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
+		return deserialize(ByteBuffer.wrap(data), type);
+	}
+	
+	public static Object deserialize (byte[] data, ExternalizableWrapper ew) throws DeserializationException {
+		return deserialize(ByteBuffer.wrap(data), ew);
+	}
+	
+	/**
+	 * deserialize from the remaining bytes of a buffer, e.g. a memory-mapped file, reading
+	 * in place rather than copying into an array first
+	 */
+	public static Object deserialize (ByteBuffer data, Class type) throws DeserializationException {
 		try {
-			return read(new DataInputStream(bais), type);
+			return read(new ByteBufferDataInputStream(data), type);
 		} catch (EOFException eofe) {
 			throw new DeserializationException("Unexpectedly reached end of stream when deserializing");
 		} catch (UTFDataFormatException udfe) {
 			throw new DeserializationException("Unexpectedly reached end of stream when deserializing");			
 		} catch (IOException e) {
-			throw new RuntimeException("Unknown IOException reading from ByteArrayInputStream; shouldn't happen!");
+			throw new RuntimeException("Unknown IOException reading from ByteBuffer; shouldn't happen!");
 		}
 	}
 	
-	public static Object deserialize (byte[] data, ExternalizableWrapper ew) throws DeserializationException {
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
+	public static Object deserialize (ByteBuffer data, ExternalizableWrapper ew) throws DeserializationException {
 		try {
-			return read(new DataInputStream(bais), ew);
+			return read(new ByteBufferDataInputStream(data), ew);
 		} catch (EOFException eofe) {
 			throw new DeserializationException("Unexpectedly reached end of stream when deserializing");
 		} catch (UTFDataFormatException udfe) {
 			throw new DeserializationException("Unexpectedly reached end of stream when deserializing");			
 		} catch (IOException e) {
-			throw new RuntimeException("Unknown IOException reading from ByteArrayInputStream; shouldn't happen!");
+			throw new RuntimeException("Unknown IOException reading from ByteBuffer; shouldn't happen!");
 		}
 	}
 	
@@ -178,7 +189,7 @@ public class ExtUtil {
 	}
 	
 	public static long readNumeric (DataInputStream in) throws IOException {
-		return readNumeric(in, new ExtWrapIntEncodingUniform());
+		return ExtWrapIntEncodingUniform.decode(in);
 	}
 
 	public static long readNumeric (DataInputStream in, ExtWrapIntEncoding encoding) throws IOException {
@@ -214,7 +225,11 @@ public class ExtUtil {
 	}
 	
 	public static String readString (DataInputStream in) throws IOException {
-		return in.readUTF();
+		if (in instanceof ByteBufferDataInputStream) {
+			return ((ByteBufferDataInputStream)in).readUTFString();
+		} else {
+			return in.readUTF();
+		}
 	}
 	
 	public static Date readDate (DataInputStream in) throws	IOException {
@@ -39,6 +39,14 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
 	}
 
 	public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException {
+		val = new Long(decode(in));
+	}
+
+	/**
+	 * read a value written by writeExternal() without creating a wrapper or boxing the result;
+	 * ExtUtil.readNumeric() uses this directly since it is on the path of nearly every field read
+	 */
+	static long decode (DataInputStream in) throws IOException {
 		long l = 0;
 		byte b;
 		boolean firstByte = true;
@@ -54,7 +62,7 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
 			l = (l << 7) | (b & 0x7f);
 		} while (((b >> 7) & 0x01) == 1);
 		
-		val = new Long(l);
+		return l;
 	}
 	
 	/**
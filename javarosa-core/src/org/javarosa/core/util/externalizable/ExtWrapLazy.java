@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.core.util.externalizable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A value written as a length-prefixed section, so that reading it can be put off until it is
+ * actually needed. Reading through this wrapper doesn't produce the value itself, but another
+ * ExtWrapLazy holding the section's bytes; get() deserializes them on first call.
+ *
+ * When read from a ByteBufferDataInputStream the section is a view into the same buffer (e.g. a
+ * memory-mapped file), so skipping it costs nothing. A section that was never read is written
+ * back out as-is.
+ */
+public class ExtWrapLazy extends ExternalizableWrapper {
+	public ExternalizableWrapper type;
+
+	private ByteBuffer data; //serialized value not yet read; null once read
+	private PrototypeFactory pf;
+
+	/* serialization */
+
+	public ExtWrapLazy (Object val) {
+		this.val = val;
+	}
+
+	/* deserialization */
+
+	public ExtWrapLazy (Class type) {
+		this.type = new ExtWrapBase(type);
+	}
+
+	/* serialization or deserialization, depending on context */
+
+	public ExtWrapLazy (ExternalizableWrapper type) {
+		if (type instanceof ExtWrapLazy) {
+			throw new IllegalArgumentException("Wrapping lazy with lazy is redundant");
+		} else if (type != null && type.isEmpty()) {
+			this.type = type;
+		} else {
+			this.val = type;
+		}
+	}
+
+	private ExtWrapLazy (ExternalizableWrapper type, ByteBuffer data, PrototypeFactory pf) {
+		this.type = type;
+		this.data = data;
+		this.pf = pf;
+	}
+
+	public ExternalizableWrapper clone (Object val) {
+		if (val instanceof ExtWrapLazy) {
+			return (ExtWrapLazy)val;
+		} else {
+			return new ExtWrapLazy(type == null ? val : type.clone(val));
+		}
+	}
+
+	/**
+	 * @return whether the value is available without deserializing anything
+	 */
+	public boolean isLoaded () {
+		return data == null;
+	}
+
+	/**
+	 * @return the (unwrapped) value, reading it from its section first if needed
+	 */
+	public Object get () throws DeserializationException {
+		if (data != null) {
+			try {
+				val = ExtUtil.read(new ByteBufferDataInputStream(data.duplicate()), type, pf);
+			} catch (EOFException eofe) {
+				throw new DeserializationException("Unexpectedly reached end of section when deserializing");
+			} catch (IOException ioe) {
+				throw new DeserializationException("Could not read section: " + ioe.getMessage());
+			}
+			data = null;
+			pf = null;
+		}
+		return ExtUtil.unwrap(val);
+	}
+
+	public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+		int length = ExtUtil.readInt(in);
+
+		ByteBuffer section;
+		if (in instanceof ByteBufferDataInputStream) {
+			ByteBuffer buffer = ((ByteBufferDataInputStream)in).getBuffer();
+			if (buffer.remaining() < length) {
+				throw new EOFException();
+			}
+			section = buffer.slice();
+			section.limit(length);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			section = ByteBuffer.wrap(bytes);
+		}
+
+		val = new ExtWrapLazy(type, section, pf);
+	}
+
+	public void writeExternal(DataOutputStream out) throws IOException {
+		if (data == null) {
+			byte[] bytes = ExtUtil.serialize(val);
+			ExtUtil.writeNumeric(out, bytes.length);
+			out.write(bytes);
+		} else {
+			ByteBuffer section = data.duplicate();
+			ExtUtil.writeNumeric(out, section.remaining());
+			if (section.hasArray()) {
+				out.write(section.array(), section.arrayOffset() + section.position(), section.remaining());
+			} else {
+				byte[] bytes = new byte[section.remaining()];
+				section.get(bytes);
+				out.write(bytes);
+			}
+		}
+	}
+
+	public void metaReadExternal (DataInputStream in, PrototypeFactory pf) {
+		throw new RuntimeException("Lazy wrapper should never be tagged");
+	}
+
+	public void metaWriteExternal (DataOutputStream out) {
+		throw new RuntimeException("Lazy wrapper should never be tagged");
+	}
+}
@@ -24,8 +24,10 @@ import java.util.Hashtable;
 
 public class ExtWrapTagged extends ExternalizableWrapper {
 	public final static byte[] WRAPPER_TAG = {(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff}; //must be same length as PrototypeFactory.CLASS_HASH_SIZE
+	final static int WRAPPER_TAG_INT = 0xffffffff; //WRAPPER_TAG, as read by DataInputStream.readInt()
 	
 	public static Hashtable WRAPPER_CODES;
+	private static Class[] WRAPPER_TYPES; //WRAPPER_CODES inverted; indexed by code
 	
 	static {
 		WRAPPER_CODES = new Hashtable();
@@ -36,6 +38,16 @@ public class ExtWrapTagged extends ExternalizableWrapper {
 		WRAPPER_CODES.put(ExtWrapMapPoly.class, new Integer(0x23));
 		WRAPPER_CODES.put(ExtWrapIntEncodingUniform.class, new Integer(0x40));
 		WRAPPER_CODES.put(ExtWrapIntEncodingSmall.class, new Integer(0x41));
+		
+		int maxCode = 0;
+		for (Enumeration e = WRAPPER_CODES.elements(); e.hasMoreElements(); ) {
+			maxCode = Math.max(maxCode, ((Integer)e.nextElement()).intValue());
+		}
+		WRAPPER_TYPES = new Class[maxCode + 1];
+		for (Enumeration e = WRAPPER_CODES.keys(); e.hasMoreElements(); ) {
+			Class t = (Class)e.nextElement();
+			WRAPPER_TYPES[((Integer)WRAPPER_CODES.get(t)).intValue()] = t;
+		}
 	}
 	
 	/* serialization */
@@ -71,34 +83,32 @@ public class ExtWrapTagged extends ExternalizableWrapper {
 	}
 
 	public static ExternalizableWrapper readTag (DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
-		byte[] tag = new byte[PrototypeFactory.CLASS_HASH_SIZE];
-		in.read(tag, 0, tag.length);
+		//CLASS_HASH_SIZE is 4, so the tag can be read as an int without allocating
+		int tag = in.readInt();
 		
-		if (PrototypeFactory.compareHash(tag, WRAPPER_TAG)) {
+		if (tag == WRAPPER_TAG_INT) {
 			int wrapperCode = ExtUtil.readInt(in);
 			
 			//find wrapper indicated by code
-			ExternalizableWrapper type = null;
-			for (Enumeration e = WRAPPER_CODES.keys(); e.hasMoreElements(); ) {
-				Class t = (Class)e.nextElement();
-				if (((Integer)WRAPPER_CODES.get(t)).intValue() == wrapperCode) {
-					try {
-						type = (ExternalizableWrapper)PrototypeFactory.getInstance(t);
-					} catch (CannotCreateObjectException ccoe) {
-						throw new CannotCreateObjectException("Serious problem: cannot create built-in ExternalizableWrapper [" + t.getName() + "]");
-					}
-				}
-			}
-			if (type == null) {
+			Class t = (wrapperCode >= 0 && wrapperCode < WRAPPER_TYPES.length ? WRAPPER_TYPES[wrapperCode] : null);
+			if (t == null) {
 				throw new DeserializationException("Unrecognized ExternalizableWrapper type [" + wrapperCode + "]");
 			}
 			
+			ExternalizableWrapper type;
+			try {
+				type = (ExternalizableWrapper)PrototypeFactory.getInstance(t);
+			} catch (CannotCreateObjectException ccoe) {
+				throw new CannotCreateObjectException("Serious problem: cannot create built-in ExternalizableWrapper [" + t.getName() + "]");
+			}
+			
 			type.metaReadExternal(in, pf);
 			return type;
 		} else {
 			Class type = pf.getClass(tag);
 			if (type == null) {
-				throw new DeserializationException("No datatype registered to serialization code " + ExtUtil.printBytes(tag));
+				byte[] bytes = {(byte)(tag >> 24), (byte)(tag >> 16), (byte)(tag >> 8), (byte)tag};
+				throw new DeserializationException("No datatype registered to serialization code " + ExtUtil.printBytes(bytes));
 			}
 			
 			return new ExtWrapBase(type);
@@ -125,7 +135,7 @@ public class ExtWrapTagged extends ExternalizableWrapper {
 				type = o.getClass();
 			}
 				
-			byte[] tag = PrototypeFactory.getClassHash(type); //cache this?
+			byte[] tag = PrototypeFactory.classHash(type);
 			out.write(tag, 0, tag.length);
 		}
 	}
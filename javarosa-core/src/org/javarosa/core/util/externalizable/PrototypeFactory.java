@@ -17,6 +17,7 @@
 package org.javarosa.core.util.externalizable;
 
 import java.util.Date;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import org.javarosa.core.util.MD5;
@@ -25,8 +26,9 @@ import org.javarosa.core.util.PrefixTree;
 public class PrototypeFactory {
 	public final static int CLASS_HASH_SIZE = 4;
 	
-	private Vector classes;
-	private Vector hashes;
+	private static Hashtable classHashes = new Hashtable(); // <Class, byte[]>; md5ing the class name is expensive
+	
+	private Hashtable classes; // <Integer, Class>; keyed by the class hash, as an int
 	
 	//lazy evaluation
 	private PrefixTree classNames;
@@ -44,8 +46,7 @@ public class PrototypeFactory {
 	private void lazyInit () {
 		initialized = true;
 		
-		classes = new Vector();
-		hashes = new Vector();
+		classes = new Hashtable();
 
 		addDefaultClasses();
 		
@@ -89,9 +90,9 @@ public class PrototypeFactory {
 			lazyInit();
 		}
 		
-		byte[] hash = getClassHash(c);
+		int hash = hashToInt(classHash(c));
 		
-		if (compareHash(hash, ExtWrapTagged.WRAPPER_TAG)) {
+		if (hash == ExtWrapTagged.WRAPPER_TAG_INT) {
 			throw new Error("Hash collision! " + c.getName() + " and reserved wrapper tag");
 		}
 		
@@ -100,22 +101,22 @@ public class PrototypeFactory {
 			throw new Error("Hash collision! " + c.getName() + " and " + d.getName());					
 		}
 		
-		classes.addElement(c);
-		hashes.addElement(hash);
+		classes.put(new Integer(hash), c);
 	}
 	
 	public Class getClass (byte[] hash) {
+		return (hash.length == CLASS_HASH_SIZE ? getClass(hashToInt(hash)) : null);
+	}
+	
+	/**
+	 * Look up a class by its hash, as read by DataInputStream.readInt()
+	 */
+	public Class getClass (int hash) {
 		if (!initialized) {
 			lazyInit();
 		}
 		
-		for (int i = 0; i < classes.size(); i++) {
-			if (compareHash(hash, (byte[])hashes.elementAt(i))) {
-				return (Class)classes.elementAt(i);
-			}
-		}
-		
-		return null;
+		return (Class)classes.get(new Integer(hash));
 	}
 	
 	public Object getInstance (byte[] hash) {
@@ -134,14 +135,30 @@ public class PrototypeFactory {
 	
 	public static byte[] getClassHash (Class type) {
 		byte[] hash = new byte[CLASS_HASH_SIZE];
-		byte[] md5 = MD5.hash(type.getName().getBytes()); //add support for a salt, in case of collision?
-		
-		for (int i = 0; i < hash.length; i++)
-			hash[i] = md5[i];
-		
+		System.arraycopy(classHash(type), 0, hash, 0, CLASS_HASH_SIZE);
 		return hash;
 	}
 	
+	//the cached hash for a class; shared, so must not be modified
+	static byte[] classHash (Class type) {
+		byte[] hash = (byte[])classHashes.get(type);
+		if (hash == null) {
+			hash = new byte[CLASS_HASH_SIZE];
+			byte[] md5 = MD5.hash(type.getName().getBytes()); //add support for a salt, in case of collision?
+			
+			for (int i = 0; i < hash.length; i++)
+				hash[i] = md5[i];
+			
+			classHashes.put(type, hash);
+		}
+		return hash;
+	}
+	
+	//big-endian, to match DataInputStream.readInt()
+	static int hashToInt (byte[] hash) {
+		return ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) | ((hash[2] & 0xff) << 8) | (hash[3] & 0xff);
+	}
+	
 	public static boolean compareHash (byte[] a, byte[] b) {
 		if (a.length != b.length) {
 			return false;
@@ -17,6 +17,7 @@
 package org.javarosa.model.xform;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.Vector;
 
@@ -34,6 +35,7 @@ import org.javarosa.core.services.transport.IDataPayload;
 import org.javarosa.core.services.transport.MultiMessagePayload;
 import org.javarosa.xform.util.XFormAnswerDataSerializer;
 import org.javarosa.xform.util.XFormSerializer;
+import org.kxml2.io.KXmlSerializer;
 import org.kxml2.kdom.Document;
 import org.kxml2.kdom.Element;
 import org.kxml2.kdom.Node;
@@ -44,6 +46,9 @@ import org.kxml2.kdom.Node;
  *
  * The XML node elements are constructed in a depth-first manner, consistent with
  * standard XML document parsing.
+ * 
+ * serializeDataModel(model, out) instead writes the instance directly to a stream,
+ * without building a document in memory.
  *
  * @author Clayton Sims
  *
@@ -91,6 +96,108 @@ public class XFormSerializingVisitor implements IDataModelSerializingVisitor {
 		}
 	}
 	
+	/**
+	 * Write the instance to a stream as UTF-8 XML. Unlike the other serialize methods,
+	 * this walks the tree and emits each node as it goes, so no document or byte array
+	 * of the whole instance is ever held in memory. The stream is flushed, not closed.
+	 * 
+	 * @return false if the model is not a DataModelTree, in which case nothing is written
+	 */
+	public boolean serializeDataModel(IFormDataModel model, OutputStream out) throws IOException {
+		init();
+		if(this.serializer == null) {
+			this.setAnswerDataSerializer(new XFormAnswerDataSerializer());
+		}
+		if (!(model instanceof DataModelTree)) {
+			return false;
+		}
+		DataModelTree tree = (DataModelTree)model;
+
+		KXmlSerializer xml = new KXmlSerializer();
+		xml.setOutput(out, "UTF-8");
+		xml.startDocument("UTF-8", null);
+		
+		TreeElement root = tree.getRoot();
+		if (root != null) {
+			String[] prefixes = tree.getNamespacePrefixes();
+			for(int i = 0 ; i < prefixes.length; ++i ) {
+				xml.setPrefix(prefixes[i], tree.getNamespaceURI(prefixes[i]));
+			}
+			if (tree.schema != null) {
+				xml.setPrefix("", tree.schema);
+			}
+			writeNode(xml, root, tree.schema);
+		}
+		
+		xml.endDocument();
+		xml.flush();
+		return true;
+	}
+
+	//streaming counterpart of serializeNode(); must produce the same structure
+	private void writeNode (KXmlSerializer xml, TreeElement instanceNode, String namespace) throws IOException {
+		//don't serialize template nodes or non-relevant nodes
+		if (!instanceNode.isRelevant() || instanceNode.getMult() == TreeReference.INDEX_TEMPLATE)
+			return;
+			
+		if (instanceNode.getValue() != null) {
+			Object serializedAnswer = serializer.serializeAnswerData(instanceNode.getValue(), instanceNode.dataType); 
+
+			if (serializedAnswer instanceof Element) {
+				//structured answers are small; write them out through kdom
+				Element e = (Element)serializedAnswer;
+				e.setName(instanceNode.getName());
+				if (namespace != null) {
+					e.setNamespace(namespace);
+				}
+				for (int i = 0; i < instanceNode.getAttributeCount(); i++) {
+					e.setAttribute(instanceNode.getAttributeNamespace(i), instanceNode.getAttributeName(i), instanceNode.getAttributeValue(i));
+				}
+				e.write(xml);
+			} else if (serializedAnswer instanceof String) {
+				startNode(xml, instanceNode, namespace);
+				xml.text((String)serializedAnswer);
+				xml.endTag(namespace, instanceNode.getName());
+			} else {
+				throw new RuntimeException("Can't handle serialized output for" + instanceNode.getValue().toString() + ", " + serializedAnswer);
+			}
+			
+			if(serializer.containsExternalData(instanceNode.getValue()).booleanValue()) {
+				IDataPointer[] pointer = serializer.retrieveExternalDataPointer(instanceNode.getValue());
+				for(int i = 0 ; i < pointer.length ; ++i) {
+					dataPointers.addElement(pointer[i]);
+				}
+			}
+		} else {
+			startNode(xml, instanceNode, namespace);
+
+			//make sure all children of the same tag name are written en bloc
+			Vector childNames = new Vector();
+			for (int i = 0; i < instanceNode.getNumChildren(); i++) {
+				String childName = instanceNode.getChildAt(i).getName();
+				if (!childNames.contains(childName))
+					childNames.addElement(childName);
+			}
+			
+			for (int i = 0; i < childNames.size(); i++) {
+				String childName = (String)childNames.elementAt(i);
+				int mult = instanceNode.getChildMultiplicity(childName);
+				for (int j = 0; j < mult; j++) {
+					writeNode(xml, instanceNode.getChild(childName, j), null);
+				}
+			}
+			
+			xml.endTag(namespace, instanceNode.getName());
+		}
+	}
+	
+	private void startNode (KXmlSerializer xml, TreeElement instanceNode, String namespace) throws IOException {
+		xml.startTag(namespace, instanceNode.getName());
+		for (int i = 0; i < instanceNode.getAttributeCount(); i++) {
+			xml.attribute(instanceNode.getAttributeNamespace(i), instanceNode.getAttributeName(i), instanceNode.getAttributeValue(i));
+		}
+	}
+	
 	public IDataPayload createSerializedPayload	(IFormDataModel model) throws IOException {
 		init();
 		if(this.serializer == null) {
@@ -178,7 +285,7 @@ public class XFormSerializingVisitor implements IDataModelSerializingVisitor {
 			//make sure all children of the same tag name are written en bloc
 			Vector childNames = new Vector();
 			for (int i = 0; i < instanceNode.getNumChildren(); i++) {
-				String childName = ((TreeElement)instanceNode.getChildren().elementAt(i)).getName();
+				String childName = instanceNode.getChildAt(i).getName();
 				if (!childNames.contains(childName))
 					childNames.addElement(childName);
 			}
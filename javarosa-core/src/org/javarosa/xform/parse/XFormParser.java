@@ -19,13 +19,13 @@ package org.javarosa.xform.parse;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
+import org.javarosa.core.api.IInstrumentation;
 import org.javarosa.core.model.Constants;
 import org.javarosa.core.model.DataBinding;
 import org.javarosa.core.model.FormDef;
@@ -43,6 +43,7 @@ import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.util.restorable.Restorable;
 import org.javarosa.core.model.util.restorable.RestoreUtils;
+import org.javarosa.core.services.Instrumentation;
 import org.javarosa.core.services.locale.Localizer;
 import org.javarosa.core.services.locale.TableLocaleSource;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
@@ -57,6 +58,7 @@ import org.kxml2.kdom.Document;
 import org.kxml2.kdom.Element;
 import org.kxml2.kdom.Node;
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 /* droos: i think we need to start storing the contents of the <bind>s in the formdef again */
 
@@ -70,26 +72,37 @@ import org.xmlpull.v1.XmlPullParser;
 public class XFormParser {
 	public static final String NAMESPACE_JAVAROSA = "http://openrosa.org/javarosa";
 
+	//registries; the add*()/register*() methods replace them with updated copies rather than modifying them
 	private static Hashtable topLevelHandlers;
 	private static Hashtable groupLevelHandlers;
+	private static IElementHandler modelHandler, groupHandler, repeatHandler; //built-ins that streamElement() can stream
 	private static Hashtable typeMappings;
 	private static PrototypeFactoryDeprecated modelPrototypes;
 
 	/** IXFormBindHandler */
 	private static Vector bindHandlers;
 
-	/* THIS CLASS IS NOT THREAD-SAFE */
-	//state variables -- not a good idea since this class is static, but that's not really a good idea either, now is it
-	private static boolean modelFound;
-	private static Hashtable bindingsByID;
-	private static Vector bindings; //DataBinding
-	private static Vector repeats; //TreeReference
-	private static Vector selectOnes; //TreeReference
-	private static Vector selectMultis; //TreeReference
-	private static Element instanceNode; //top-level data node of the instance; saved off so it can be processed after the <bind>s
-	private static String defaultNamespace;
+	//the registries as they were when this parser was created; registering something while a parse is
+	//running doesn't affect it
+	private Hashtable topLevel;
+	private Hashtable groupLevel;
+	private Hashtable types;
+	private PrototypeFactoryDeprecated prototypes;
+	private Vector binders; //IXFormBindHandler
+
+	//state variables for a single parse. each parse gets its own XFormParser, so forms can be parsed concurrently
+	private boolean modelFound;
+	private Hashtable bindingsByID;
+	private Vector bindings; //DataBinding
+	private Vector repeats; //TreeReference
+	private Vector selectOnes; //TreeReference
+	private Vector selectMultis; //TreeReference
+	private Element instanceNode; //top-level data node of the instance; saved off so it can be processed after the <bind>s
+	private String defaultNamespace;
+	private int serialQuestionID;
+	private Hashtable xpathCache; //<String, XPathExpression>; parse trees shared by the binds of this form
 	
-	private static DataModelTree repeatTree; //pseudo-data model tree that describes the repeat structure of the instance;
+	private DataModelTree repeatTree; //pseudo-data model tree that describes the repeat structure of the instance;
 										     //useful during instance processing and validation
 	
 	static {
@@ -104,7 +117,34 @@ public class XFormParser {
 	 *
 	 */
 	public XFormParser(){
+		synchronized (XFormParser.class) {
+			topLevel = topLevelHandlers;
+			groupLevel = groupLevelHandlers;
+			types = typeMappings;
+			prototypes = modelPrototypes;
+			binders = bindHandlers;
+		}
+		initStateVars();
+	}
 
+	/**
+	 * Handler for built-in elements, which need access to the state of the parse
+	 * in progress. Only ever invoked through parseElement()/streamElement().
+	 */
+	private static abstract class ParseHandler implements IElementHandler {
+		public void handle (FormDef f, Element e, Object parent) {
+			throw new IllegalStateException("XForm Parse: handler called outside of a parse");
+		}
+		
+		public abstract void handle (XFormParser p, FormDef f, Element e, Object parent);
+	}
+	
+	private void handle (IElementHandler eh, FormDef f, Element e, Object parent) {
+		if (eh instanceof ParseHandler) {
+			((ParseHandler)eh).handle(this, f, e, parent);
+		} else {
+			eh.handle(f, e, parent);
+		}
 	}
 
 	private static void initProcessingRules () {
@@ -112,24 +152,24 @@ public class XFormParser {
 			public void handle (FormDef f, Element e, Object parent) { parseTitle(f, e); } };
 		IElementHandler meta = new IElementHandler () {
 			public void handle (FormDef f, Element e, Object parent) { parseMeta(f, e); } };
-		IElementHandler model = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseModel(f, e); } };
-		IElementHandler input = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseControl((IFormElement)parent, e, f, Constants.CONTROL_INPUT); } };
-		IElementHandler select = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseControl((IFormElement)parent, e, f, Constants.CONTROL_SELECT_MULTI); } };
-		IElementHandler select1 = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseControl((IFormElement)parent, e, f, Constants.CONTROL_SELECT_ONE); } };
-		IElementHandler group = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseGroup((IFormElement)parent, e, f, CONTAINER_GROUP); } };
-		IElementHandler repeat = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseGroup((IFormElement)parent, e, f, CONTAINER_REPEAT); } };
+		IElementHandler model = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseModel(f, e); } };
+		IElementHandler input = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseControl((IFormElement)parent, e, f, Constants.CONTROL_INPUT); } };
+		IElementHandler select = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseControl((IFormElement)parent, e, f, Constants.CONTROL_SELECT_MULTI); } };
+		IElementHandler select1 = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseControl((IFormElement)parent, e, f, Constants.CONTROL_SELECT_ONE); } };
+		IElementHandler group = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseGroup((IFormElement)parent, e, f, CONTAINER_GROUP); } };
+		IElementHandler repeat = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseGroup((IFormElement)parent, e, f, CONTAINER_REPEAT); } };
 		IElementHandler groupLabel = new IElementHandler () {
 			public void handle (FormDef f, Element e, Object parent) { parseGroupLabel(f, (GroupDef)parent, e); } };
-		IElementHandler trigger = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseControl((IFormElement)parent, e, f, Constants.CONTROL_TRIGGER); } };
-		IElementHandler upload = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseUpload((IFormElement)parent, e, f, Constants.CONTROL_UPLOAD); } };
+		IElementHandler trigger = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseControl((IFormElement)parent, e, f, Constants.CONTROL_TRIGGER); } };
+		IElementHandler upload = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseUpload((IFormElement)parent, e, f, Constants.CONTROL_UPLOAD); } };
 
 		groupLevelHandlers = new Hashtable();
 		groupLevelHandlers.put("input", input);
@@ -150,6 +190,10 @@ public class XFormParser {
 		topLevelHandlers.put("meta", meta);
 
 		groupLevelHandlers.put("label", groupLabel);
+
+		modelHandler = model;
+		groupHandler = group;
+		repeatHandler = repeat;
 	}
 
 	private static void initTypeMappings () {
@@ -182,16 +226,16 @@ public class XFormParser {
 	    
 	}
 	
-	private static void initBindHandlers() {
-		Enumeration en = bindHandlers.elements();
+	private void initBindHandlers() {
+		Enumeration en = binders.elements();
 		while(en.hasMoreElements()) {
 			IXFormBindHandler handler = (IXFormBindHandler)en.nextElement();
 			handler.init();
 			
 		}
 	}
-	private static void processBindHandlers(FormDef formDef) {
-		Enumeration en = bindHandlers.elements();
+	private void processBindHandlers(FormDef formDef) {
+		Enumeration en = binders.elements();
 		while(en.hasMoreElements()) {
 			IXFormBindHandler handler = (IXFormBindHandler)en.nextElement();
 			handler.postProcess(formDef);
@@ -199,8 +243,9 @@ public class XFormParser {
 		}
 	}
 
-	private static void initStateVars () {
+	private void initStateVars () {
 		modelFound = false;
+		serialQuestionID = 1;
 		bindingsByID = new Hashtable();
 		bindings = new Vector();
 		repeats = new Vector();
@@ -209,39 +254,65 @@ public class XFormParser {
 		instanceNode = null;
 		repeatTree = null;
 		defaultNamespace = null;
+		xpathCache = new Hashtable();
 	}
 
+	/**
+	 * Parse a form, streaming it through a pull parser (see getFormDef(KXmlParser)).
+	 * Use getFormDef(getXMLDocument(reader)) to parse via a full DOM instead.
+	 * 
+	 * @return null if the form could not be parsed
+	 */
 	public static FormDef getFormDef(Reader reader) {
+		FormDef formDef = null;
+		try {
+			KXmlParser parser = new KXmlParser();
+			parser.setInput(reader);
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
 
-		Document doc = getXMLDocument(reader);
-		try {
-			reader.close();
-		} catch (IOException e) {
-			System.out.println("Error closing reader");
-			e.printStackTrace();
-		}
-		
-		if (doc != null) {
-			try {
-				return getFormDef(doc);
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			}
-		} else {
-			return null;
+			formDef = getFormDef(parser);
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
+
+		try {
+			reader.close();
+		} catch (IOException e) {
+			System.out.println("Error closing reader");
+			e.printStackTrace();
+		}
+		
+		return formDef;
 	}
 
 	public static Document getXMLDocument(Reader reader){
+		return getXMLDocument(reader, null);
+	}
+
+	/**
+	 * Parse a document from raw bytes, decoding them per the xml declaration (UTF-8 if there is none)
+	 * rather than the platform default charset
+	 */
+	public static Document getXMLDocument(InputStream in){
+		return getXMLDocument(null, in);
+	}
+
+	private static Document getXMLDocument(Reader reader, InputStream in){
 		Document doc = new Document();
 
 		try{
 			KXmlParser parser = new KXmlParser();
-			parser.setInput(reader);
-			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			if (reader != null) {
+				parser.setInput(reader);
+			} else {
+				parser.setInput(in, null);
+			}
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
 			
+			IInstrumentation inst = Instrumentation._();
+			long t = (inst == null ? 0 : System.nanoTime());
 			doc.parse(parser);
+			phase(inst, "document", t);
 		} catch(Exception e){
 			//#if debug.output==verbose || debug.output==exception
 			System.err.println("XML Syntax Error!");
@@ -255,36 +326,273 @@ public class XFormParser {
 	}
 
 	public static FormDef getFormDef(Document doc){
-		FormDef formDef = new FormDef();
+		return new XFormParser().parse(doc);
+	}
+
+	/**
+	 * Parse a form from a DOM. Parsing a form only touches the state of this parser
+	 * object, so separate XFormParsers can parse forms concurrently.
+	 * Bind handlers registered through registerBindHandler() are shared by all
+	 * parses, however, and must be thread-safe themselves if used that way.
+	 */
+	public FormDef parse(Document doc){
+		FormDef formDef = new FormDef();
 		
 		initBindHandlers();
 		initStateVars();
 
-		defaultNamespace = doc.getRootElement().getNamespaceUri(null);
+		defaultNamespace = doc.getRootElement().getNamespaceUri(null);
+		
+		IInstrumentation inst = Instrumentation._();
+		long t = (inst == null ? 0 : System.nanoTime());
+		parseElement(formDef, doc.getRootElement(), formDef, topLevel);
+		t = phase(inst, "elements", t);
+		
+		collapseRepeatGroups(formDef);
+		t = phase(inst, "repeats", t);
+		
+		if(instanceNode != null) {
+			parseInstance(formDef, instanceNode);
+		}
+		t = phase(inst, "instance", t);
+
+		initStateVars();
+
+		processBindHandlers(formDef);
+		phase(inst, "bind handlers", t);
+		return formDef;
+	}
+
+	/* ==== STREAMING PARSE ==== */
+	
+	/**
+	 * Parse a form directly off a pull parser, without building a DOM of the
+	 * whole document first. Elements are only materialized one handler's worth
+	 * at a time (each <bind>, <text>, control, etc.) and are dropped once handled;
+	 * <model>, <itext>, <translation>, and body groups are streamed through.
+	 * The one exception is the <instance>, which is kept until the end of the
+	 * form, as it can only be processed after the <bind>s and controls.
+	 * 
+	 * @param parser namespace-aware parser, positioned before the root element
+	 */
+	public static FormDef getFormDef(KXmlParser parser) throws IOException, XmlPullParserException {
+		return new XFormParser().parse(parser);
+	}
+
+	/**
+	 * Streaming equivalent of parse(Document); see getFormDef(KXmlParser)
+	 */
+	public FormDef parse(KXmlParser parser) throws IOException, XmlPullParserException {
+		FormDef formDef = new FormDef();
 		
-		parseElement(formDef, doc.getRootElement(), formDef, topLevelHandlers);
+		initBindHandlers();
+		initStateVars();
+
+		while (parser.getEventType() != XmlPullParser.START_TAG) {
+			if (parser.next() == XmlPullParser.END_DOCUMENT)
+				throw new XFormParseException("XForm Parse: document has no root element");
+		}
+		for (int i = 0; i < parser.getNamespaceCount(parser.getDepth()); i++) {
+			if (parser.getNamespacePrefix(i) == null)
+				defaultNamespace = parser.getNamespaceUri(i);
+		}
+
+		IInstrumentation inst = Instrumentation._();
+		long t = (inst == null ? 0 : System.nanoTime());
+		streamElement(formDef, parser, formDef, topLevel);
+		t = phase(inst, "elements", t);
 		
-		collapseRepeatGroups(formDef);
+		collapseRepeatGroups(formDef);
+		t = phase(inst, "repeats", t);
 		
 		if(instanceNode != null) {
 			parseInstance(formDef, instanceNode);
 		}
+		t = phase(inst, "instance", t);
 
 		initStateVars();
 
 		processBindHandlers(formDef);
+		phase(inst, "bind handlers", t);
 		return formDef;
 	}
+	
+	//record the parse phase that started at 'start', if instrumentation is on; returns the start of the next one
+	private static long phase (IInstrumentation inst, String name, long start) {
+		return (inst == null ? 0 : Instrumentation.record(inst, IInstrumentation.PARSE, name, start));
+	}
+
+	//the streaming equivalent of parseElement(). all stream* methods expect the parser to be on the element's
+	//start tag, and leave it just past the element's end tag
+	private void streamElement (FormDef f, KXmlParser parser, Object parent, Hashtable handlers) throws IOException, XmlPullParserException {
+		String name = parser.getName();
+		IElementHandler eh = (IElementHandler)handlers.get(name);
+		//only the built-in handlers can be streamed; anything registered in their place gets the whole element
+		if (eh == modelHandler) {
+			streamModel(f, parser);
+		} else if (eh == groupHandler || eh == repeatHandler) {
+			streamGroup((IFormElement)parent, parser, f, eh == repeatHandler ? CONTAINER_REPEAT : CONTAINER_GROUP);
+		} else if (eh != null) {
+			handle(eh, f, readElement(parser), parent);
+		} else {
+			if (!name.equals("html") && !name.equals("head") && !name.equals("body")) {
+				//#if debug.output==verbose
+				System.err.println("XForm Parse: Unrecognized element [" + name	+ "]. Ignoring and processing children...");
+				//#endif
+			}
+			int depth = parser.getDepth();
+			parser.next();
+			while (!atEndTag(parser, depth)) {
+				if (parser.getEventType() == XmlPullParser.START_TAG) {
+					streamElement(f, parser, parent, handlers);
+				} else {
+					parser.next();
+				}
+			}
+			parser.next();
+		}
+	}
+	
+	private void streamModel (FormDef f, KXmlParser parser) throws IOException, XmlPullParserException {
+		if (modelFound) {
+			//#if debug.output==verbose
+			System.err.println("Multiple models not supported. Ignoring subsequent models.");
+			//#endif
+			skipElement(parser);
+			return;
+		}
+		modelFound = true;
+
+		int depth = parser.getDepth();
+		parser.next();
+		while (!atEndTag(parser, depth)) {
+			int type = parser.getEventType();
+			if (type == XmlPullParser.START_TAG) {
+				String childName = parser.getName();
+				
+				if ("itext".equals(childName)) {
+					streamIText(f, parser);
+				} else if ("iimage".equals(childName)) {
+					parseIImage(f, readElement(parser));
+				} else if ("instance".equals(childName)) {
+					//the one subtree we have to hold on to; see parseModel()
+					saveInstanceNode(readElement(parser));
+				} else if ("bind".equals(childName)) {
+					parseBind(f, readElement(parser));
+				} else {
+					throw new XFormParseException("Unrecognized top-level tag [" + childName + "] found within <model>");
+				}
+			} else {
+				if (type == XmlPullParser.TEXT && parser.getText().trim().length() != 0) {
+					throw new XFormParseException("Unrecognized text content found within <model>: \"" + parser.getText().trim() + "\"");
+				}
+				parser.next();
+			}
+		}
+		parser.next();
+	}
+	
+	private static void streamIText (FormDef f, KXmlParser parser) throws IOException, XmlPullParserException {
+		Localizer l = startIText(f);
+
+		int depth = parser.getDepth();
+		parser.next();
+		while (!atEndTag(parser, depth)) {
+			if (parser.getEventType() == XmlPullParser.START_TAG) {
+				if ("translation".equals(parser.getName())) {
+					streamTranslation(l, parser, f);
+				} else {
+					skipElement(parser);
+				}
+			} else {
+				parser.next();
+			}
+		}
+		parser.next();
+		
+		finishIText(l);
+	}
+
+	private static void streamTranslation (Localizer l, KXmlParser parser, FormDef f) throws IOException, XmlPullParserException {
+		String lang = startTranslation(l, readStartTag(parser));
+		TableLocaleSource source = new TableLocaleSource();
+
+		int depth = parser.getDepth();
+		parser.next();
+		while (!atEndTag(parser, depth)) {
+			if (parser.getEventType() == XmlPullParser.START_TAG) {
+				if ("text".equals(parser.getName())) {
+					parseTextHandle(source, readElement(parser), f);
+				} else {
+					skipElement(parser);
+				}
+			} else {
+				parser.next();
+			}
+		}
+		parser.next();
+		
+		l.registerLocaleResource(lang, source);
+	}
+	
+	private void streamGroup (IFormElement parent, KXmlParser parser, FormDef f, int groupType) throws IOException, XmlPullParserException {
+		GroupDef group = startGroup(parent, readStartTag(parser), f, groupType);
+
+		int depth = parser.getDepth();
+		parser.next();
+		while (!atEndTag(parser, depth)) {
+			if (parser.getEventType() == XmlPullParser.START_TAG) {
+				streamElement(f, parser, group, groupLevel);
+			} else {
+				parser.next();
+			}
+		}
+		parser.next();
+
+		parent.addChild(group);
+	}
+
+	//build the element the parser is on, including all its content; same structure as a kdom Document would have
+	private static Element readElement (KXmlParser parser) throws IOException, XmlPullParserException {
+		Element e = new Element().createElement(parser.getNamespace(), parser.getName());
+		e.parse(parser);
+		return e;
+	}
+
+	//build just the start tag the parser is on (name, namespaces and attributes), without consuming anything
+	private static Element readStartTag (KXmlParser parser) throws XmlPullParserException {
+		Element e = new Element().createElement(parser.getNamespace(), parser.getName());
+		for (int i = parser.getNamespaceCount(parser.getDepth() - 1); i < parser.getNamespaceCount(parser.getDepth()); i++) {
+			e.setPrefix(parser.getNamespacePrefix(i), parser.getNamespaceUri(i));
+		}
+		for (int i = 0; i < parser.getAttributeCount(); i++) {
+			e.setAttribute(parser.getAttributeNamespace(i), parser.getAttributeName(i), parser.getAttributeValue(i));
+		}
+		return e;
+	}
+
+	private static void skipElement (KXmlParser parser) throws IOException, XmlPullParserException {
+		parser.skipSubTree();
+		parser.next();
+	}
+
+	private static boolean atEndTag (KXmlParser parser, int depth) throws XmlPullParserException {
+		int type = parser.getEventType();
+		if (type == XmlPullParser.END_DOCUMENT) {
+			throw new XFormParseException("XForm Parse: unexpected end of document");
+		}
+		return type == XmlPullParser.END_TAG && parser.getDepth() == depth;
+	}
 
 	private static final int CONTAINER_GROUP = 1;
 	private static final int CONTAINER_REPEAT = 2;
 
-	private static void parseElement (FormDef f, Element e, Object parent, Hashtable handlers) { //,
+	private void parseElement (FormDef f, Element e, Object parent, Hashtable handlers) { //,
 //			boolean allowUnknownElements, boolean allowText, boolean recurseUnknown) {
 		String name = e.getName();
 		IElementHandler eh = (IElementHandler)handlers.get(name);
 		if (eh != null) {
-			eh.handle(f, e, parent);
+			handle(eh, f, e, parent);
 		} else {
 			if (!name.equals("html") && !name.equals("head") && !name.equals("body")) {
 				//#if debug.output==verbose
@@ -323,7 +631,7 @@ public class XFormParser {
 	}
 
 	//for ease of parsing, we assume a model comes before the controls, which isn't necessarily mandated by the xforms spec
-	private static void parseModel (FormDef f, Element e) {
+	private void parseModel (FormDef f, Element e) {
 		if (modelFound) {
 			//#if debug.output==verbose
 			System.err.println("Multiple models not supported. Ignoring subsequent models.");
@@ -372,7 +680,7 @@ public class XFormParser {
 		
 	}
 
-	private static void saveInstanceNode (Element instance) {
+	private void saveInstanceNode (Element instance) {
 		if (instanceNode != null) {
 			System.err.println("Multiple instances not supported. Ignoring subsequent instances.");
 			return;
@@ -389,9 +697,7 @@ public class XFormParser {
 		}
 	}
 	
-	private static int serialQuestionID = 1;
-	
-	protected static QuestionDef parseUpload(IFormElement parent, Element e, FormDef f,
+	protected QuestionDef parseUpload(IFormElement parent, Element e, FormDef f,
 			int controlUpload) {
 		QuestionDef question = parseControl(parent, e, f, controlUpload);
 		String mediaType = e.getAttributeValue(null, "mediatype");
@@ -410,7 +716,7 @@ public class XFormParser {
         return question;
     }
 	
-	protected static QuestionDef parseControl (IFormElement parent, Element e, FormDef f, int controlType) {
+	protected QuestionDef parseControl (IFormElement parent, Element e, FormDef f, int controlType) {
 		QuestionDef question = new QuestionDef();
 		question.setID(serialQuestionID++); //until we come up with a better scheme
 		IDataReference dataRef = null;
@@ -722,7 +1028,20 @@ public class XFormParser {
 		}
 	}
 
-	private static void parseGroup (IFormElement parent, Element e, FormDef f, int groupType) {
+	private void parseGroup (IFormElement parent, Element e, FormDef f, int groupType) {
+		GroupDef group = startGroup(parent, e, f, groupType);
+
+		for (int i = 0; i < e.getChildCount(); i++) {
+			if (e.getType(i) == Element.ELEMENT) {
+				parseElement(f, e.getElement(i), group, groupLevel);
+			}
+		}
+
+		parent.addChild(group);
+	}
+
+	//set up a group from its start tag; its content is parsed by the caller
+	private GroupDef startGroup (IFormElement parent, Element e, FormDef f, int groupType) {
 		GroupDef group = new GroupDef();
 		group.setID(serialQuestionID++); //until we come up with a better scheme
 		IDataReference dataRef = null;
@@ -775,17 +1094,11 @@ public class XFormParser {
 
 		//the case of a group wrapping a repeat is cleaned up in a post-processing step (collapseRepeatGroups)
 		
-		for (int i = 0; i < e.getChildCount(); i++) {
-			if (e.getType(i) == Element.ELEMENT) {
-				parseElement(f, e.getElement(i), group, groupLevelHandlers);
-			}
-		}
-
-		parent.addChild(group);
+		return group;
 	}
 
 	//take a (possibly relative) reference, and make it absolute based on its parent
-	private static IDataReference getAbsRef (IDataReference ref, IFormElement parent) {
+	private IDataReference getAbsRef (IDataReference ref, IFormElement parent) {
 		TreeReference tref, parentRef = null;
 		
 		if (ref != null) {
@@ -920,9 +1233,7 @@ public class XFormParser {
 	 */
 
 	private static void parseIText (FormDef f, Element itext) {
-		Localizer l = new Localizer(true, true);
-		f.setLocalizer(l);
-		l.registerLocalizable(f);
+		Localizer l = startIText(f);
 
 		for (int i = 0; i < itext.getChildCount(); i++) {
 			Element trans = itext.getElement(i);
@@ -932,6 +1243,17 @@ public class XFormParser {
 			parseTranslation(l, trans, f);
 		}
 
+		finishIText(l);
+	}
+
+	private static Localizer startIText (FormDef f) {
+		Localizer l = new Localizer(true, true);
+		f.setLocalizer(l);
+		l.registerLocalizable(f);
+		return l;
+	}
+
+	private static void finishIText (Localizer l) {
 		if (l.getAvailableLocales().length == 0)
 			throw new XFormParseException("no <translation>s defined");
 
@@ -940,6 +1262,30 @@ public class XFormParser {
 	}
 
 	private static void parseTranslation (Localizer l, Element trans, FormDef f) {
+		String lang = startTranslation(l, trans);
+		TableLocaleSource source = new TableLocaleSource();
+
+		for (int j = 0; j < trans.getChildCount(); j++) {
+			Element text = trans.getElement(j);
+			if (text == null || !text.getName().equals("text"))
+				continue;
+
+			parseTextHandle(source, text, f);
+			//Clayton Sims - Jun 17, 2009 - This code is used when the stinginess flag
+			//is set for the build. It dynamically wipes out old model nodes once they're
+			//used. This is sketchy if anything else plans on touching the nodes.
+			//This code can be removed once we're pull-parsing
+			//#if org.javarosa.xform.stingy
+			//# trans.removeChild(j);
+			//# --j;
+			//#endif
+		}
+		
+		l.registerLocaleResource(lang, source);
+	}
+
+	//validate and register a translation's language from its start tag; returns the language
+	private static String startTranslation (Localizer l, Element trans) {
 		String lang = trans.getAttributeValue("", "lang");
 		if (lang == null || lang.length() == 0)
 			throw new XFormParseException("no language specified for <translation>");
@@ -954,25 +1300,7 @@ public class XFormParser {
 			l.setDefaultLocale(lang);
 		}
 		
-		TableLocaleSource source = new TableLocaleSource();
-
-		for (int j = 0; j < trans.getChildCount(); j++) {
-			Element text = trans.getElement(j);
-			if (text == null || !text.getName().equals("text"))
-				continue;
-
-			parseTextHandle(source, text, f);
-			//Clayton Sims - Jun 17, 2009 - This code is used when the stinginess flag
-			//is set for the build. It dynamically wipes out old model nodes once they're
-			//used. This is sketchy if anything else plans on touching the nodes.
-			//This code can be removed once we're pull-parsing
-			//#if org.javarosa.xform.stingy
-			//# trans.removeChild(j);
-			//# --j;
-			//#endif
-		}
-		
-		l.registerLocaleResource(lang, source);
+		return lang;
 	}
 
 	private static void parseTextHandle (TableLocaleSource l, Element text, FormDef f) {
@@ -1020,7 +1348,7 @@ public class XFormParser {
 		}
 	}
 
-	private static void parseBind (FormDef f, Element e) {
+	private void parseBind (FormDef f, Element e) {
 		DataBinding binding  = new DataBinding();
 
 		binding.setId(e.getAttributeValue("", "id"));
@@ -1077,7 +1405,7 @@ public class XFormParser {
 		String xpathConstr = e.getAttributeValue(null, "constraint");
 		if (xpathConstr != null) {
 			try {
-				binding.constraint = new XPathConditional(xpathConstr);
+				binding.constraint = new XPathConditional(xpathConstr, xpathCache);
 			} catch (XPathSyntaxException xse) {
 				//#if debug.output==verbose
 				System.err.println("Invalid XPath expression [" + xpathConstr + "]!");
@@ -1097,7 +1425,7 @@ public class XFormParser {
 		binding.setPreloadParams(e.getAttributeValue(NAMESPACE_JAVAROSA, "preloadParams"));
 
 		//custom bind handlers
-		Enumeration en = bindHandlers.elements();
+		Enumeration en = binders.elements();
 		while(en.hasMoreElements()) {
 			((IXFormBindHandler)en.nextElement()).handle(e, binding);
 		}
@@ -1105,7 +1433,7 @@ public class XFormParser {
 		addBinding(binding);
 	}
 
-	private static Condition buildCondition (String xpath, String type, IDataReference contextRef) {
+	private Condition buildCondition (String xpath, String type, IDataReference contextRef) {
 		XPathConditional cond;
 		int trueAction = -1, falseAction = -1;
 
@@ -1121,7 +1449,7 @@ public class XFormParser {
 		}
 
 		try {
-			cond = new XPathConditional(xpath);
+			cond = new XPathConditional(xpath, xpathCache);
 		} catch (XPathSyntaxException xse) {
 			//#if debug.output==verbose
 			System.err.println("Invalid XPath expression [" + xpath + "]!");
@@ -1133,11 +1461,11 @@ public class XFormParser {
 		return c;
 	}
 	
-	private static Recalculate buildCalculate (String xpath, IDataReference contextRef) {
+	private Recalculate buildCalculate (String xpath, IDataReference contextRef) {
 		XPathConditional calc;
 
 		try {
-			calc = new XPathConditional(xpath);
+			calc = new XPathConditional(xpath, xpathCache);
 		} catch (XPathSyntaxException xse) {
 			//#if debug.output==verbose
 			System.err.println("Invalid XPath expression [" + xpath + "]!");
@@ -1149,7 +1477,7 @@ public class XFormParser {
 		return r;
 	}
 	
-	private static void addBinding (DataBinding binding) {
+	private void addBinding (DataBinding binding) {
 		bindings.addElement(binding);
 		
 		if (binding.getId() != null) {
@@ -1160,8 +1488,8 @@ public class XFormParser {
 	}
 		
 	//e is the top-level _data_ node of the instance (immediate (and only) child of <instance>)
-	private static void parseInstance (FormDef f, Element e) {
-		TreeElement root = buildInstanceStructure(e, null);
+	private void parseInstance (FormDef f, Element e) {
+		TreeElement root = buildInstanceStructure(e, null, types, prototypes);
 		DataModelTree instanceModel = new DataModelTree(root);
 		instanceModel.setName(f.getTitle());
 		
@@ -1180,9 +1508,8 @@ public class XFormParser {
 		loadInstanceData(e, root, f); //FIXME: FormDef param is temporary
 		
 		checkDependencyCycles(f);
-		f.finalizeTriggerables();
-		
 		f.setDataModel(instanceModel);
+		f.finalizeTriggerables();
 	}
 	
 	private static Hashtable loadNamespaces(Element e, DataModelTree tree) {
@@ -1199,6 +1526,16 @@ public class XFormParser {
 	
 	//parse instance hierarchy and turn into a skeleton model; ignoring data content, but respecting repeated nodes and 'template' flags
 	public static TreeElement buildInstanceStructure (Element node, TreeElement parent) {
+		Hashtable types;
+		PrototypeFactoryDeprecated prototypes;
+		synchronized (XFormParser.class) {
+			types = typeMappings;
+			prototypes = modelPrototypes;
+		}
+		return buildInstanceStructure(node, parent, types, prototypes);
+	}
+
+	private static TreeElement buildInstanceStructure (Element node, TreeElement parent, Hashtable types, PrototypeFactoryDeprecated prototypes) {
 		TreeElement element = null;
 
 		//catch when text content is mixed with children
@@ -1237,10 +1574,10 @@ public class XFormParser {
 		if(modelType == null) {
 			element = new TreeElement(name, multiplicity);
 		} else {
-            if( typeMappings.get(modelType) == null ){
+            if( types.get(modelType) == null ){
                 throw new XFormParseException("ModelType " + modelType + " is not recognized.");                
             }
-            element = (TreeElement)modelPrototypes.getNewInstance(((Integer)typeMappings.get(modelType)).toString());
+            element = (TreeElement)prototypes.getNewInstance(((Integer)types.get(modelType)).toString());
 			if(element == null) {
 				element = new TreeElement(name, multiplicity);
 				System.out.println("No model type prototype available for " + modelType);
@@ -1253,7 +1590,7 @@ public class XFormParser {
 		if (hasElements) {
 			for (int i = 0; i < numChildren; i++) {
 				if (node.getType(i) == Node.ELEMENT) {
-					element.addChild(buildInstanceStructure(node.getElement(i), element));
+					element.addChild(buildInstanceStructure(node.getElement(i), element, types, prototypes));
 				}
 			}
 		}
@@ -1282,7 +1619,7 @@ public class XFormParser {
 	// 4) generate template nodes for repeat bindings that do not have one defined explicitly
 	// 5) give a stern warning for any repeated instance nodes that do not correspond to a repeat binding
 	// 6) verify that all sets of repeated nodes are homogeneous
-	private static void processRepeats (DataModelTree instance) {
+	private void processRepeats (DataModelTree instance) {
 		flagRepeatables(instance);
 		processTemplates(instance);
 		checkDuplicateNodesAreRepeatable(instance.getRoot());	
@@ -1290,7 +1627,7 @@ public class XFormParser {
 	}
 
 	//flag all nodes identified by repeat bindings as repeatable
-	private static void flagRepeatables (DataModelTree instance) {
+	private void flagRepeatables (DataModelTree instance) {
 		for (int i = 0; i < repeats.size(); i++) {
 			TreeReference ref = (TreeReference)repeats.elementAt(i);
 			Vector nodes = instance.expandReference(ref, true);
@@ -1303,7 +1640,7 @@ public class XFormParser {
 		}		
 	}
 	
-	private static void processTemplates (DataModelTree instance) {
+	private void processTemplates (DataModelTree instance) {
 		repeatTree = buildRepeatTree(repeats, instance.getRoot().getName());
 		
 		Vector missingTemplates = new Vector(); //Vector<TreeReference>
@@ -1329,7 +1666,7 @@ public class XFormParser {
 			
 			TreeElement cur = root;
 			for (int j = 0; j < repeatRef.size(); j++) {
-				String name = (String)repeatRef.names.elementAt(j);
+				String name = repeatRef.getName(j);
 				TreeElement child = cur.getChild(name, 0);
 				if (child == null) {
 					child = new TreeElement(name, 0);
@@ -1368,7 +1705,7 @@ public class XFormParser {
 		}
 			
 		for (int i = 0; i < repeatTreeNode.getNumChildren(); i++) {
-			checkRepeatsForTemplate((TreeElement)repeatTreeNode.getChildren().elementAt(i), ref, instance, missing);
+			checkRepeatsForTemplate(repeatTreeNode.getChildAt(i), ref, instance, missing);
 		}
 	}
 	
@@ -1398,7 +1735,7 @@ public class XFormParser {
 			templateAllowed = false;
 		
 		for (int i = 0; i < instanceNode.getNumChildren(); i++) {
-			TreeElement child = (TreeElement)instanceNode.getChildren().elementAt(i);
+			TreeElement child = instanceNode.getChildAt(i);
 			TreeElement rchild = (repeatTreeNode == null ? null : repeatTreeNode.getChild(child.getName(), 0));
 			
 			if (removeInvalidTemplates(child, rchild, templateAllowed)) {
@@ -1420,7 +1757,7 @@ public class XFormParser {
 			//make template ref generic and choose first matching node
 			TreeReference ref = templRef.clone();
 			for (int j = 0; j < ref.size(); j++) {
-				ref.multiplicity.setElementAt(new Integer(TreeReference.INDEX_UNBOUND), j);
+				ref.setMultiplicity(j, TreeReference.INDEX_UNBOUND);
 			}
 			Vector nodes = instance.expandReference(ref);
 			if (nodes.size() == 0) {
@@ -1442,7 +1779,7 @@ public class XFormParser {
 	//  and # of repeats for a given repeat node is a kind of data. trust me
 	private static void trimRepeatChildren (TreeElement node) {
 		for (int i = 0; i < node.getNumChildren(); i++) {
-			TreeElement child = (TreeElement)node.getChildren().elementAt(i);
+			TreeElement child = node.getChildAt(i);
 			if (child.repeatable) {
 				node.removeChildAt(i);
 				i--;
@@ -1462,12 +1799,12 @@ public class XFormParser {
 		}
 		
 		for (int i = 0; i < node.getNumChildren(); i++) {
-			checkDuplicateNodesAreRepeatable((TreeElement)node.getChildren().elementAt(i));
+			checkDuplicateNodesAreRepeatable(node.getChildAt(i));
 		}
 	}
 	
 	//check repeat sets for homogeneity
-	private static void checkHomogeneity (DataModelTree instance) {
+	private void checkHomogeneity (DataModelTree instance) {
 		for (int i = 0; i < repeats.size(); i++) {
 			TreeReference ref = (TreeReference)repeats.elementAt(i);
 			TreeElement template = null;
@@ -1488,7 +1825,7 @@ public class XFormParser {
 		}
 	}
 	
-	private static void verifyBindings (FormDef f, DataModelTree instance) {
+	private void verifyBindings (FormDef f, DataModelTree instance) {
 		//check <bind>s (can't bind to '/', bound nodes actually exist)
 		for (int i = 0; i < bindings.size(); i++) {
 			DataBinding bind = (DataBinding)bindings.elementAt(i);
@@ -1555,7 +1892,7 @@ public class XFormParser {
 		}
 	}
 	
-	private static void verifyRepeatMemberBindings (IFormElement fe, DataModelTree instance, GroupDef parentRepeat) {
+	private void verifyRepeatMemberBindings (IFormElement fe, DataModelTree instance, GroupDef parentRepeat) {
 		if (fe.getChildren() == null)
 			return;
 		
@@ -1583,7 +1920,7 @@ public class XFormParser {
 			if (repeatNode != null) {
 				repeatAncestry.addElement(repeatNode);			
 				for (int j = 1; j < childBind.size(); j++) {
-					repeatNode = repeatNode.getChild((String)childBind.names.elementAt(j), 0);
+					repeatNode = repeatNode.getChild(childBind.getName(j), 0);
 					if (repeatNode != null) {
 						repeatAncestry.addElement(repeatNode);
 					} else {
@@ -1606,7 +1943,7 @@ public class XFormParser {
 		}
 	}
 	
-	private static void applyInstanceProperties (DataModelTree instance) {
+	private void applyInstanceProperties (DataModelTree instance) {
 		for (int i = 0; i < bindings.size(); i++) {
 			DataBinding bind = (DataBinding)bindings.elementAt(i);
 			TreeReference ref = DataModelTree.unpackReference(bind.getReference());
@@ -1664,7 +2001,7 @@ public class XFormParser {
 	//apply properties to instance nodes that are determined by controls bound to those nodes
 	//this should make you feel slightly dirty, but it allows us to be somewhat forgiving with the form
 	//(e.g., a select question bound to a 'text' type node) 
-	private static void applyControlProperties (DataModelTree instance) {
+	private void applyControlProperties (DataModelTree instance) {
 		for (int h = 0; h < 2; h++) {
 			Vector selectRefs = (h == 0 ? selectOnes : selectMultis);
 			int type = (h == 0 ? Constants.DATATYPE_CHOICE : Constants.DATATYPE_CHOICE_LIST);
@@ -1840,22 +2177,20 @@ public class XFormParser {
 	//back into its original form def and it will still parse. in particular, non-relevant nodes will be missing, which will
 	//really confuse the binding verifier and repeat homogeneity checker.
 	public static DataModelTree parseDataModelGhettoooooo (InputStream instanceXMLStream, InputStream formDefXMLStream, String locale) {
-		Document formDefXML = getXMLDocument(new InputStreamReader(formDefXMLStream));
-		Document instanceXML = getXMLDocument(new InputStreamReader(instanceXMLStream));
+		Document formDefXML = getXMLDocument(formDefXMLStream);
+		Document instanceXML = getXMLDocument(instanceXMLStream);
 
 		//copied from getFromDef
 		FormDef formDef = new FormDef();
+		XFormParser p = new XFormParser();
 		
-		initBindHandlers();
-		initStateVars();
+		p.initBindHandlers();
 
-		parseElement(formDef, formDefXML.getRootElement(), formDef, topLevelHandlers);
+		p.parseElement(formDef, formDefXML.getRootElement(), formDef, p.topLevel);
 		collapseRepeatGroups(formDef);
 		
-		instanceNode = instanceXML.getRootElement(); //replace default form instance with our new instance
-		parseInstance(formDef, instanceNode);
-
-		initStateVars();
+		p.instanceNode = instanceXML.getRootElement(); //replace default form instance with our new instance
+		p.parseInstance(formDef, p.instanceNode);
 
 		if (locale != null) {
 			formDef.getLocalizer().setToDefault();
@@ -1867,7 +2202,7 @@ public class XFormParser {
 	}
 		
 	//returns data type corresponding to type string; doesn't handle defaulting to 'text' if type unrecognized/unknown
-	private static int getDataType(String type) {
+	private int getDataType(String type) {
 		int dataType = Constants.DATATYPE_NULL;
 		
 		if (type != null) {
@@ -1876,8 +2211,8 @@ public class XFormParser {
 				type = type.substring(type.indexOf(":") + 1);
 			}
 			
-			if (typeMappings.containsKey(type)) {
-				dataType = ((Integer)typeMappings.get(type)).intValue();				
+			if (types.containsKey(type)) {
+				dataType = ((Integer)types.get(type)).intValue();				
 			} else {
 				dataType = Constants.DATATYPE_UNSUPPORTED;
 				//#if debug.output==verbose
@@ -1889,27 +2224,53 @@ public class XFormParser {
 		return dataType;
 	}
 
-	public static void addModelPrototype(int type, TreeElement element) {
-		modelPrototypes.addNewPrototype(String.valueOf(type), element.getClass());
+	public static synchronized void addModelPrototype(int type, TreeElement element) {
+		PrototypeFactoryDeprecated newPrototypes = new PrototypeFactoryDeprecated();
+		for (Enumeration e = modelPrototypes.prototypes.keys(); e.hasMoreElements(); ) {
+			String key = (String)e.nextElement();
+			newPrototypes.addNewPrototype(key, (Class)modelPrototypes.prototypes.get(key));
+		}
+		newPrototypes.addNewPrototype(String.valueOf(type), element.getClass());
+		modelPrototypes = newPrototypes;
 	}
 
-	public static void addDataType (String type, int dataType) {
-		typeMappings.put(type, new Integer(dataType));
+	public static synchronized void addDataType (String type, int dataType) {
+		Hashtable newMappings = copy(typeMappings);
+		newMappings.put(type, new Integer(dataType));
+		typeMappings = newMappings;
 	}
 	public static void registerControlType(String type, final int typeId) {
-		IElementHandler newHandler = new IElementHandler () {
-			public void handle (FormDef f, Element e, Object parent) { parseControl((IFormElement)parent, e, f, typeId); } };
-		topLevelHandlers.put(type, newHandler);
-		groupLevelHandlers.put(type, newHandler);
+		IElementHandler newHandler = new ParseHandler () {
+			public void handle (XFormParser p, FormDef f, Element e, Object parent) { p.parseControl((IFormElement)parent, e, f, typeId); } };
+		registerHandler(type, newHandler);
+	}
+
+	public static synchronized void registerHandler(String type, IElementHandler handler) {
+		Hashtable newTopLevel = copy(topLevelHandlers);
+		Hashtable newGroupLevel = copy(groupLevelHandlers);
+		newTopLevel.put(type, handler);
+		newGroupLevel.put(type, handler);
+		topLevelHandlers = newTopLevel;
+		groupLevelHandlers = newGroupLevel;
 	}
 
-	public static void registerHandler(String type, IElementHandler handler) {
-		topLevelHandlers.put(type, handler);
-		groupLevelHandlers.put(type, handler);
+	//the handler objects themselves are shared by every parse; see parse(Document)
+	public static synchronized void registerBindHandler(IXFormBindHandler handler) {
+		Vector newHandlers = new Vector();
+		for (int i = 0; i < bindHandlers.size(); i++) {
+			newHandlers.addElement(bindHandlers.elementAt(i));
+		}
+		newHandlers.addElement(handler);
+		bindHandlers = newHandlers;
 	}
 
-	public static void registerBindHandler(IXFormBindHandler handler) {
-		bindHandlers.addElement(handler);
+	private static Hashtable copy (Hashtable h) {
+		Hashtable newTable = new Hashtable();
+		for (Enumeration e = h.keys(); e.hasMoreElements(); ) {
+			Object key = e.nextElement();
+			newTable.put(key, h.get(key));
+		}
+		return newTable;
 	}
 
 	public static String getXMLText (Node n, boolean trim) {
@@ -1944,7 +2305,7 @@ public class XFormParser {
 	public static DataModelTree restoreDataModel (byte[] data, Class restorableType) {
 		Restorable r = (restorableType != null ? (Restorable)PrototypeFactory.getInstance(restorableType) : null);
 		
-		Document doc = getXMLDocument(new InputStreamReader(new ByteArrayInputStream(data)));
+		Document doc = getXMLDocument(new ByteArrayInputStream(data));
 		Element e = doc.getRootElement();
 		
 		TreeElement te = buildInstanceStructure(e, null);
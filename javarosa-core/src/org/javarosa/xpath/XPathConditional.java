@@ -19,6 +19,7 @@ package org.javarosa.xpath;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import org.javarosa.core.model.IFormDataModel;
@@ -27,23 +28,35 @@ import org.javarosa.core.model.condition.IConditionExpr;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
 import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.xpath.expr.XPathBinaryOpExpr;
 import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFilterExpr;
 import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.javarosa.xpath.expr.XPathPathExpr;
+import org.javarosa.xpath.expr.XPathStep;
 import org.javarosa.xpath.expr.XPathUnaryOpExpr;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 
 public class XPathConditional implements IConditionExpr {
 	private XPathExpression expr;
-	public String xpath; //not serialized!
+	public String xpath; //source text; may be null for expressions built programmatically
 	
 	public XPathConditional (String xpath) throws XPathSyntaxException {
 		this.expr = XPathParseTool.parseXPath(xpath);
 		this.xpath = xpath;
 	}
+
+	/**
+	 * @param cache parse trees to share with other conditionals of the same form;
+	 * see XPathParseTool.parseXPath(String, Hashtable)
+	 */
+	public XPathConditional (String xpath, Hashtable cache) throws XPathSyntaxException {
+		this.expr = XPathParseTool.parseXPath(xpath, cache);
+		this.xpath = xpath;
+	}
 	
 	public XPathConditional () {
 		
@@ -53,16 +66,25 @@ public class XPathConditional implements IConditionExpr {
 		return expr;
 	}
 	
+	public void compile (IFormDataModel model, TreeReference contextRef) {
+		expr.compile(model, contextRef);
+	}
+	
 	public Object evalRaw (IFormDataModel model, EvaluationContext evalContext) {
-		return expr.eval(model, evalContext);
+		Object result = expr.eval(model, evalContext);
+		if (result instanceof XPathNodeset) {
+			result = ((XPathNodeset)result).unpack();
+		}
+		//multi-select values stay typed within the expression; callers outside xpath see the xml string
+		return (result instanceof XPathSelectionList ? result.toString() : result);
 	}
 	
 	public boolean eval (IFormDataModel model, EvaluationContext evalContext) {
-		return XPathFuncExpr.toBoolean(evalRaw(model, evalContext)).booleanValue();
+		return XPathFuncExpr.toBoolean(expr.eval(model, evalContext)).booleanValue();
 	}
 	
 	public String evalReadable (IFormDataModel model, EvaluationContext evalContext) {
-		return XPathFuncExpr.toString(evalRaw(model, evalContext));
+		return XPathFuncExpr.toString(expr.eval(model, evalContext));
 	}
 	
 	public Vector getTriggers () {
@@ -73,9 +95,29 @@ public class XPathConditional implements IConditionExpr {
 	
 	private static void getTriggers (XPathExpression x, Vector v) {
 		if (x instanceof XPathPathExpr) {
-			TreeReference ref = ((XPathPathExpr)x).getReference();
+			XPathPathExpr path = (XPathPathExpr)x;
+			TreeReference ref = path.getReference(true);
 			if (!v.contains(ref))
 				v.addElement(ref);
+			
+			//what the predicates look at decides which nodes the path selects
+			for (int i = 0; i < path.steps.length; i++) {
+				XPathStep step = path.steps[i];
+				if (step.predicates.length == 0) {
+					continue;
+				}
+				
+				TreeReference stepRef = path.getStepReference(i);
+				Vector predTriggers = new Vector();
+				for (int j = 0; j < step.predicates.length; j++) {
+					getTriggers(step.predicates[j], predTriggers);
+				}
+				for (int j = 0; j < predTriggers.size(); j++) {
+					TreeReference trigger = relativeTo(stepRef, (TreeReference)predTriggers.elementAt(j));
+					if (trigger != null && !v.contains(trigger))
+						v.addElement(trigger);
+				}
+			}
 		} else if (x instanceof XPathBinaryOpExpr) {
 			getTriggers(((XPathBinaryOpExpr)x).a, v);
 			getTriggers(((XPathBinaryOpExpr)x).b, v);			
@@ -88,6 +130,65 @@ public class XPathConditional implements IConditionExpr {
 		}
 	}
 	
+	public boolean isVolatile (EvaluationContext evalContext) {
+		return isVolatile(expr, evalContext);
+	}
+	
+	private static boolean isVolatile (XPathExpression x, EvaluationContext ec) {
+		if (x instanceof XPathPathExpr) {
+			XPathPathExpr path = (XPathPathExpr)x;
+			if (path.filtExpr != null && isVolatile(path.filtExpr, ec))
+				return true;
+			for (int i = 0; i < path.steps.length; i++) {
+				if (anyVolatile(path.steps[i].predicates, ec))
+					return true;
+			}
+			return false;
+		} else if (x instanceof XPathFilterExpr) {
+			XPathFilterExpr filt = (XPathFilterExpr)x;
+			return isVolatile(filt.x, ec) || anyVolatile(filt.predicates, ec);
+		} else if (x instanceof XPathBinaryOpExpr) {
+			return isVolatile(((XPathBinaryOpExpr)x).a, ec) || isVolatile(((XPathBinaryOpExpr)x).b, ec);
+		} else if (x instanceof XPathUnaryOpExpr) {
+			return isVolatile(((XPathUnaryOpExpr)x).a, ec);
+		} else if (x instanceof XPathFuncExpr) {
+			XPathFuncExpr fx = (XPathFuncExpr)x;
+			return fx.isVolatile(ec) || anyVolatile(fx.args, ec);
+		} else {
+			return false;
+		}
+	}
+	
+	private static boolean anyVolatile (XPathExpression[] xs, EvaluationContext ec) {
+		for (int i = 0; i < xs.length; i++) {
+			if (isVolatile(xs[i], ec))
+				return true;
+		}
+		return false;
+	}
+	
+	//ref, taken relative to the node(s) base refers to; null if ref goes up past the root
+	private static TreeReference relativeTo (TreeReference base, TreeReference ref) {
+		if (ref.isAbsolute()) {
+			return ref;
+		}
+		
+		TreeReference joined = base.clone();
+		for (int i = 0; i < ref.getRefLevel(); i++) {
+			if (!joined.removeLastLevel()) {
+				return null;
+			}
+		}
+		for (int i = 0; i < ref.size(); i++) {
+			joined.add(ref.getName(i), ref.getMultiplicity(i));
+		}
+		return joined;
+	}
+	
+	public String toString () {
+		return (xpath != null ? xpath : expr.toString());
+	}
+	
 	public boolean equals (Object o) {
 		if (o instanceof XPathConditional) {
 			XPathConditional cond = (XPathConditional)o;
@@ -99,9 +200,11 @@ public class XPathConditional implements IConditionExpr {
 
 	public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
 		expr = (XPathExpression)ExtUtil.read(in, new ExtWrapTagged(), pf);
+		xpath = (String)ExtUtil.read(in, new ExtWrapNullable(String.class), pf);
 	}
 
 	public void writeExternal(DataOutputStream out) throws IOException {
 		ExtUtil.write(out, new ExtWrapTagged(expr));
+		ExtUtil.write(out, new ExtWrapNullable(xpath));
 	}
 }
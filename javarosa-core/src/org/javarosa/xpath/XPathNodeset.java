@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.xpath;
+
+import java.util.Vector;
+
+import org.javarosa.core.model.IFormDataModel;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathPathExpr;
+
+/**
+ * The nodes selected by a path with predicates, e.g. /data/household[age > 60].
+ * Like any other nodeset it is a Vector of TreeReferences, so count() and sum()
+ * work on it as usual. Unlike a plain repeat path, which can only be used as a
+ * nodeset, it can also stand for a value, as in /data/item[id = 3]/price * 2:
+ * used as a string or number it is the value of its first node ("" if it is empty),
+ * as the xpath spec defines for string() and number().
+ */
+public class XPathNodeset extends Vector implements IExprDataType {
+	private IFormDataModel model;
+
+	public XPathNodeset (IFormDataModel model) {
+		this.model = model;
+	}
+
+	/**
+	 * @return The value of the first node, as a path to that node would evaluate to
+	 */
+	public Object unpack () {
+		if (size() == 0) {
+			return "";
+		} else {
+			return XPathPathExpr.getRefValue(model, (TreeReference)elementAt(0));
+		}
+	}
+
+	public Boolean toBoolean () {
+		return new Boolean(size() > 0);
+	}
+
+	public Double toNumeric () {
+		return XPathFuncExpr.toNumeric(unpack());
+	}
+
+	public String toString () {
+		return XPathFuncExpr.toString(unpack());
+	}
+}
@@ -16,9 +16,11 @@
 
 package org.javarosa.xpath;
 
+import java.util.Hashtable;
+
 import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.ExpressionParser;
 import org.javarosa.xpath.parser.Lexer;
-import org.javarosa.xpath.parser.Parser;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 
 public class XPathParseTool {
@@ -38,7 +40,23 @@ public class XPathParseTool {
 	};
 
 	public static XPathExpression parseXPath (String xpath) throws XPathSyntaxException {
-		return Parser.parse(Lexer.lex(xpath));
+		return ExpressionParser.parse(Lexer.lex(xpath));
+	}
+
+	/**
+	 * Parse an expression, reusing the tree from an earlier parse of the same text
+	 * if there is one in 'cache' (<String, XPathExpression>). The trees are shared,
+	 * so they mustn't be modified; and as compiling a tree (see
+	 * XPathExpression.compile()) ties it to a model, a cache should only be used for
+	 * the expressions of a single form.
+	 */
+	public static XPathExpression parseXPath (String xpath, Hashtable cache) throws XPathSyntaxException {
+		XPathExpression expr = (XPathExpression)cache.get(xpath);
+		if (expr == null) {
+			expr = parseXPath(xpath);
+			cache.put(xpath, expr);
+		}
+		return expr;
 	}
 	
 	//for running from command line
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.xpath;
+
+import java.util.Vector;
+
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+
+/**
+ * The value of a multiple-select answer during xpath evaluation. selected() and count-selected()
+ * work on the selections directly; the space-delimited string the xforms spec prescribes is only
+ * built if the value is used as a string (or a number or boolean, which are defined in terms of it).
+ */
+public class XPathSelectionList implements IExprDataType {
+	private Vector selections; //<Selection>
+	private String serialized;
+
+	public XPathSelectionList (Vector selections) {
+		this.selections = selections;
+	}
+
+	public int size () {
+		return selections.size();
+	}
+
+	/* choice lists are short and this value only lives for a single evaluation, so a scan
+	 * beats building a hashtable; either way nothing is concatenated or split */
+	public boolean contains (String value) {
+		for (int i = 0; i < selections.size(); i++) {
+			if (((Selection)selections.elementAt(i)).getValue().equals(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Boolean toBoolean () {
+		return new Boolean(selections.size() > 0);
+	}
+
+	public Double toNumeric () {
+		return XPathFuncExpr.toNumeric(toString());
+	}
+
+	public String toString () {
+		if (serialized == null) {
+			StringBuffer sb = new StringBuffer();
+			for (int i = 0; i < selections.size(); i++) {
+				if (i > 0) {
+					sb.append(" ");
+				}
+				sb.append(((Selection)selections.elementAt(i)).getValue());
+			}
+			serialized = sb.toString();
+		}
+		return serialized;
+	}
+}
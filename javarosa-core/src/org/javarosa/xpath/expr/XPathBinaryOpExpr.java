@@ -20,6 +20,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import org.javarosa.core.model.IFormDataModel;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
@@ -35,6 +37,11 @@ public abstract class XPathBinaryOpExpr extends XPathOpExpr {
 		this.b = b;
 	}
 	
+	public void compile (IFormDataModel model, TreeReference contextRef) {
+		a.compile(model, contextRef);
+		b.compile(model, contextRef);
+	}
+	
 	public String toString (String op) {
 		return "{binop-expr:" + op + "," + a.toString() + "," + b.toString() + "}";
 	}
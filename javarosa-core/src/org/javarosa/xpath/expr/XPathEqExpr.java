@@ -26,6 +26,7 @@ import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.javarosa.xpath.XPathNodeset;
 import org.javarosa.xpath.XPathTypeMismatchException;
 
 public class XPathEqExpr extends XPathBinaryOpExpr {
@@ -43,6 +44,13 @@ public class XPathEqExpr extends XPathBinaryOpExpr {
 		Object bval = b.eval(model, evalContext);
 		boolean eq = false;
 
+		if (aval instanceof XPathNodeset) {
+			aval = ((XPathNodeset)aval).unpack();
+		}
+		if (bval instanceof XPathNodeset) {
+			bval = ((XPathNodeset)bval).unpack();
+		}
+
 		if (aval instanceof Vector || bval instanceof Vector) {
 			throw new XPathTypeMismatchException();
 		} else if (aval instanceof Boolean || bval instanceof Boolean) {
@@ -18,12 +18,24 @@ package org.javarosa.xpath.expr;
 
 import org.javarosa.core.model.IFormDataModel;
 import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.util.externalizable.Externalizable;
 
 public abstract class XPathExpression implements Externalizable {
 	
 	public abstract Object eval (IFormDataModel model, EvaluationContext evalContext);
 	
+	/**
+	 * Prepare this expression for repeated evaluation against 'model' from
+	 * context nodes matching the generic ref 'contextRef', by working out ahead
+	 * of time anything that doesn't change between evaluations. Compiling is
+	 * optional; an expression evaluates the same either way. Compiled state is
+	 * not serialized.
+	 */
+	public void compile (IFormDataModel model, TreeReference contextRef) {
+		//nothing to precompute by default
+	}
+	
 	/*======= DEBUGGING ========*/
 	// should not compile onto phone
 
@@ -25,17 +25,23 @@ import java.util.Hashtable;
 import java.util.Vector;
 
 import me.regexp.RE;
+import me.regexp.REProgram;
+import me.regexp.RESyntaxException;
 
+import org.javarosa.core.api.IInstrumentation;
 import org.javarosa.core.model.IFormDataModel;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.condition.IFunctionHandler;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.utils.DateUtils;
+import org.javarosa.core.services.Instrumentation;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapListPoly;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.xpath.IExprDataType;
+import org.javarosa.xpath.XPathNodeset;
+import org.javarosa.xpath.XPathSelectionList;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.XPathUnhandledException;
 
@@ -43,6 +49,65 @@ public class XPathFuncExpr extends XPathExpression {
 	public XPathQName id;
 	public XPathExpression[] args;
 
+	//built-in functions; a call is mapped to one of these (or FUNC_CUSTOM) once, instead of matching the
+	//function name on every evaluation
+	private static final int FUNC_UNRESOLVED = -1;
+	private static final int FUNC_CUSTOM = 0;
+	private static final int FUNC_TRUE = 1;
+	private static final int FUNC_FALSE = 2;
+	private static final int FUNC_BOOLEAN = 3;
+	private static final int FUNC_NUMBER = 4;
+	private static final int FUNC_STRING = 5;
+	private static final int FUNC_DATE = 6;
+	private static final int FUNC_NOT = 7;
+	private static final int FUNC_BOOLEAN_FROM_STRING = 8;
+	private static final int FUNC_IF = 9;
+	private static final int FUNC_SELECTED = 10;
+	private static final int FUNC_COUNT_SELECTED = 11;
+	private static final int FUNC_COUNT = 12;
+	private static final int FUNC_SUM = 13;
+	private static final int FUNC_TODAY = 14;
+	private static final int FUNC_NOW = 15;
+	private static final int FUNC_CONCAT = 16;
+	private static final int FUNC_CHECKLIST = 17;
+	private static final int FUNC_WEIGHTED_CHECKLIST = 18;
+	private static final int FUNC_REGEX = 19;
+
+	private static final Hashtable builtinFuncs; // <String, Integer>
+	static {
+		builtinFuncs = new Hashtable();
+		builtinFuncs.put("true", new Integer(FUNC_TRUE));
+		builtinFuncs.put("false", new Integer(FUNC_FALSE));
+		builtinFuncs.put("boolean", new Integer(FUNC_BOOLEAN));
+		builtinFuncs.put("number", new Integer(FUNC_NUMBER));
+		builtinFuncs.put("string", new Integer(FUNC_STRING));
+		builtinFuncs.put("date", new Integer(FUNC_DATE));
+		builtinFuncs.put("not", new Integer(FUNC_NOT));
+		builtinFuncs.put("boolean-from-string", new Integer(FUNC_BOOLEAN_FROM_STRING));
+		builtinFuncs.put("if", new Integer(FUNC_IF));
+		builtinFuncs.put("selected", new Integer(FUNC_SELECTED));
+		builtinFuncs.put("is-selected", new Integer(FUNC_SELECTED));
+		builtinFuncs.put("count-selected", new Integer(FUNC_COUNT_SELECTED));
+		builtinFuncs.put("count", new Integer(FUNC_COUNT));
+		builtinFuncs.put("sum", new Integer(FUNC_SUM));
+		builtinFuncs.put("today", new Integer(FUNC_TODAY));
+		builtinFuncs.put("now", new Integer(FUNC_NOW));
+		builtinFuncs.put("concat", new Integer(FUNC_CONCAT));
+		builtinFuncs.put("checklist", new Integer(FUNC_CHECKLIST));
+		builtinFuncs.put("weighted-checklist", new Integer(FUNC_WEIGHTED_CHECKLIST));
+		builtinFuncs.put("regex", new Integer(FUNC_REGEX));
+	}
+
+	private int func = FUNC_UNRESOLVED; //not serialized; see resolveFunction()
+	private REProgram regexProgram; //for regex() with a literal pattern, the pattern compiled at form load; not serialized
+
+	//compiled regular expressions, by pattern; bounded, least recently used evicted first
+	private static final int REGEX_CACHE_SIZE = 32;
+	private static Hashtable regexCache = new Hashtable(); // <String, REProgram>
+	private static Vector regexCacheOrder = new Vector(); // <String>, least recently used first
+	private static int regexCacheHits = 0;
+	private static int regexCacheMisses = 0;
+
 	public XPathFuncExpr () { } //for deserialization
 	
 	public XPathFuncExpr (XPathQName id, XPathExpression[] args) {
@@ -88,6 +153,8 @@ public class XPathFuncExpr extends XPathExpression {
 		args = new XPathExpression[v.size()];
 		for (int i = 0; i < args.length; i++)
 			args[i] = (XPathExpression)v.elementAt(i);		
+		func = FUNC_UNRESOLVED;
+		regexProgram = null;
 	}
 
 	public void writeExternal(DataOutputStream out) throws IOException {
@@ -99,56 +166,135 @@ public class XPathFuncExpr extends XPathExpression {
 		ExtUtil.write(out, new ExtWrapListPoly(v));
 	}
 	
+	public void compile (IFormDataModel model, TreeReference contextRef) {
+		if (resolveFunction() == FUNC_REGEX && args[1] instanceof XPathStringLiteral) {
+			try {
+				regexProgram = getRegexProgram(((XPathStringLiteral)args[1]).s);
+			} catch (RESyntaxException rese) {
+				//leave it to be reported when evaluated
+			}
+		}
+		
+		for (int i = 0; i < args.length; i++) {
+			args[i].compile(model, contextRef);
+		}
+	}
+
+	/**
+	 * Map this call to a built-in function, by name and number of arguments.
+	 * Calls that don't match a built-in go to the custom function handlers
+	 * of the evaluation context.
+	 */
+	/**
+	 * True if this call can return something different without any of its
+	 * arguments changing: now(), today(), or a custom function whose handler
+	 * is realTime()
+	 */
+	public boolean isVolatile (EvaluationContext evalContext) {
+		switch (resolveFunction()) {
+		case FUNC_TODAY:
+		case FUNC_NOW:
+			return true;
+		case FUNC_CUSTOM:
+			IFunctionHandler handler = (IFunctionHandler)evalContext.getFunctionHandlers().get(id.toString());
+			return handler != null && handler.realTime();
+		default:
+			return false;
+		}
+	}
+
+	private int resolveFunction () {
+		if (func == FUNC_UNRESOLVED) {
+			Integer code = (Integer)builtinFuncs.get(id.toString());
+			int f = (code == null ? FUNC_CUSTOM : code.intValue());
+			func = (arityMatches(f, args.length) ? f : FUNC_CUSTOM);
+		}
+		return func;
+	}
+
+	private static boolean arityMatches (int func, int numArgs) {
+		switch (func) {
+		case FUNC_TRUE:
+		case FUNC_FALSE:
+		case FUNC_TODAY:
+		case FUNC_NOW:
+			return numArgs == 0;
+		case FUNC_BOOLEAN:
+		case FUNC_NUMBER:
+		case FUNC_STRING:
+		case FUNC_DATE:
+		case FUNC_NOT:
+		case FUNC_BOOLEAN_FROM_STRING:
+		case FUNC_COUNT_SELECTED:
+		case FUNC_COUNT:
+		case FUNC_SUM:
+			return numArgs == 1;
+		case FUNC_SELECTED:
+		case FUNC_REGEX:
+			return numArgs == 2;
+		case FUNC_IF:
+			return numArgs == 3;
+		case FUNC_CONCAT:
+			return true;
+		case FUNC_CHECKLIST:
+			return numArgs >= 2;
+		case FUNC_WEIGHTED_CHECKLIST:
+			return numArgs >= 2 && numArgs % 2 == 0;
+		default:
+			return true;
+		}
+	}
+
 	public Object eval (IFormDataModel model, EvaluationContext evalContext) {
-		String name = id.toString();
-		Object[] argVals = new Object[args.length];
+		IInstrumentation inst = Instrumentation._();
+		if (inst == null) {
+			return evalFunction(model, evalContext);
+		}
 		
-		Hashtable funcHandlers = evalContext.getFunctionHandlers();
+		long start = System.nanoTime();
+		Object result = evalFunction(model, evalContext);
+		Instrumentation.record(inst, IInstrumentation.FUNCTION, id.toString(), start);
+		return result;
+	}
+	
+	private Object evalFunction (IFormDataModel model, EvaluationContext evalContext) {
+		Object[] argVals = new Object[args.length];
 		
 		for (int i = 0; i < args.length; i++) {
 			argVals[i] = args[i].eval(model, evalContext);
 		}
 		
-		if (name.equals("true") && args.length == 0) {
-			return Boolean.TRUE;
-		} else if (name.equals("false") && args.length == 0) {
-			return Boolean.FALSE;
-		} else if (name.equals("boolean") && args.length == 1) {
-			return toBoolean(argVals[0]);
-		} else if (name.equals("number") && args.length == 1) {
-			return toNumeric(argVals[0]);
-		} else if (name.equals("string") && args.length == 1) {
-			return toString(argVals[0]);			
-		} else if (name.equals("date") && args.length == 1) { //non-standard
-			return toDate(argVals[0]);				
-		} else if (name.equals("not") && args.length == 1) {
-			return boolNot(argVals[0]);
-		} else if (name.equals("boolean-from-string") && args.length == 1) {
-			return boolStr(argVals[0]);
-		} else if (name.equals("if") && args.length == 3) { //non-standard
-			return ifThenElse(argVals[0], argVals[1], argVals[2]);	
-		} else if ((name.equals("selected") || name.equals("is-selected")) && args.length == 2) { //non-standard
-			return multiSelected(argVals[0], argVals[1]);
-		} else if (name.equals("count-selected") && args.length == 1) { //non-standard
-			return countSelected(argVals[0]);		
-		} else if (name.equals("count") && args.length == 1) {
-			return count(argVals[0]);
-		} else if (name.equals("sum") && args.length == 1) {
-			return sum(model, argVals[0]);
-		} else if (name.equals("today") && args.length == 0) {
-			return DateUtils.roundDate(new Date());
-		} else if (name.equals("now") && args.length == 0) {
-			return new Date();
-		} else if (name.equals("concat")) {
-			return concat(argVals);
-		} else if (name.equals("checklist") && args.length >= 2) { //non-standard
-			return checklist(argVals);
-		} else if (name.equals("weighted-checklist") && args.length >= 2 && args.length % 2 == 0) { //non-standard
-			return checklistWeighted(argVals);
-		} else if (name.equals("regex") && args.length == 2) {
-			return regex(argVals[0], argVals[1]);
-		} else {
-			IFunctionHandler handler = (IFunctionHandler)funcHandlers.get(name);
+		switch (resolveFunction()) {
+		case FUNC_TRUE: return Boolean.TRUE;
+		case FUNC_FALSE: return Boolean.FALSE;
+		case FUNC_BOOLEAN: return toBoolean(argVals[0]);
+		case FUNC_NUMBER: return toNumeric(argVals[0]);
+		case FUNC_STRING: return toString(argVals[0]);
+		case FUNC_DATE: return toDate(argVals[0]); //non-standard
+		case FUNC_NOT: return boolNot(argVals[0]);
+		case FUNC_BOOLEAN_FROM_STRING: return boolStr(argVals[0]);
+		case FUNC_IF: return ifThenElse(argVals[0], argVals[1], argVals[2]); //non-standard
+		case FUNC_SELECTED: return multiSelected(argVals[0], argVals[1]); //non-standard
+		case FUNC_COUNT_SELECTED: return countSelected(argVals[0]); //non-standard
+		case FUNC_COUNT: return count(argVals[0]);
+		case FUNC_SUM: return sum(model, argVals[0]);
+		case FUNC_TODAY: return DateUtils.roundDate(new Date());
+		case FUNC_NOW: return new Date();
+		case FUNC_CONCAT: return concat(argVals);
+		case FUNC_CHECKLIST: return checklist(argVals); //non-standard
+		case FUNC_WEIGHTED_CHECKLIST: return checklistWeighted(argVals); //non-standard
+		case FUNC_REGEX:
+			if (regexProgram != null) {
+				synchronized (XPathFuncExpr.class) {
+					regexCacheHits++;
+				}
+				return new Boolean(new RE(regexProgram).match(toString(argVals[0])));
+			} else {
+				return regex(argVals[0], argVals[1]);
+			}
+		default:
+			String name = id.toString();
+			IFunctionHandler handler = (IFunctionHandler)evalContext.getFunctionHandlers().get(name);
 			if (handler != null) {
 				return evalCustomFunction(handler, argVals);
 			} else {
@@ -158,6 +304,20 @@ public class XPathFuncExpr extends XPathExpression {
 	}
 	
 	private Object evalCustomFunction (IFunctionHandler handler, Object[] args) {
+		//custom handlers predate XPathSelectionList and XPathNodeset; give them multi-select answers as the
+		//xml string and nodesets as a plain Vector of TreeReferences, as before
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] instanceof XPathSelectionList) {
+				args[i] = args[i].toString();
+			} else if (args[i] instanceof XPathNodeset) {
+				XPathNodeset nodes = (XPathNodeset)args[i];
+				Vector refs = new Vector(nodes.size());
+				for (int j = 0; j < nodes.size(); j++) {
+					refs.addElement(nodes.elementAt(j));
+				}
+				args[i] = refs;
+			}
+		}
 		Vector prototypes = handler.getPrototypes();
 		Enumeration e = prototypes.elements();
 		Object[] typedArgs = null;
@@ -351,19 +511,26 @@ public class XPathFuncExpr extends XPathExpression {
 	}
 	
 	//return whether a particular choice of a multi-select is selected
-	//arg1: XML-serialized answer to multi-select question (space-delimited choice values)
+	//arg1: answer to multi-select question; either the selections themselves, or their XML
+	//      serialization (space-delimited choice values)
 	//arg2: choice to look for
 	public static Boolean multiSelected (Object o1, Object o2) {
-		String s1 = (String)o1;
-		String s2 = ((String)o2).trim();
+		String s2 = toString(o2).trim();
 		
-		return new Boolean((" " + s1 + " ").indexOf(" " + s2 + " ") != -1);
+		if (o1 instanceof XPathSelectionList) {
+			return new Boolean(((XPathSelectionList)o1).contains(s2));
+		} else {
+			String s1 = toString(o1);
+			return new Boolean((" " + s1 + " ").indexOf(" " + s2 + " ") != -1);
+		}
 	}
 	
 	public static Double countSelected (Object o) {
-		String s = (String)o;
-
-		return new Double(DateUtils.split(s, " ", true).size());
+		if (o instanceof XPathSelectionList) {
+			return new Double(((XPathSelectionList)o).size());
+		} else {
+			return new Double(DateUtils.split(toString(o), " ", true).size());
+		}
 	}
 	
 	public static Double count (Object o) {
@@ -446,9 +613,48 @@ public class XPathFuncExpr extends XPathExpression {
 		String str = toString(o1);
 		String re = toString(o2);
 		
-		RE regexp = new RE(re);
+		RE regexp = new RE(getRegexProgram(re));
 		boolean result = regexp.match(str);
 		return new Boolean(result);
 	}
+	
+	/**
+	 * Get the compiled program for a regular expression, from the cache if
+	 * possible. Programs are immutable, so can be shared; the RE matchers
+	 * built on them are not.
+	 */
+	private static synchronized REProgram getRegexProgram (String re) {
+		REProgram program = (REProgram)regexCache.get(re);
+		if (program != null) {
+			regexCacheHits++;
+			regexCacheOrder.removeElement(re);
+			regexCacheOrder.addElement(re);
+		} else {
+			regexCacheMisses++;
+			program = new RE(re).getProgram();
+			if (regexCache.size() >= REGEX_CACHE_SIZE) {
+				regexCache.remove(regexCacheOrder.elementAt(0));
+				regexCacheOrder.removeElementAt(0);
+			}
+			regexCache.put(re, program);
+			regexCacheOrder.addElement(re);
+		}
+		return program;
+	}
+	
+	/**
+	 * @return number of regex() evaluations that used an already-compiled
+	 * program (from the cache, or precompiled at form load)
+	 */
+	public static synchronized int getRegexCacheHits () {
+		return regexCacheHits;
+	}
+	
+	/**
+	 * @return number of times a regular expression had to be compiled
+	 */
+	public static synchronized int getRegexCacheMisses () {
+		return regexCacheMisses;
+	}
 
 }
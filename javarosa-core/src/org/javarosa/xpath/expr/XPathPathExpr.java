@@ -19,6 +19,7 @@ package org.javarosa.xpath.expr;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import org.javarosa.core.model.IFormDataModel;
@@ -31,6 +32,7 @@ import org.javarosa.core.model.data.SelectMultiData;
 import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.model.instance.ChildKeyIndex;
 import org.javarosa.core.model.instance.DataModelTree;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
@@ -38,7 +40,9 @@ import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapList;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
-import org.javarosa.xform.util.XFormAnswerDataSerializer;
+import org.javarosa.xpath.XPathException;
+import org.javarosa.xpath.XPathNodeset;
+import org.javarosa.xpath.XPathSelectionList;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.XPathUnsupportedException;
 
@@ -53,6 +57,24 @@ public class XPathPathExpr extends XPathExpression {
 	//for INIT_CONTEXT_EXPR only
 	public XPathFilterExpr filtExpr;
 
+	//precomputed; not serialized
+	private TreeReference cachedRef; //result of getReference()
+	private CompiledLevels compiled; //repeat levels for each context this path has been compiled for; see compile()
+
+	private static final Object ABSOLUTE = new Object(); //key in CompiledLevels for absolute paths, which need no context
+
+	//which levels of the anchored reference are repeats, for one model. a path can be compiled for several
+	//contexts, as the binds of a form share parse trees (see XPathParseTool.parseXPath(String, Hashtable)),
+	//so the levels are kept by generic context ref. a new model gets a new instance rather than a cleared table
+	private static class CompiledLevels {
+		final IFormDataModel model;
+		final Hashtable levels = new Hashtable(); //<TreeReference (or ABSOLUTE), boolean[]>: repeatable[i]: whether level i is a repeat
+
+		CompiledLevels (IFormDataModel model) {
+			this.model = model;
+		}
+	}
+
 	public XPathPathExpr () { } //for deserialization
 
 	public XPathPathExpr (int init_context, XPathStep[] steps) {
@@ -73,16 +95,25 @@ public class XPathPathExpr extends XPathExpression {
 	 *   all '..' steps must come before anything else
 	 */
 	public TreeReference getReference () throws XPathUnsupportedException {
+		return getReference(false);
+	}
+	
+	/**
+	 * @param allowPredicates if true, predicates on 'child::name' steps are accepted
+	 *   and left out of the reference, which then refers to all the nodes they choose
+	 *   from: /data/r[x = 1]/y becomes /data/r/y
+	 */
+	public TreeReference getReference (boolean allowPredicates) throws XPathUnsupportedException {
 		TreeReference ref = new TreeReference();
 		boolean parentsAllowed;
 		
 		switch (init_context) {
 		case XPathPathExpr.INIT_CONTEXT_ROOT:
-			ref.refLevel = TreeReference.REF_ABSOLUTE;
+			ref.setRefLevel(TreeReference.REF_ABSOLUTE);
 			parentsAllowed = false;
 			break;
 		case XPathPathExpr.INIT_CONTEXT_RELATIVE:
-			ref.refLevel = 0;
+			ref.setRefLevel(0);
 			parentsAllowed = true;
 			break;
 		default: throw new XPathUnsupportedException("filter expression");
@@ -92,7 +123,11 @@ public class XPathPathExpr extends XPathExpression {
 			XPathStep step = steps[i];
 			
 			if (step.predicates.length > 0) {
-				throw new XPathUnsupportedException("predicates");
+				if (!allowPredicates) {
+					throw new XPathUnsupportedException("predicates");
+				} else if (step.axis != XPathStep.AXIS_CHILD) {
+					throw new XPathUnsupportedException("predicate on step other than 'child::name'");
+				}
 			}
 			
 			if (step.axis == XPathStep.AXIS_SELF) {
@@ -103,7 +138,7 @@ public class XPathPathExpr extends XPathExpression {
 				if (!parentsAllowed || step.test != XPathStep.TEST_TYPE_NODE) {
 					throw new XPathUnsupportedException("step other than 'child::name', '.', '..'");
 				} else {
-					ref.refLevel++;
+					ref.setRefLevel(ref.getRefLevel() + 1);
 				}
 			} else if (step.axis == XPathStep.AXIS_CHILD) {
 				if (step.test == XPathStep.TEST_NAME) {
@@ -123,26 +158,144 @@ public class XPathPathExpr extends XPathExpression {
 		return ref;
 	}
 	
+	/**
+	 * @return The reference to the nodes step i chooses from, ignoring predicates;
+	 *   e.g. for step 1 of /data/r[x = 1]/y, the reference /data/r
+	 */
+	public TreeReference getStepReference (int i) throws XPathUnsupportedException {
+		TreeReference ref = getReference(true).clone();
+		for (int j = i + 1; j < steps.length; j++) {
+			if (steps[j].axis == XPathStep.AXIS_CHILD) {
+				ref.removeLastLevel();
+			}
+		}
+		return ref;
+	}
+	
+	private TreeReference getCachedReference () {
+		if (cachedRef == null) {
+			cachedRef = getReference(true);
+		}
+		return cachedRef;
+	}
+	
+	private boolean hasPredicates () {
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i].predicates.length > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	//the level of the anchored reference the first child step adds
+	private int firstChildLevel (TreeReference absRef) {
+		int childSteps = 0;
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i].axis == XPathStep.AXIS_CHILD) {
+				childSteps++;
+			}
+		}
+		return absRef.size() - childSteps;
+	}
+	
+	/**
+	 * Build the reference and work out which of its levels are repeats, so
+	 * eval() doesn't have to probe the model's templates every time to decide
+	 * whether this path is a nodeset.
+	 */
+	public void compile (IFormDataModel model, TreeReference contextRef) {
+		TreeReference ref;
+		try {
+			ref = getCachedReference();
+		} catch (XPathUnsupportedException xue) {
+			return; //will be reported when evaluated
+		}
+		if (!ref.isAbsolute() && (contextRef == null || !contextRef.isAbsolute())) {
+			return;
+		}
+		
+		TreeReference absRef = ref.anchor(contextRef);
+		if (absRef == null) {
+			return;
+		}
+		
+		if (hasPredicates()) {
+			//predicates are evaluated with each candidate node as the context
+			int level = firstChildLevel(absRef);
+			for (int i = 0; i < steps.length; i++) {
+				if (steps[i].axis == XPathStep.AXIS_CHILD) {
+					TreeReference stepRef = truncate(absRef, ++level);
+					for (int j = 0; j < steps[i].predicates.length; j++) {
+						steps[i].predicates[j].compile(model, stepRef);
+					}
+				}
+			}
+			return;
+		}
+		
+		boolean[] levels = new boolean[absRef.size()];
+		TreeReference repeatTestRef = TreeReference.rootRef();
+		for (int i = 0; i < absRef.size(); i++) {
+			if (absRef.getName(i).equals(TreeReference.NAME_WILDCARD)) {
+				return;
+			}
+			repeatTestRef.add(absRef.getName(i), TreeReference.INDEX_UNBOUND);
+			levels[i] = (((DataModelTree)model).getTemplate(repeatTestRef) != null);
+		}
+		
+		//keep what was compiled for other contexts of this model; anything compiled for another model is stale
+		CompiledLevels c = compiled;
+		if (c == null || c.model != model) {
+			c = new CompiledLevels(model);
+			compiled = c;
+		}
+		c.levels.put(ref.isAbsolute() ? ABSOLUTE : (Object)contextRef.getGenericRef(), levels);
+	}
+	
+	//the precomputed repeat levels, if they apply to this model and context; null if not
+	private boolean[] getRepeatable (IFormDataModel model, TreeReference contextRef) {
+		CompiledLevels c = compiled;
+		if (c == null || c.model != model) {
+			return null;
+		}
+		return (boolean[])c.levels.get(getCachedReference().isAbsolute() ? ABSOLUTE : (Object)contextRef.getGenericRef());
+	}
+	
 	public Object eval (IFormDataModel model, EvaluationContext evalContext) {
 		DataModelTree m = (DataModelTree)model;
-		TreeReference ref = getReference().contextualize(evalContext.getContextRef());
+		TreeReference ref = getCachedReference().contextualize(evalContext.getContextRef());
+		
+		if (hasPredicates()) {
+			return evalFiltered(m, ref, evalContext);
+		}
 		
 		if (evalContext.isConstraint && ref.equals(evalContext.getContextRef())) {
 			return unpackValue(evalContext.candidateValue);
 		}
 		
 		//is this a nodeset? it is if the ref contains any unbound multiplicities AND the unbound nodes are repeatable
-		//the way i'm calculating this sucks; there has got to be an easier way to find out if a node is repeatable
 		boolean nodeset = false;
-		TreeReference repeatTestRef = TreeReference.rootRef();
-		for (int i = 0; i < ref.size(); i++) {
-			repeatTestRef.add((String)ref.names.elementAt(i), ((Integer)ref.multiplicity.elementAt(i)).intValue());
-			if (((Integer)ref.multiplicity.elementAt(i)).intValue() == TreeReference.INDEX_UNBOUND) {
-				if (m.getTemplate(repeatTestRef) != null) {
+		boolean[] levels = getRepeatable(model, evalContext.getContextRef());
+		if (levels != null) {
+			for (int i = 0; i < ref.size(); i++) {
+				if (levels[i] && ref.getMultiplicity(i) == TreeReference.INDEX_UNBOUND) {
 					nodeset = true;
 					break;
 				}
 			}
+		} else {
+			//not compiled for this context; probe the model's templates directly
+			TreeReference repeatTestRef = TreeReference.rootRef();
+			for (int i = 0; i < ref.size(); i++) {
+				repeatTestRef.add(ref.getName(i), ref.getMultiplicity(i));
+				if (ref.getMultiplicity(i) == TreeReference.INDEX_UNBOUND) {
+					if (m.getTemplate(repeatTestRef) != null) {
+						nodeset = true;
+						break;
+					}
+				}
+			}
 		}
 
 		if (nodeset) {
@@ -162,6 +315,284 @@ public class XPathPathExpr extends XPathExpression {
 		}
 	}
 	
+	/**
+	 * Evaluate a path with predicates. The path is expanded a segment at a time, each
+	 * segment ending in a step with predicates, whose candidates are then filtered under
+	 * each parent node separately, so positions count from 1 under every parent. A
+	 * predicate always chooses from all instances of its step's node, even where the
+	 * context node is within one of them: /data/r[x = 1] from within /data/r[2] looks
+	 * at every instance of r, not just at r[2].
+	 * 
+	 * Like the nodeset of a plain repeat path, the result leaves out non-relevant nodes.
+	 */
+	private XPathNodeset evalFiltered (DataModelTree m, TreeReference ref, EvaluationContext evalContext) {
+		int level = firstChildLevel(ref);
+		Vector bases = new Vector(); //<TreeReference>: the nodes the current segment continues from
+		bases.addElement(truncate(ref, level));
+		
+		for (int i = 0; i < steps.length; i++) {
+			XPathStep step = steps[i];
+			if (step.axis != XPathStep.AXIS_CHILD) {
+				continue;
+			}
+			
+			if (step.predicates.length > 0) {
+				Vector filtered = new Vector();
+				for (int j = 0; j < bases.size(); j++) {
+					Vector parents = m.expandReference(extend((TreeReference)bases.elementAt(j), ref, level));
+					for (int k = 0; k < parents.size(); k++) {
+						filterChildren(m, (TreeReference)parents.elementAt(k), ref.getName(level), step, evalContext, filtered);
+					}
+				}
+				bases = filtered;
+			}
+			level++;
+		}
+		
+		XPathNodeset nodes = new XPathNodeset(m);
+		for (int i = 0; i < bases.size(); i++) {
+			Vector refs = m.expandReference(extend((TreeReference)bases.elementAt(i), ref, ref.size()));
+			for (int j = 0; j < refs.size(); j++) {
+				TreeReference nodeRef = (TreeReference)refs.elementAt(j);
+				if (m.resolveReference(nodeRef).isRelevant()) {
+					nodes.addElement(nodeRef);
+				}
+			}
+		}
+		return nodes;
+	}
+	
+	//the children of parentRef named 'name' that pass all of step's predicates, in order
+	private static void filterChildren (DataModelTree m, TreeReference parentRef, String name, XPathStep step, EvaluationContext evalContext, Vector out) {
+		Vector nodes = lookupByKey(m, parentRef, name, step.predicates[0], evalContext);
+		if (nodes == null) {
+			TreeReference childRef = parentRef.clone();
+			childRef.add(name, TreeReference.INDEX_UNBOUND);
+			nodes = m.expandReference(childRef);
+		}
+		
+		for (int i = 0; i < step.predicates.length; i++) {
+			Vector passed = new Vector();
+			for (int j = 0; j < nodes.size(); j++) {
+				TreeReference node = (TreeReference)nodes.elementAt(j);
+				Object o = step.predicates[i].eval(m, new EvaluationContext(evalContext, node));
+				//a number is shorthand for position() = number
+				boolean pass = (o instanceof Double ? ((Double)o).doubleValue() == j + 1 : XPathFuncExpr.toBoolean(o).booleanValue());
+				if (pass) {
+					passed.addElement(node);
+				}
+			}
+			nodes = passed;
+		}
+		
+		for (int i = 0; i < nodes.size(); i++) {
+			out.addElement(nodes.elementAt(i));
+		}
+	}
+	
+	/**
+	 * Use the parent's key index to find the candidates for a predicate of the form
+	 * [key = expr], where key is a child of the candidate and expr is the same for
+	 * every candidate. The result is a superset of the candidates that pass, so the
+	 * predicate still has to be applied to it; only it is usually a lot smaller than
+	 * the full list of children.
+	 * 
+	 * @return null if the predicate doesn't have that form, or its key can't be
+	 *   looked up exactly in an index (see STRING_KEY and NUMERIC_KEY)
+	 */
+	private static Vector lookupByKey (DataModelTree m, TreeReference parentRef, String name, XPathExpression predicate, EvaluationContext evalContext) {
+		if (!(predicate instanceof XPathEqExpr) || !((XPathEqExpr)predicate).equal || name.equals(TreeReference.NAME_WILDCARD)) {
+			return null;
+		}
+		
+		XPathEqExpr eq = (XPathEqExpr)predicate;
+		String keyName;
+		XPathExpression keyExpr;
+		if ((keyName = getKeyName(eq.a)) != null && isContextFree(eq.b)) {
+			keyExpr = eq.b;
+		} else if ((keyName = getKeyName(eq.b)) != null && isContextFree(eq.a)) {
+			keyExpr = eq.a;
+		} else {
+			return null;
+		}
+		
+		TreeElement parent = m.resolveReference(parentRef);
+		if (parent == null) {
+			return null;
+		}
+		
+		Object key;
+		try {
+			key = keyExpr.eval(m, new EvaluationContext(evalContext, parentRef));
+		} catch (XPathException xe) {
+			return null; //let the predicate report it, if there are any candidates at all
+		}
+		if (key instanceof XPathNodeset) {
+			key = ((XPathNodeset)key).unpack();
+		}
+		
+		ChildKeyIndex.KeyFunction f;
+		Object[] keys;
+		if (key instanceof String) {
+			//string comparison, except with numeric values, which are compared as numbers
+			double d = XPathFuncExpr.toNumeric(key).doubleValue();
+			if (Double.isNaN(d)) {
+				keys = new Object[] {key};
+			} else if (isIntegral(d)) {
+				keys = new Object[] {key, integralKey(d)};
+			} else {
+				return null;
+			}
+			f = STRING_KEY;
+		} else if (key instanceof Double) {
+			double d = ((Double)key).doubleValue();
+			if (Double.isNaN(d)) {
+				keys = new Object[0];
+			} else if (isIntegral(d)) {
+				keys = new Object[] {integralKey(d)};
+			} else {
+				return null;
+			}
+			f = NUMERIC_KEY;
+		} else {
+			return null;
+		}
+		
+		Vector rows = parent.getChildKeyIndex(name, keyName).lookup(f, keys);
+		Vector refs = new Vector(rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			TreeReference childRef = parentRef.clone();
+			childRef.add(name, ((TreeElement)rows.elementAt(i)).getMult());
+			refs.addElement(childRef);
+		}
+		return refs;
+	}
+	
+	//the name of the child a path like 'key' refers to; null if x isn't such a path
+	private static String getKeyName (XPathExpression x) {
+		if (x instanceof XPathPathExpr) {
+			XPathPathExpr path = (XPathPathExpr)x;
+			if (path.init_context == INIT_CONTEXT_RELATIVE && path.steps.length == 1) {
+				XPathStep step = path.steps[0];
+				if (step.axis == XPathStep.AXIS_CHILD && step.test == XPathStep.TEST_NAME && step.predicates.length == 0) {
+					return step.name.toString();
+				}
+			}
+		}
+		return null;
+	}
+	
+	//whether x has the same value in every context: it has no relative paths (outside of the predicates of absolute ones)
+	private static boolean isContextFree (XPathExpression x) {
+		if (x instanceof XPathPathExpr) {
+			return ((XPathPathExpr)x).init_context == INIT_CONTEXT_ROOT;
+		} else if (x instanceof XPathBinaryOpExpr) {
+			return isContextFree(((XPathBinaryOpExpr)x).a) && isContextFree(((XPathBinaryOpExpr)x).b);
+		} else if (x instanceof XPathUnaryOpExpr) {
+			return isContextFree(((XPathUnaryOpExpr)x).a);
+		} else if (x instanceof XPathFuncExpr) {
+			XPathExpression[] args = ((XPathFuncExpr)x).args;
+			for (int i = 0; i < args.length; i++) {
+				if (!isContextFree(args[i])) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			return (x instanceof XPathNumericLiteral || x instanceof XPathStringLiteral);
+		}
+	}
+	
+	/* Keys for XPathEqExpr's comparison of a candidate's key value with a string or a number.
+	 * 
+	 * Numbers are equal if they differ by less than 1e-12, which isn't an equivalence, so it
+	 * can't be hashed as such. Instead values within 1e-12 of an integer are keyed by that
+	 * integer, and only integral numbers are looked up; values not near an integer can't be
+	 * keyed and are always candidates. A value equal to an integral number is then always
+	 * filed under that number. NaN equals nothing, so it is filed where no lookup finds it.
+	 */
+	
+	private static final Object NO_MATCH = new Object();
+	
+	//keys for comparison with a string: the string value, except for numbers (compared as numbers) and booleans
+	private static final ChildKeyIndex.KeyFunction STRING_KEY = new ChildKeyIndex.KeyFunction() {
+		public Object getKey (TreeElement keyNode) {
+			Object value = getKeyValue(keyNode);
+			if (value == null || value instanceof Boolean) {
+				return null;
+			} else if (value instanceof Double) {
+				return numericKey(((Double)value).doubleValue());
+			} else {
+				try {
+					return XPathFuncExpr.toString(value);
+				} catch (XPathTypeMismatchException xtme) {
+					return null;
+				}
+			}
+		}
+	};
+	
+	//keys for comparison with a number: the numeric value, except for booleans
+	private static final ChildKeyIndex.KeyFunction NUMERIC_KEY = new ChildKeyIndex.KeyFunction() {
+		public Object getKey (TreeElement keyNode) {
+			Object value = getKeyValue(keyNode);
+			if (value == null || value instanceof Boolean) {
+				return null;
+			} else {
+				try {
+					return numericKey(XPathFuncExpr.toNumeric(value).doubleValue());
+				} catch (XPathTypeMismatchException xtme) {
+					return null;
+				}
+			}
+		}
+	};
+	
+	//the value of the key node, as the path to it would evaluate to; null if that isn't a single value
+	private static Object getKeyValue (TreeElement keyNode) {
+		if (keyNode == null || keyNode.repeatable) {
+			return null;
+		} else {
+			return unpackValue(keyNode.isRelevant() ? keyNode.getValue() : null);
+		}
+	}
+	
+	private static Object numericKey (double d) {
+		if (Double.isNaN(d)) {
+			return NO_MATCH;
+		} else if (isIntegral(d)) {
+			return integralKey(d);
+		} else {
+			return null;
+		}
+	}
+	
+	private static boolean isIntegral (double d) {
+		return Math.abs(d - Math.floor(d + 0.5)) < 1.0e-12;
+	}
+	
+	private static Double integralKey (double d) {
+		return new Double(Math.floor(d + 0.5));
+	}
+	
+	//the first 'size' levels of ref
+	private static TreeReference truncate (TreeReference ref, int size) {
+		TreeReference prefix = TreeReference.rootRef();
+		for (int i = 0; i < size; i++) {
+			prefix.add(ref.getName(i), ref.getMultiplicity(i));
+		}
+		return prefix;
+	}
+	
+	//base, continued with the levels of ref after it, up to 'size' levels
+	private static TreeReference extend (TreeReference base, TreeReference ref, int size) {
+		TreeReference extended = base.clone();
+		for (int i = base.size(); i < size; i++) {
+			extended.add(ref.getName(i), ref.getMultiplicity(i));
+		}
+		return extended;
+	}
+	
 	public static Object getRefValue (IFormDataModel model, TreeReference ref) {
 		TreeElement node = ((DataModelTree)model).resolveReference(ref);
 		if (node == null) {
@@ -183,7 +614,7 @@ public class XPathPathExpr extends XPathExpression {
 		} else if (val instanceof SelectOneData) {
 			return ((Selection)val.getValue()).getValue();
 		} else if (val instanceof SelectMultiData) {
-			return (new XFormAnswerDataSerializer()).serializeAnswerData(val);
+			return new XPathSelectionList((Vector)val.getValue());
 		} else if (val instanceof DateData) {
 			return val.getValue();
 		} else {
@@ -236,6 +667,9 @@ public class XPathPathExpr extends XPathExpression {
 		steps = new XPathStep[v.size()];
 		for (int i = 0; i < steps.length; i++)
 			steps[i] = (XPathStep)v.elementAt(i);
+		
+		cachedRef = null;
+		compiled = null;
 	}
 
 	public void writeExternal(DataOutputStream out) throws IOException {
@@ -20,6 +20,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import org.javarosa.core.model.IFormDataModel;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
@@ -34,6 +36,10 @@ public abstract class XPathUnaryOpExpr extends XPathOpExpr {
 		this.a = a;
 	}
 
+	public void compile (IFormDataModel model, TreeReference contextRef) {
+		a.compile(model, contextRef);
+	}
+
 	public boolean equals (Object o) {
 		if (o instanceof XPathUnaryOpExpr) {
 			XPathUnaryOpExpr x = (XPathUnaryOpExpr)o;
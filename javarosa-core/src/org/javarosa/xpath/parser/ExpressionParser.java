@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.xpath.parser;
+
+import java.util.Vector;
+
+import org.javarosa.xpath.expr.XPathArithExpr;
+import org.javarosa.xpath.expr.XPathBoolExpr;
+import org.javarosa.xpath.expr.XPathCmpExpr;
+import org.javarosa.xpath.expr.XPathEqExpr;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFilterExpr;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathNumNegExpr;
+import org.javarosa.xpath.expr.XPathNumericLiteral;
+import org.javarosa.xpath.expr.XPathPathExpr;
+import org.javarosa.xpath.expr.XPathQName;
+import org.javarosa.xpath.expr.XPathStep;
+import org.javarosa.xpath.expr.XPathStringLiteral;
+import org.javarosa.xpath.expr.XPathUnionExpr;
+import org.javarosa.xpath.expr.XPathVariableReference;
+
+/**
+ * Builds the expression for a token stream (see Lexer) in a single left-to-right
+ * pass: recursive descent for paths, steps and primary expressions, and precedence
+ * climbing for the binary operators.
+ *
+ * It produces the same trees as the multi-pass AST parser it replaced, and rejects
+ * the same input, including that parser's quirks: unary minus binds looser than
+ * union ('-a|b' is '-(a|b)', and 'a|-b' is an error), 'or' and 'and' are
+ * right-associative, and node-type tests (node(), text(), etc.) are always steps.
+ * The old parser lives on in the tests (XPathParseTest) as the reference.
+ */
+public class ExpressionParser {
+	private Vector tokens;
+	private int pos;
+
+	private ExpressionParser (Vector tokens) {
+		this.tokens = tokens;
+		this.pos = 0;
+	}
+
+	public static XPathExpression parse (Vector tokens) throws XPathSyntaxException {
+		ExpressionParser p = new ExpressionParser(tokens);
+		XPathExpression x = p.parseExpr();
+		if (p.pos < tokens.size()) {
+			throw new XPathSyntaxException(); //trailing tokens
+		}
+		return x;
+	}
+
+	private XPathExpression parseExpr () throws XPathSyntaxException {
+		return parseBinary(1);
+	}
+
+	//binding strength of a binary operator; 0 if the token isn't one. union is handled separately, as it
+	//binds tighter than unary minus
+	private static int precedence (int type) {
+		switch (type) {
+		case Token.OR: return 1;
+		case Token.AND: return 2;
+		case Token.EQ: case Token.NEQ: return 3;
+		case Token.LT: case Token.LTE: case Token.GT: case Token.GTE: return 4;
+		case Token.PLUS: case Token.MINUS: return 5;
+		case Token.MULT: case Token.DIV: case Token.MOD: return 6;
+		default: return 0;
+		}
+	}
+
+	//parse a sequence of unary expressions joined by operators of at least minPrec
+	private XPathExpression parseBinary (int minPrec) throws XPathSyntaxException {
+		XPathExpression x = parseUnary();
+		while (true) {
+			int op = peek(0);
+			int prec = precedence(op);
+			if (prec == 0 || prec < minPrec) {
+				return x;
+			}
+			pos++;
+
+			boolean rightAssoc = (op == Token.OR || op == Token.AND);
+			XPathExpression y = parseBinary(rightAssoc ? prec : prec + 1);
+			x = binOp(op, x, y);
+		}
+	}
+
+	private static XPathExpression binOp (int op, XPathExpression a, XPathExpression b) throws XPathSyntaxException {
+		switch (op) {
+		case Token.OR: return new XPathBoolExpr(XPathBoolExpr.OR, a, b);
+		case Token.AND: return new XPathBoolExpr(XPathBoolExpr.AND, a, b);
+		case Token.EQ: return new XPathEqExpr(true, a, b);
+		case Token.NEQ: return new XPathEqExpr(false, a, b);
+		case Token.LT: return new XPathCmpExpr(XPathCmpExpr.LT, a, b);
+		case Token.LTE: return new XPathCmpExpr(XPathCmpExpr.LTE, a, b);
+		case Token.GT: return new XPathCmpExpr(XPathCmpExpr.GT, a, b);
+		case Token.GTE: return new XPathCmpExpr(XPathCmpExpr.GTE, a, b);
+		case Token.PLUS: return new XPathArithExpr(XPathArithExpr.ADD, a, b);
+		case Token.MINUS: return new XPathArithExpr(XPathArithExpr.SUBTRACT, a, b);
+		case Token.MULT: return new XPathArithExpr(XPathArithExpr.MULTIPLY, a, b);
+		case Token.DIV: return new XPathArithExpr(XPathArithExpr.DIVIDE, a, b);
+		case Token.MOD: return new XPathArithExpr(XPathArithExpr.MODULO, a, b);
+		default: throw new XPathSyntaxException();
+		}
+	}
+
+	private XPathExpression parseUnary () throws XPathSyntaxException {
+		if (peek(0) == Token.UMINUS) {
+			pos++;
+			return new XPathNumNegExpr(parseUnary());
+		} else {
+			return parseUnion();
+		}
+	}
+
+	private XPathExpression parseUnion () throws XPathSyntaxException {
+		XPathExpression x = parsePath();
+		while (peek(0) == Token.UNION) {
+			pos++;
+			x = new XPathUnionExpr(x, parsePath());
+		}
+		return x;
+	}
+
+	//a location path, or a filter expression optionally followed by more steps
+	private XPathExpression parsePath () throws XPathSyntaxException {
+		int type = peek(0);
+		XPathFilterExpr filtExpr = null;
+		int initContext;
+		Vector steps = new Vector();
+
+		if (type == Token.SLASH || type == Token.DBL_SLASH) {
+			if (type == Token.SLASH && !isStepStart(1)) {
+				pos++;
+				return new XPathPathExpr(XPathPathExpr.INIT_CONTEXT_ROOT, new XPathStep[0]);
+			}
+			initContext = XPathPathExpr.INIT_CONTEXT_ROOT;
+		} else if (isStepStart(0)) {
+			initContext = XPathPathExpr.INIT_CONTEXT_RELATIVE;
+			steps.addElement(parseStep());
+		} else {
+			XPathExpression x = parseFilterExpr();
+			type = peek(0);
+			if (type != Token.SLASH && type != Token.DBL_SLASH) {
+				return x;
+			}
+			filtExpr = (x instanceof XPathFilterExpr ? (XPathFilterExpr)x : new XPathFilterExpr(x, new XPathExpression[0]));
+			initContext = XPathPathExpr.INIT_CONTEXT_EXPR;
+		}
+
+		while ((type = peek(0)) == Token.SLASH || type == Token.DBL_SLASH) {
+			pos++;
+			if (type == Token.DBL_SLASH) {
+				steps.addElement(XPathStep.ABBR_DESCENDANTS());
+			}
+			if (!isStepStart(0)) {
+				throw new XPathSyntaxException();
+			}
+			steps.addElement(parseStep());
+		}
+
+		XPathStep[] stepArr = new XPathStep[steps.size()];
+		steps.copyInto(stepArr);
+		if (filtExpr != null) {
+			return new XPathPathExpr(filtExpr, stepArr);
+		} else {
+			return new XPathPathExpr(initContext, stepArr);
+		}
+	}
+
+	//true if the token at pos + offset begins a step, as opposed to a filter expression
+	private boolean isStepStart (int offset) {
+		switch (peek(offset)) {
+		case Token.WILDCARD:
+		case Token.NSWILDCARD:
+		case Token.AT:
+		case Token.DOT:
+		case Token.DBL_DOT:
+			return true;
+		case Token.QNAME:
+			return (peek(offset + 1) != Token.LPAREN || isNodeTypeTest(qname(offset)));
+		default:
+			return false;
+		}
+	}
+
+	//-1 if not an axis
+	private static int axisName (String name) {
+		if      (name.equals("child"))              return XPathStep.AXIS_CHILD;
+		else if (name.equals("descendant"))         return XPathStep.AXIS_DESCENDANT;
+		else if (name.equals("parent"))             return XPathStep.AXIS_PARENT;
+		else if (name.equals("ancestor"))           return XPathStep.AXIS_ANCESTOR;
+		else if (name.equals("following-sibling"))  return XPathStep.AXIS_FOLLOWING_SIBLING;
+		else if (name.equals("preceding-sibling"))  return XPathStep.AXIS_PRECEDING_SIBLING;
+		else if (name.equals("following"))          return XPathStep.AXIS_FOLLOWING;
+		else if (name.equals("preceding"))          return XPathStep.AXIS_PRECEDING;
+		else if (name.equals("attribute"))          return XPathStep.AXIS_ATTRIBUTE;
+		else if (name.equals("namespace"))          return XPathStep.AXIS_NAMESPACE;
+		else if (name.equals("self"))               return XPathStep.AXIS_SELF;
+		else if (name.equals("descendant-or-self")) return XPathStep.AXIS_DESCENDANT_OR_SELF;
+		else if (name.equals("ancestor-or-self"))   return XPathStep.AXIS_ANCESTOR_OR_SELF;
+		else                                        return -1;
+	}
+
+	private static boolean isNodeTypeTest (XPathQName name) {
+		String s = name.toString();
+		return (s.equals("node") || s.equals("text") || s.equals("comment") || s.equals("processing-instruction"));
+	}
+
+	private XPathStep parseStep () throws XPathSyntaxException {
+		int type = next();
+		if (type == Token.DOT || type == Token.DBL_DOT) {
+			if (peek(0) == Token.LBRACK) {
+				throw new XPathSyntaxException(); //abbreviated steps can't have predicates
+			}
+			return (type == Token.DOT ? XPathStep.ABBR_SELF() : XPathStep.ABBR_PARENT());
+		}
+
+		int axis = XPathStep.AXIS_CHILD;
+		if (type == Token.AT) {
+			axis = XPathStep.AXIS_ATTRIBUTE;
+			type = next();
+		} else if (type == Token.QNAME && peek(0) == Token.DBL_COLON) {
+			axis = axisName(qname(-1).toString());
+			if (axis == -1) {
+				throw new XPathSyntaxException();
+			}
+			pos++;
+			type = next();
+		}
+
+		XPathStep step;
+		if (type == Token.WILDCARD) {
+			step = new XPathStep(axis, XPathStep.TEST_NAME_WILDCARD);
+		} else if (type == Token.NSWILDCARD) {
+			step = new XPathStep(axis, (String)token(-1).val);
+		} else if (type == Token.QNAME && peek(0) == Token.LPAREN) {
+			step = parseNodeTypeTest(axis, qname(-1).toString());
+		} else if (type == Token.QNAME) {
+			step = new XPathStep(axis, qname(-1));
+		} else {
+			throw new XPathSyntaxException();
+		}
+
+		step.predicates = parsePredicates();
+		return step;
+	}
+
+	//node(), text(), comment(), processing-instruction() or processing-instruction('literal'); pos is at the '('
+	private XPathStep parseNodeTypeTest (int axis, String name) throws XPathSyntaxException {
+		int test;
+		if      (name.equals("node"))                   test = XPathStep.TEST_TYPE_NODE;
+		else if (name.equals("text"))                   test = XPathStep.TEST_TYPE_TEXT;
+		else if (name.equals("comment"))                test = XPathStep.TEST_TYPE_COMMENT;
+		else if (name.equals("processing-instruction")) test = XPathStep.TEST_TYPE_PROCESSING_INSTRUCTION;
+		else throw new XPathSyntaxException();
+
+		XPathStep step = new XPathStep(axis, test);
+		pos++;
+		if (test == XPathStep.TEST_TYPE_PROCESSING_INSTRUCTION && peek(0) == Token.STR) {
+			step.literal = (String)token(0).val;
+			pos++;
+		}
+		expect(Token.RPAREN);
+		return step;
+	}
+
+	//a primary expression followed by any number of predicates
+	private XPathExpression parseFilterExpr () throws XPathSyntaxException {
+		XPathExpression x = parsePrimary();
+		XPathExpression[] preds = parsePredicates();
+		return (preds.length == 0 ? x : new XPathFilterExpr(x, preds));
+	}
+
+	private XPathExpression parsePrimary () throws XPathSyntaxException {
+		int type = next();
+		switch (type) {
+		case Token.NUM: return new XPathNumericLiteral((Double)token(-1).val);
+		case Token.STR: return new XPathStringLiteral((String)token(-1).val);
+		case Token.VAR: return new XPathVariableReference(qname(-1));
+		case Token.LPAREN: {
+			XPathExpression x = parseExpr();
+			expect(Token.RPAREN);
+			return x;
+		}
+		case Token.QNAME: {
+			XPathQName name = qname(-1);
+			expect(Token.LPAREN);
+			Vector args = new Vector();
+			if (peek(0) != Token.RPAREN) {
+				args.addElement(parseExpr());
+				while (peek(0) == Token.COMMA) {
+					pos++;
+					args.addElement(parseExpr());
+				}
+			}
+			expect(Token.RPAREN);
+
+			XPathExpression[] xargs = new XPathExpression[args.size()];
+			args.copyInto(xargs);
+			return new XPathFuncExpr(name, xargs);
+		}
+		default:
+			throw new XPathSyntaxException();
+		}
+	}
+
+	private XPathExpression[] parsePredicates () throws XPathSyntaxException {
+		Vector preds = null;
+		while (peek(0) == Token.LBRACK) {
+			pos++;
+			if (preds == null) {
+				preds = new Vector();
+			}
+			preds.addElement(parseExpr());
+			expect(Token.RBRACK);
+		}
+
+		XPathExpression[] predArr = new XPathExpression[preds == null ? 0 : preds.size()];
+		if (preds != null) {
+			preds.copyInto(predArr);
+		}
+		return predArr;
+	}
+
+	private void expect (int type) throws XPathSyntaxException {
+		if (next() != type) {
+			throw new XPathSyntaxException();
+		}
+	}
+
+	//type of the token at pos + offset; -1 past the end
+	private int peek (int offset) {
+		int i = pos + offset;
+		return (i >= 0 && i < tokens.size() ? ((Token)tokens.elementAt(i)).type : -1);
+	}
+
+	//type of the token at pos, consuming it; -1 (and nothing consumed) at the end
+	private int next () {
+		int type = peek(0);
+		if (type != -1) {
+			pos++;
+		}
+		return type;
+	}
+
+	private Token token (int offset) {
+		return (Token)tokens.elementAt(pos + offset);
+	}
+
+	private XPathQName qname (int offset) {
+		return (XPathQName)token(offset).val;
+	}
+}
@@ -29,8 +29,10 @@ import org.javarosa.core.model.IDataReference;
 import org.javarosa.core.model.IFormDataModel;
 import org.javarosa.core.model.data.IntegerData;
 import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.ChildKeyIndex;
 import org.javarosa.core.model.instance.DataModelTree;
 import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.ITreeVisitor;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
@@ -51,7 +53,7 @@ public class QuestionDataGroupTests extends TestCase {
 	
 	TreeElement group;
 	
-	private static int NUM_TESTS = 9;
+	private static int NUM_TESTS = 10;
 	
 	/* (non-Javadoc)
 	 * @see j2meunit.framework.TestCase#setUp()
@@ -179,6 +181,8 @@ public class QuestionDataGroupTests extends TestCase {
 			case 6: testAddTreeChild(); break;
 			case 7: testContains(); break;
 			case 8: testSuperclassMethods(); break;
+			case 9: testRepeatChildLookup(); break;
+			case 10: testCopyOnWrite(); break;
 			
 		}
 	}
@@ -300,4 +304,108 @@ public class QuestionDataGroupTests extends TestCase {
 	private void testContains() {
 		
 	}
+	
+	private void testRepeatChildLookup() {
+		final int n = 2000;
+		group.addChild(stringElement);
+		for (int i = 0; i < n; i++) {
+			group.addChild(new TreeElement("rep", i));
+		}
+		//template added after the instances must still sort in front of them
+		group.addChild(new TreeElement("rep", TreeReference.INDEX_TEMPLATE));
+		
+		assertEquals("Wrong multiplicity for repeat", n, group.getChildMultiplicity("rep"));
+		assertEquals("Wrong multiplicity for single child", 1, group.getChildMultiplicity(stringElementName));
+		assertEquals("Wrong multiplicity for missing child", 0, group.getChildMultiplicity("missing"));
+		assertTrue("Template out of order", group.getChildren().elementAt(1) == group.getChild("rep", TreeReference.INDEX_TEMPLATE));
+		for (int i = 0; i < n; i++) {
+			assertEquals("Lookup returned wrong repeat instance", i, group.getChild("rep", i).getMult());
+		}
+		assertNull("Found nonexistent repeat instance", group.getChild("rep", n));
+		
+		//delete an instance and renumber the rest, as FormDef.deleteRepeat does
+		group.removeChild(group.getChild("rep", 10));
+		for (int i = 0; i < group.getNumChildren(); i++) {
+			TreeElement child = group.getChildAt(i);
+			if (child.getMult() > 10) {
+				child.setMult(child.getMult() - 1);
+			}
+		}
+		assertEquals("Wrong multiplicity after delete", n - 1, group.getChildMultiplicity("rep"));
+		assertEquals("Wrong number of instances after delete", n - 1, group.getChildrenWithName("rep").size());
+		for (int i = 0; i < n - 1; i++) {
+			assertEquals("Lookup returned wrong repeat instance after delete", i, group.getChild("rep", i).getMult());
+		}
+		
+		//children changed directly through the vector
+		group.getChildren().addElement(new TreeElement("other"));
+		assertNotNull("Child added through getChildren() not found", group.getChild("other", 0));
+		
+		//...including by key indexes
+		ChildKeyIndex.KeyFunction byValue = new ChildKeyIndex.KeyFunction() {
+			public Object getKey (TreeElement keyNode) {
+				return (keyNode == null || keyNode.getValue() == null ? null : keyNode.getValue().getDisplayText());
+			}
+		};
+		group.addChild(keyedRow(0, "x"));
+		assertEquals("Wrong rows for key", 1, group.getChildKeyIndex("keyed", "k").lookup(byValue, new Object[] {"x"}).size());
+		group.getChildren().addElement(keyedRow(1, "x"));
+		assertEquals("Row added through getChildren() not in key index", 2, group.getChildKeyIndex("keyed", "k").lookup(byValue, new Object[] {"x"}).size());
+	}
+	
+	private TreeElement keyedRow (int mult, String key) {
+		TreeElement row = new TreeElement("keyed", mult);
+		TreeElement k = new TreeElement("k");
+		k.setValue(new StringData(key));
+		row.addChild(k);
+		return row;
+	}
+	
+	private void testCopyOnWrite() {
+		//a repeat template holding a question, a nested repeat template and an instance of it
+		TreeElement template = new TreeElement("rep", TreeReference.INDEX_TEMPLATE);
+		template.setAttribute(null, "a", "1");
+		TreeElement q = new TreeElement("q");
+		q.setValue(new IntegerData(1));
+		template.addChild(q);
+		TreeElement sub = new TreeElement("sub", TreeReference.INDEX_TEMPLATE);
+		sub.addChild(new TreeElement("x"));
+		TreeElement instance = sub.deepCopy(true);
+		instance.setMult(0);
+		template.addChild(sub);
+		template.addChild(instance);
+		
+		TreeElement withoutTemplates = template.deepCopy(false);
+		TreeElement copy1 = template.deepCopy(true);
+		TreeElement copy2 = copy1.deepCopy(true);
+		assertEquals("Templates not left out of copy", 2, withoutTemplates.getNumChildren());
+		assertNull("Nested template copied", withoutTemplates.getChild("sub", TreeReference.INDEX_TEMPLATE));
+		assertEquals("Wrong number of children in copy", 3, copy2.getNumChildren());
+		
+		//the source changes first, before any copy has looked at its children
+		template.getChild("q", 0).setValue(new IntegerData(2));
+		template.getChild("sub", 0).getChild("x", 0).setValue(new IntegerData(3));
+		template.getChild("sub", 0).addChild(new TreeElement("y"));
+		assertEquals("Change to template seen by copy", 1, ((Integer)copy1.getChild("q", 0).getValue().getValue()).intValue());
+		assertNull("Change to template seen by nested copy", copy2.getChild("sub", 0).getChild("x", 0).getValue());
+		assertEquals("Child added to template seen by copy", 1, copy1.getChild("sub", 0).getNumChildren());
+		
+		//and a copy changes
+		copy2.getChild("q", 0).setValue(new IntegerData(4));
+		copy2.setAttribute(null, "a", "2");
+		copy2.removeChild("sub", TreeReference.INDEX_TEMPLATE);
+		assertEquals("Change to copy seen by other copy", 1, ((Integer)copy1.getChild("q", 0).getValue().getValue()).intValue());
+		assertEquals("Change to copy seen by template", 2, ((Integer)template.getChild("q", 0).getValue().getValue()).intValue());
+		assertEquals("Attribute change seen by template", "1", template.getAttributeValue(null, "a"));
+		assertEquals("Attribute not changed", "2", copy2.getAttributeValue(null, "a"));
+		assertEquals("Child removed from copy seen by template", 3, template.getNumChildren());
+		assertEquals("Child removed from copy seen by other copy", 3, copy1.getNumChildren());
+		
+		//a copy inherits the relevance of its new parent, not of the source's
+		TreeElement parent = new TreeElement("parent");
+		parent.setRelevant(false);
+		parent.addChild(copy1);
+		assertTrue("Copy under non-relevant parent is relevant", !copy1.getChild("sub", 0).getChild("x", 0).isRelevant());
+		assertTrue("Template affected by relevance of copy", template.getChild("sub", 0).getChild("x", 0).isRelevant());
+	}
 }
@@ -0,0 +1,757 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.core.model.test;
+
+import j2meunit.framework.Test;
+import j2meunit.framework.TestCase;
+import j2meunit.framework.TestMethod;
+import j2meunit.framework.TestSuite;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import org.javarosa.core.api.IInstrumentation;
+import org.javarosa.core.log.PerformanceLog;
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.GroupDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.condition.IConditionExpr;
+import org.javarosa.core.model.condition.IFunctionHandler;
+import org.javarosa.core.model.condition.Triggerable;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.services.Instrumentation;
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.core.services.locale.Localizer;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.model.xform.XFormSerializingVisitor;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xform.parse.XFormParser;
+import org.javarosa.xpath.XPathConditional;
+import org.javarosa.xpath.XPathParseTool;
+
+public class FormDefTest extends TestCase {
+	public FormDefTest(String name, TestMethod rTestMethod) {
+		super(name, rTestMethod);
+	}
+	
+	public FormDefTest(String name) {
+		super(name);
+	}
+	
+	public FormDefTest() {
+		super();
+	}	
+	
+	public final static int NUM_TESTS = 16;
+
+	public Test suite() {
+		TestSuite aSuite = new TestSuite();
+		
+		for (int i = 1; i <= NUM_TESTS; i++) {
+			final int testID = i;
+			aSuite.addTest(new FormDefTest("FormDef Test " + i, new TestMethod() {
+				public void run (TestCase tc) {
+					((FormDefTest)tc).doTest(testID);
+				}
+			}));
+		}
+			
+		return aSuite;
+	}
+
+	public void doTest (int i) {
+		switch (i) {
+		case 1: testCascade(); break;
+		case 2: testCascadeRepeated(); break;
+		case 3: testRepeatNodeset(); break;
+		case 4: testStreamingParse(); break;
+		case 5: testConcurrentParse(); break;
+		case 6: testStructureVersion(); break;
+		case 7: testFillTemplate(); break;
+		case 8: testLazyOutputFragments(); break;
+		case 9: testInstrumentation(); break;
+		case 10: testSerializedTriggerables(); break;
+		case 11: testValidate(); break;
+		case 12: testUnchangedValue(); break;
+		case 13: testSharedExpressions(); break;
+		case 14: testPredicateTriggers(); break;
+		case 15: testVolatileOutput(); break;
+		case 16: testRegistrySnapshot(); break;
+		}
+	}
+
+	//a -> b -> c -> relevance of d; the binds are deliberately listed out of dependency order
+	public static final String CASCADE_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>cascade</h:title><model>" +
+		"<instance><data><a/><b/><c/><d/></data></instance>" +
+		"<bind nodeset=\"/data/d\" relevant=\"/data/c &gt; 10\"/>" +
+		"<bind nodeset=\"/data/c\" type=\"int\" calculate=\"/data/b + 1\"/>" +
+		"<bind nodeset=\"/data/b\" type=\"int\" calculate=\"/data/a * 2\"/>" +
+		"<bind nodeset=\"/data/a\" type=\"int\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/a\"><label>a</label></input>" +
+		"<input ref=\"/data/d\"><label>d</label></input>" +
+		"</h:body></h:html>";
+
+	public static final String REPEAT_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>repeat</h:title><model>" +
+		"<instance><data><r><v/></r><r><v/></r><r><v/></r><total/><n/></data></instance>" +
+		"<bind nodeset=\"/data/r/v\" type=\"int\"/>" +
+		"<bind nodeset=\"/data/total\" type=\"int\" calculate=\"sum(/data/r/v)\"/>" +
+		"<bind nodeset=\"/data/n\" type=\"int\" calculate=\"count(/data/r)\"/>" +
+		"</model></h:head><h:body>" +
+		"<repeat nodeset=\"/data/r\"><input ref=\"/data/r/v\"><label>v</label></input></repeat>" +
+		"</h:body></h:html>";
+
+	public static final String ITEXT_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\" xmlns:jr=\"http://openrosa.org/javarosa\">" +
+		"<h:head><h:title>itext</h:title><model>" +
+		"<itext>" +
+		"<translation lang=\"en\" default=\"\"><text id=\"q\"><value>Question</value></text><text id=\"g\"><value>Group</value></text></translation>" +
+		"<translation lang=\"fr\"><text id=\"q\"><value>Question (fr)</value></text><text id=\"g\"><value>Groupe</value></text></translation>" +
+		"</itext>\n  " +
+		"<instance><data id=\"itext\"><q>default</q><g><r><v/></r></g><n/></data></instance>" +
+		"<bind nodeset=\"/data/q\" type=\"string\" required=\"true()\"/>" +
+		"<bind nodeset=\"/data/g/r/v\" relevant=\"/data/q != ''\"/>" +
+		"<bind nodeset=\"/data/n\" type=\"int\" calculate=\"count(/data/g/r)\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/q\"><label ref=\"jr:itext('q')\"/><hint>hint</hint></input>" +
+		"<group ref=\"/data/g\"><label ref=\"jr:itext('g')\"/>" +
+		"<repeat nodeset=\"/data/g/r\"><select1 ref=\"/data/g/r/v\"><label>v</label>" +
+		"<item><label>one</label><value>1</value></item><item><label>two</label><value>2</value></item>" +
+		"</select1></repeat></group>" +
+		"<trigger ref=\"/data/n\"><label>n</label></trigger>" +
+		"</h:body></h:html>";
+
+	public static final String OUTPUT_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>output</h:title><model>" +
+		"<instance><data><a/><b/><r><v/></r><r><v/></r></data></instance>" +
+		"<bind nodeset=\"/data/a\" type=\"int\"/>" +
+		"<bind nodeset=\"/data/b\" type=\"int\" calculate=\"/data/a * 2\"/>" +
+		"<bind nodeset=\"/data/r/v\" type=\"int\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/a\"><label>a=<output value=\"/data/a\"/>, b=<output value=\"/data/b\"/>, a=<output value=\"/data/a\"/></label></input>" +
+		"<repeat nodeset=\"/data/r\"><input ref=\"/data/r/v\"><label>v=<output value=\"/data/r/v\"/> a=<output value=\"/data/a\"/></label></input></repeat>" +
+		"</h:body></h:html>";
+
+	//tick() is a real-time custom function, so the label can't be cached even though it reads /data/a
+	public static final String VOLATILE_OUTPUT_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>volatile output</h:title><model>" +
+		"<instance><data><a/></data></instance>" +
+		"<bind nodeset=\"/data/a\" type=\"int\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/a\"><label>a=<output value=\"concat(/data/a, '/', tick())\"/></label></input>" +
+		"</h:body></h:html>";
+
+	//the repeat is only relevant (and so can only be added to) when a > 0
+	public static final String REPEAT_CONDITION_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>repeat condition</h:title><model>" +
+		"<instance><data><a/><r><v/></r></data></instance>" +
+		"<bind nodeset=\"/data/a\" type=\"int\"/>" +
+		"<bind nodeset=\"/data/r\" relevant=\"/data/a &gt; 0\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/a\"><label>a</label></input>" +
+		"<repeat nodeset=\"/data/r\"><input ref=\"/data/r/v\"><label>v</label></input></repeat>" +
+		"</h:body></h:html>";
+
+	//a and r/x have the same constraint, relative to different contexts
+	public static final String SHARED_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>shared</h:title><model>" +
+		"<instance><data><max>10</max><a/><r><max>5</max><x/></r></data></instance>" +
+		"<bind nodeset=\"/data/max\" type=\"int\"/>" +
+		"<bind nodeset=\"/data/a\" type=\"int\" constraint=\". &lt; ../max\"/>" +
+		"<bind nodeset=\"/data/r/max\" type=\"int\"/>" +
+		"<bind nodeset=\"/data/r/x\" type=\"int\" constraint=\". &lt; ../max\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/a\"><label>a</label></input>" +
+		"<repeat nodeset=\"/data/r\"><input ref=\"/data/r/x\"><label>x</label></input></repeat>" +
+		"</h:body></h:html>";
+
+	//found looks up a repeat instance by key; old counts the instances that pass a filter
+	public static final String PREDICATE_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>predicates</h:title><model>" +
+		"<instance><data><key/><found/><old/><r><id/><age/></r><r><id/><age/></r><r><id/><age/></r></data></instance>" +
+		"<bind nodeset=\"/data/r/age\" type=\"int\"/>" +
+		"<bind nodeset=\"/data/found\" type=\"int\" calculate=\"/data/r[id = /data/key]/age\"/>" +
+		"<bind nodeset=\"/data/old\" type=\"int\" calculate=\"count(/data/r[age &gt; 60])\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/key\"><label>key</label></input>" +
+		"<repeat nodeset=\"/data/r\">" +
+		"<input ref=\"/data/r/id\"><label>id</label></input>" +
+		"<input ref=\"/data/r/age\"><label>age</label></input>" +
+		"</repeat>" +
+		"</h:body></h:html>";
+
+	//c is only asked (and so only required) when a > 5
+	public static final String VALIDATE_FORM =
+		"<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">" +
+		"<h:head><h:title>validate</h:title><model>" +
+		"<instance><data><a/><b/><c/></data></instance>" +
+		"<bind nodeset=\"/data/a\" type=\"int\" constraint=\". &lt; 10\"/>" +
+		"<bind nodeset=\"/data/b\" required=\"true()\"/>" +
+		"<bind nodeset=\"/data/c\" required=\"true()\" relevant=\"/data/a &gt; 5\"/>" +
+		"</model></h:head><h:body>" +
+		"<input ref=\"/data/a\"><label>a</label></input>" +
+		"<input ref=\"/data/b\"><label>b</label></input>" +
+		"<input ref=\"/data/c\"><label>c</label></input>" +
+		"</h:body></h:html>";
+
+	public static FormDef parse (String xform) {
+		FormDef f = XFormParser.getFormDef(new StringReader(xform));
+		f.initialize(true);
+		return f;
+	}
+
+	private TreeElement node (FormDef f, String xpath) {
+		return f.getDataModel().resolveReference(ref(xpath));
+	}
+
+	private TreeReference ref (String xpath) {
+		return (TreeReference)new XPathReference(xpath).getReference();
+	}
+
+	private int intValue (TreeElement e) {
+		return ((Integer)e.getValue().getValue()).intValue();
+	}
+
+	public void testCascade () {
+		FormDef f = parse(CASCADE_FORM);
+
+		f.setValue(new IntegerData(3), ref("/data/a"));
+		if (intValue(node(f, "/data/b")) != 6 || intValue(node(f, "/data/c")) != 7) {
+			fail("calculate did not cascade");
+		}
+		if (node(f, "/data/d").isRelevant()) {
+			fail("relevance should not have cascaded to true");
+		}
+
+		f.setValue(new IntegerData(5), ref("/data/a"));
+		if (intValue(node(f, "/data/c")) != 11 || !node(f, "/data/d").isRelevant()) {
+			fail("relevance did not cascade from calculate chain");
+		}
+	}
+
+	public void testCascadeRepeated () {
+		FormDef f = parse(CASCADE_FORM);
+
+		//same trigger many times; exercises the cached cascade set
+		for (int i = 0; i < 20; i++) {
+			f.setValue(new IntegerData(i), ref("/data/a"));
+			if (intValue(node(f, "/data/c")) != 2 * i + 1) {
+				fail("stale cascade at iteration " + i);
+			}
+			if (node(f, "/data/d").isRelevant() != (2 * i + 1 > 10)) {
+				fail("stale relevance at iteration " + i);
+			}
+		}
+	}
+
+	public void testStructureVersion () {
+		FormDef f = parse(CASCADE_FORM);
+
+		f.setValue(new IntegerData(3), ref("/data/a"));
+		int version = f.getStructureVersion();
+		f.setValue(new IntegerData(4), ref("/data/a"));
+		if (f.getStructureVersion() != version) {
+			fail("structure version changed without a change in relevance");
+		}
+		f.setValue(new IntegerData(5), ref("/data/a"));
+		if (f.getStructureVersion() == version) {
+			fail("structure version not changed when /data/d became relevant");
+		}
+	}
+
+	public void testFillTemplate () {
+		FormDef f = parse(OUTPUT_FORM);
+		String label = ((QuestionDef)f.getChild(0)).getLongText();
+		String repeatLabel = ((QuestionDef)f.getChild(1).getChild(0)).getLongText();
+		TreeReference aRef = ref("/data/a");
+
+		f.setValue(new IntegerData(3), aRef);
+		if (!"a=3, b=6, a=3".equals(f.fillTemplateString(label, aRef))) {
+			fail("bad filled-in label: " + f.fillTemplateString(label, aRef));
+		}
+		f.setValue(new IntegerData(4), aRef);
+		if (!"a=4, b=8, a=4".equals(f.fillTemplateString(label, aRef))) {
+			fail("filled-in label not updated: " + f.fillTemplateString(label, aRef));
+		}
+
+		TreeReference v0 = ref("/data/r/v").contextualize(repeatRef(0));
+		TreeReference v1 = ref("/data/r/v").contextualize(repeatRef(1));
+		f.setValue(new IntegerData(7), v0);
+		f.setValue(new IntegerData(9), v1);
+		if (!"v=7 a=4".equals(f.fillTemplateString(repeatLabel, v0)) || !"v=9 a=4".equals(f.fillTemplateString(repeatLabel, v1))) {
+			fail("repeat label not filled in per repeat");
+		}
+		f.setValue(new IntegerData(8), v1);
+		f.setValue(new IntegerData(5), aRef);
+		if (!"v=7 a=5".equals(f.fillTemplateString(repeatLabel, v0)) || !"v=8 a=5".equals(f.fillTemplateString(repeatLabel, v1))) {
+			fail("repeat label not updated");
+		}
+
+		if (!"no outputs".equals(f.fillTemplateString("no outputs", aRef)) || !"${x}".equals(f.fillTemplateString("${x}", aRef))) {
+			fail("template without outputs changed");
+		}
+	}
+
+	public void testVolatileOutput () {
+		FormDef f = parse(VOLATILE_OUTPUT_FORM);
+		EvaluationContext ec = new EvaluationContext();
+		ec.addFunctionHandler(new IFunctionHandler () {
+			int ticks = 0;
+			public String getName () { return "tick"; }
+			public Vector getPrototypes () {
+				Vector p = new Vector();
+				p.addElement(new Class[0]);
+				return p;
+			}
+			public boolean rawArgs () { return false; }
+			public boolean realTime () { return true; }
+			public Object eval (Object[] args) { return String.valueOf(++ticks); }
+		});
+		f.setEvaluationContext(ec);
+
+		String label = ((QuestionDef)f.getChild(0)).getLongText();
+		TreeReference aRef = ref("/data/a");
+		f.setValue(new IntegerData(3), aRef);
+		if (!"a=3/1".equals(f.fillTemplateString(label, aRef)) || !"a=3/2".equals(f.fillTemplateString(label, aRef))) {
+			fail("label with a real-time function was cached");
+		}
+	}
+
+	public void testLazyOutputFragments () {
+		PrototypeManager.registerPrototypes(new String[] {
+			"org.javarosa.core.model.QuestionDef",
+			"org.javarosa.core.model.GroupDef",
+			"org.javarosa.core.model.instance.DataModelTree",
+			"org.javarosa.core.model.data.IntegerData",
+			"org.javarosa.model.xform.XPathReference",
+			"org.javarosa.xpath.XPathConditional"
+		});
+		PrototypeManager.registerPrototypes(XPathParseTool.xpathClasses);
+
+		FormDef f;
+		byte[] serialized;
+		try {
+			f = (FormDef)ExtUtil.deserialize(ByteBuffer.wrap(ExtUtil.serialize(parse(OUTPUT_FORM))), FormDef.class);
+			//fragments not yet read are written back out as they were
+			serialized = ExtUtil.serialize(f);
+			f = (FormDef)ExtUtil.deserialize(ByteBuffer.wrap(serialized), FormDef.class);
+		} catch (DeserializationException de) {
+			fail("could not deserialize form: " + de.getMessage());
+			return;
+		}
+		if (!Arrays.equals(serialized, ExtUtil.serialize(f))) {
+			fail("re-serialized form differs");
+		}
+		f.initialize(true);
+
+		String label = ((QuestionDef)f.getChild(0)).getLongText();
+		TreeReference aRef = ref("/data/a");
+		f.setValue(new IntegerData(3), aRef);
+		if (!"a=3, b=6, a=3".equals(f.fillTemplateString(label, aRef))) {
+			fail("bad filled-in label after deserialization: " + f.fillTemplateString(label, aRef));
+		}
+		if (f.getOutputFragments().size() != 3 || !(f.getOutputFragments().elementAt(2) instanceof IConditionExpr)) {
+			fail("output fragments not read back");
+		}
+	}
+
+	public void testSerializedTriggerables () {
+		PrototypeManager.registerPrototypes(new String[] {
+			"org.javarosa.core.model.QuestionDef",
+			"org.javarosa.core.model.GroupDef",
+			"org.javarosa.core.model.instance.DataModelTree",
+			"org.javarosa.core.model.data.IntegerData",
+			"org.javarosa.model.xform.XPathReference",
+			"org.javarosa.xpath.XPathConditional"
+		});
+		PrototypeManager.registerPrototypes(XPathParseTool.xpathClasses);
+
+		FormDef original = parse(CASCADE_FORM);
+		FormDef f = roundTrip(original);
+		if (f == null) {
+			return;
+		}
+
+		//the topological order is restored rather than recomputed
+		if (f.triggerables.size() != original.triggerables.size()) {
+			fail("wrong number of triggerables after deserialization");
+		}
+		for (int i = 0; i < f.triggerables.size(); i++) {
+			Triggerable t = (Triggerable)f.triggerables.elementAt(i);
+			if (!t.equals(original.triggerables.elementAt(i)) || t.rank != i) {
+				fail("triggerable order not preserved at " + i);
+			}
+		}
+		if (f.triggerIndex.size() != original.triggerIndex.size()) {
+			fail("trigger index not preserved");
+		}
+		for (Enumeration e = original.triggerIndex.keys(); e.hasMoreElements(); ) {
+			TreeReference trigger = (TreeReference)e.nextElement();
+			Vector triggered = (Vector)f.triggerIndex.get(trigger);
+			if (triggered == null || !triggered.equals(original.triggerIndex.get(trigger))) {
+				fail("trigger index differs for " + trigger);
+			}
+			for (int i = 0; triggered != null && i < triggered.size(); i++) {
+				if (!f.triggerables.contains(triggered.elementAt(i))) {
+					fail("trigger index refers to a triggerable not in the form");
+				}
+			}
+		}
+
+		f.initialize(true);
+		f.setValue(new IntegerData(5), ref("/data/a"));
+		if (intValue(node(f, "/data/c")) != 11 || !node(f, "/data/d").isRelevant()) {
+			fail("cascade broken after deserialization");
+		}
+
+		f = roundTrip(parse(REPEAT_CONDITION_FORM));
+		if (f == null) {
+			return;
+		}
+		f.initialize(true);
+		TreeReference repeat = ref("/data/r");
+		repeat.setMultiplicity(1, 0);
+		if (f.canCreateRepeat(repeat)) {
+			fail("repeat condition lost in deserialization");
+		}
+		f.setValue(new IntegerData(1), ref("/data/a"));
+		if (!f.canCreateRepeat(repeat)) {
+			fail("repeat condition not re-evaluated after deserialization");
+		}
+	}
+
+	private FormDef roundTrip (FormDef f) {
+		try {
+			return (FormDef)ExtUtil.deserialize(ExtUtil.serialize(f), FormDef.class);
+		} catch (DeserializationException de) {
+			fail("could not deserialize form: " + de.getMessage());
+			return null;
+		}
+	}
+
+	public void testValidate () {
+		FormDef f = parse(VALIDATE_FORM);
+
+		if (f.validate(false, false).size() != 0) {
+			fail("empty answers should not violate constraints");
+		}
+		assertViolations(f, f.validate(true, false), new String[] {"/data/b"});
+
+		f.setValue(new IntegerData(20), ref("/data/a"));
+		assertViolations(f, f.validate(false, false), new String[] {"/data/a"});
+		assertViolations(f, f.validate(true, false), new String[] {"/data/a", "/data/b", "/data/c"});
+		assertViolations(f, f.validate(true, true), new String[] {"/data/a"});
+
+		f.setValue(new IntegerData(7), ref("/data/a"));
+		if (!f.getChildInstanceRef(f.getFirstViolation(true)).getGenericRef().equals(ref("/data/b"))) {
+			fail("wrong first violation");
+		}
+		if (f.getFirstViolation(false) != null) {
+			fail("valid form reported a violation");
+		}
+	}
+
+	private void assertViolations (FormDef f, Vector violations, String[] expected) {
+		if (violations.size() != expected.length) {
+			fail("expected " + expected.length + " violations; got " + violations.size());
+		}
+		for (int i = 0; i < expected.length; i++) {
+			TreeReference violation = f.getChildInstanceRef((FormIndex)violations.elementAt(i));
+			if (!violation.getGenericRef().equals(ref(expected[i]))) {
+				fail("expected violation at " + expected[i] + "; got " + violation);
+			}
+		}
+	}
+
+	public void testUnchangedValue () {
+		FormDef f = parse(CASCADE_FORM);
+		f.setValue(new IntegerData(3), ref("/data/a"));
+
+		//tamper with a calculated value; it's only put right again if the calculation re-runs
+		node(f, "/data/c").setValue(new IntegerData(0));
+		f.setValue(new IntegerData(3), ref("/data/a"));
+		if (intValue(node(f, "/data/c")) != 0) {
+			fail("re-saving an unchanged value fired its triggerables");
+		}
+
+		f.setValue(new IntegerData(4), ref("/data/a"));
+		if (intValue(node(f, "/data/c")) != 9) {
+			fail("changed value did not cascade");
+		}
+	}
+
+	public void testSharedExpressions () {
+		FormDef f = parse(SHARED_FORM);
+		TreeReference x = ref("/data/r/x").contextualize(repeatRef(0));
+
+		XPathConditional a = (XPathConditional)node(f, "/data/a").getConstraint().constraint;
+		if (a.getExpr() != ((XPathConditional)f.getDataModel().resolveReference(x).getConstraint().constraint).getExpr()) {
+			fail("identical expressions in one form should share a parse tree");
+		}
+
+		//the shared tree still resolves ../max against each node's own context
+		f.setValue(new IntegerData(7), ref("/data/a"));
+		f.setValue(new IntegerData(7), x);
+		assertViolations(f, f.validate(false, false), new String[] {"/data/r/x"});
+
+		f.setValue(new IntegerData(12), ref("/data/a"));
+		f.setValue(new IntegerData(3), x);
+		assertViolations(f, f.validate(false, false), new String[] {"/data/a"});
+	}
+
+	public void testPredicateTriggers () {
+		FormDef f = parse(PREDICATE_FORM);
+		String[] ids = {"a", "b", "c"};
+		int[] ages = {70, 30, 65};
+		for (int i = 0; i < 3; i++) {
+			f.setValue(new StringData(ids[i]), ref("/data/r/id").contextualize(repeatRef(i)));
+			f.setValue(new IntegerData(ages[i]), ref("/data/r/age").contextualize(repeatRef(i)));
+		}
+		if (intValue(node(f, "/data/old")) != 2) {
+			fail("filtered count was " + node(f, "/data/old").getValue().getValue());
+		}
+
+		f.setValue(new StringData("b"), ref("/data/key"));
+		if (intValue(node(f, "/data/found")) != 30) {
+			fail("lookup by key failed");
+		}
+
+		//changes to what the predicates look at re-evaluate the paths
+		f.setValue(new IntegerData(90), ref("/data/r/age").contextualize(repeatRef(1)));
+		if (intValue(node(f, "/data/found")) != 90 || intValue(node(f, "/data/old")) != 3) {
+			fail("change to a selected node not picked up");
+		}
+		f.setValue(new StringData("b"), ref("/data/r/id").contextualize(repeatRef(0)));
+		if (intValue(node(f, "/data/found")) != 70) {
+			fail("change to a key not picked up");
+		}
+		f.setValue(new StringData("x"), ref("/data/key"));
+		if (node(f, "/data/found").getValue() != null) {
+			fail("lookup of a missing key should be empty");
+		}
+	}
+
+	public void testInstrumentation () {
+		PerformanceLog log = new PerformanceLog();
+		Instrumentation.registerInstrumentation(log);
+		try {
+			FormDef f = parse(CASCADE_FORM);
+			if (log.getCount(IInstrumentation.PARSE, "elements") != 1 || log.getCount(IInstrumentation.PARSE, "bind handlers") != 1) {
+				fail("parse phases not recorded");
+			}
+
+			long before = log.getCount(IInstrumentation.TRIGGERABLE, "/data/a * 2");
+			f.setValue(new IntegerData(3), ref("/data/a"));
+			if (log.getCount(IInstrumentation.TRIGGERABLE, "/data/a * 2") != before + 1
+					|| log.getCount(IInstrumentation.TRIGGERABLE_APPLY, "/data/c > 10") == 0
+					|| log.getCount(IInstrumentation.EXPAND_REFERENCE, "/data/b") == 0) {
+				fail("triggerable evaluation not recorded:\n" + log.getReport());
+			}
+
+			XPathConditional cond = new XPathConditional("concat(/data/a, 'x')");
+			cond.eval(f.getDataModel(), new EvaluationContext(new EvaluationContext(), TreeReference.rootRef()));
+			if (log.getCount(IInstrumentation.FUNCTION, "concat") != 1) {
+				fail("function evaluation not recorded");
+			}
+
+			//the source xpath (the key for triggerables) survives serialization
+			if (!"concat(/data/a, 'x')".equals(ExtUtil.deserialize(ExtUtil.serialize(cond), XPathConditional.class).toString())) {
+				fail("xpath source lost in serialization");
+			}
+		} catch (Exception e) {
+			fail("instrumentation failed: " + e.getMessage());
+		} finally {
+			Instrumentation.registerInstrumentation(null);
+		}
+	}
+
+	public void testRepeatNodeset () {
+		FormDef f = parse(REPEAT_FORM);
+
+		if (intValue(node(f, "/data/n")) != 3) {
+			fail("repeat path not evaluated as a nodeset");
+		}
+
+		for (int i = 0; i < 3; i++) {
+			f.setValue(new IntegerData(i + 4), ref("/data/r/v").contextualize(repeatRef(i)));
+		}
+		if (intValue(node(f, "/data/total")) != 15) {
+			fail("sum over repeat was " + node(f, "/data/total").getValue().getValue());
+		}
+	}
+
+	public void testStreamingParse () {
+		FormDef streamed = parse(ITEXT_FORM);
+		FormDef dom = XFormParser.getFormDef(XFormParser.getXMLDocument(new StringReader(ITEXT_FORM)));
+		dom.initialize(true);
+
+		if (dom.triggerables.size() != streamed.triggerables.size()) {
+			fail("triggerables differ");
+		}
+		if (dom.getChildren().size() != streamed.getChildren().size()) {
+			fail("top-level elements differ");
+		}
+		for (int i = 0; i < dom.getChildren().size(); i++) {
+			compareElements(dom.getChild(i), streamed.getChild(i));
+		}
+		
+		Localizer ld = dom.getLocalizer();
+		Localizer ls = streamed.getLocalizer();
+		if (!ld.getDefaultLocale().equals(ls.getDefaultLocale()) || ld.getAvailableLocales().length != 2 || ls.getAvailableLocales().length != 2) {
+			fail("locales differ");
+		}
+		for (int i = 0; i < 2; i++) {
+			String locale = ld.getAvailableLocales()[i];
+			if (!locale.equals(ls.getAvailableLocales()[i]) || !ld.getLocaleData(locale).equals(ls.getLocaleData(locale))) {
+				fail("translation [" + locale + "] differs");
+			}
+		}
+		
+		try {
+			String domModel = new String(new XFormSerializingVisitor().serializeDataModel(dom.getDataModel()));
+			String streamedModel = new String(new XFormSerializingVisitor().serializeDataModel(streamed.getDataModel()));
+			if (!domModel.equals(streamedModel)) {
+				fail("data models differ: " + domModel + " vs. " + streamedModel);
+			}
+		} catch (IOException ioe) {
+			fail(ioe.getMessage());
+		}
+	}
+
+	public void testConcurrentParse () {
+		final String[] forms = {CASCADE_FORM, REPEAT_FORM, ITEXT_FORM};
+		final byte[][] expected = new byte[forms.length][];
+		for (int i = 0; i < forms.length; i++) {
+			expected[i] = ExtUtil.serialize(parse(forms[i]));
+		}
+		
+		final String[] failure = new String[1];
+		Thread[] threads = new Thread[6];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				public void run () {
+					for (int i = 0; i < 10 * forms.length; i++) {
+						int which = (i + offset) % forms.length;
+						byte[] serialized = ExtUtil.serialize(parse(forms[which]));
+						if (!sameBytes(expected[which], serialized)) {
+							failure[0] = "form " + which + " parsed differently on thread " + offset;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			try {
+				threads[t].join();
+			} catch (InterruptedException ie) {
+				fail("interrupted");
+			}
+		}
+		
+		if (failure[0] != null) {
+			fail(failure[0]);
+		}
+	}
+
+	//a parser keeps the registries it was created with
+	public void testRegistrySnapshot () {
+		String form = CASCADE_FORM.replaceAll("type=\"int\" calculate=\"/data/a \\* 2\"", "type=\"snapshot-test\" calculate=\"/data/a * 2\"");
+		XFormParser before = new XFormParser();
+		XFormParser.addDataType("snapshot-test", Constants.DATATYPE_DECIMAL);
+		XFormParser after = new XFormParser();
+
+		FormDef f = before.parse(XFormParser.getXMLDocument(new StringReader(form)));
+		if (f.getDataModel().resolveReference(ref("/data/b")).dataType != Constants.DATATYPE_UNSUPPORTED) {
+			fail("type registered after the parser was created was used");
+		}
+		f = after.parse(XFormParser.getXMLDocument(new StringReader(form)));
+		if (f.getDataModel().resolveReference(ref("/data/b")).dataType != Constants.DATATYPE_DECIMAL) {
+			fail("registered type not used");
+		}
+	}
+
+	private void compareElements (IFormElement a, IFormElement b) {
+		if (a.getClass() != b.getClass() || !equals(a.getTitle(), b.getTitle()) || !equals(a.getBind(), b.getBind())) {
+			fail("form elements differ: " + a.getTitle() + " vs. " + b.getTitle());
+		}
+		if (a instanceof QuestionDef) {
+			QuestionDef qa = (QuestionDef)a;
+			QuestionDef qb = (QuestionDef)b;
+			if (qa.getControlType() != qb.getControlType() || !equals(qa.getLongTextID(), qb.getLongTextID()) ||
+					!equals(qa.getLongText(), qb.getLongText()) || !equals(qa.getHelpText(), qb.getHelpText()) ||
+					!equals(qa.getSelectItems(), qb.getSelectItems())) {
+				fail("questions differ: " + qa.getBind().getReference());
+			}
+		} else if (a instanceof GroupDef && ((GroupDef)a).getRepeat() != ((GroupDef)b).getRepeat()) {
+			fail("group/repeat mismatch");
+		}
+
+		Vector ca = a.getChildren();
+		Vector cb = b.getChildren();
+		if ((ca == null ? 0 : ca.size()) != (cb == null ? 0 : cb.size())) {
+			fail("child counts differ");
+		}
+		for (int i = 0; ca != null && i < ca.size(); i++) {
+			compareElements((IFormElement)ca.elementAt(i), (IFormElement)cb.elementAt(i));
+		}
+	}
+
+	private static boolean sameBytes (byte[] a, byte[] b) {
+		if (a.length != b.length) {
+			return false;
+		}
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equals (Object a, Object b) {
+		return (a == null ? b == null : a.equals(b));
+	}
+
+	private TreeReference repeatRef (int mult) {
+		TreeReference r = ref("/data/r");
+		r.setMultiplicity(1, mult);
+		return r;
+	}
+}
@@ -28,6 +28,7 @@ import org.javarosa.core.model.FormElementStateListener;
 import org.javarosa.core.model.IDataReference;
 import org.javarosa.core.model.IFormElement;
 import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.services.locale.Localizer;
@@ -76,7 +77,7 @@ public class QuestionDefTest extends TestCase {
 		ExternalizableTest.testExternalizable(q, this, pf, "QuestionDef [" + msg + "]");
 	}
 	
-	public final static int NUM_TESTS = 15;
+	public final static int NUM_TESTS = 16;
 	public void doTest (int i) {
 		switch (i) {
 		case 1: testConstructors(); break;
@@ -94,6 +95,7 @@ public class QuestionDefTest extends TestCase {
 		case 13: testSelectChoiceIDsWithLocalizer(); break;
 		case 14: testLocaleChanged(); break;
 		case 15: testLocaleChangedNoLocalizable(); break;
+		case 16: testSelectedItemIndex(); break;
 		}
 	}
 	
@@ -454,6 +456,38 @@ public class QuestionDefTest extends TestCase {
 		}
 	}	
 	
+	public void testSelectedItemIndex () {
+		QuestionDef q = new QuestionDef();
+		if (q.getSelectedItemIndex("val1") != -1) {
+			fail("Found choice in question with no choices");
+		}
+		
+		q.addSelectItemID("choice1", false, "val1");
+		q.addSelectItemID("choice2", false, "val2");
+		if (q.getSelectedItemIndex("val1") != 0 || q.getSelectedItemIndex("val2") != 1 || q.getSelectedItemIndex("val3") != -1) {
+			fail("Choice values not indexed");
+		}
+		
+		q.addSelectItemID("choice3", false, "val3");
+		q.addSelectItemID("choice4", false, "val1");
+		if (q.getSelectedItemIndex("val3") != 2 || q.getSelectedItemIndex("val1") != 0) {
+			fail("Choice index not updated when choices added");
+		}
+
+		OrderedHashtable newChoiceIDs = new OrderedHashtable();
+		newChoiceIDs.put("alpha", "beta");
+		q.setSelectItemIDs(newChoiceIDs, new Vector(), null);
+		if (q.getSelectedItemIndex("beta") != 0 || q.getSelectedItemIndex("val1") != -1) {
+			fail("Choice index not updated when choices replaced");
+		}
+		
+		Selection s = new Selection("beta");
+		s.attachQuestionDef(q);
+		if (s.index != 0) {
+			fail("Selection not linked to choice index");
+		}
+	}
+	
 	private class QuestionObserver implements FormElementStateListener {
 		public boolean flag = false;
 		public TreeElement e;
@@ -21,6 +21,8 @@ import j2meunit.framework.TestCase;
 import j2meunit.framework.TestMethod;
 import j2meunit.framework.TestSuite;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 import org.javarosa.core.services.locale.Localizable;
@@ -29,6 +31,8 @@ import org.javarosa.core.services.locale.TableLocaleSource;
 import org.javarosa.core.util.NoLocalizedTextException;
 import org.javarosa.core.util.OrderedHashtable;
 import org.javarosa.core.util.UnregisteredLocaleException;
+import org.javarosa.core.util.externalizable.ByteBufferDataInputStream;
+import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.core.util.test.ExternalizableTest;
 
@@ -61,7 +65,7 @@ public class LocalizerTest extends TestCase  {
 		return aSuite;
 	}
 
-	public final int NUM_TESTS = 30;
+	public final int NUM_TESTS = 32;
 	public void testMaster (int testID) {
 		//System.out.println("running " + testID);
 		
@@ -96,6 +100,8 @@ public class LocalizerTest extends TestCase  {
 		case 28: testSerialization(); break;
 		case 29: testLinearSub(); break;
 		case 30: testHashSub(); break;
+		case 31: testFallbackLocaleDataCached(); break;
+		case 32: testLazyLocaleResources(); break;
 		
 		}
 	}
@@ -606,6 +612,84 @@ public class LocalizerTest extends TestCase  {
 		return text;
 	}
 	
+	public void testFallbackLocaleDataCached () {
+		Localizer l = new Localizer(true, false);
+		TableLocaleSource defaultTable = new TableLocaleSource();
+		TableLocaleSource otherTable = new TableLocaleSource();
+		l.addAvailableLocale("default");
+		l.addAvailableLocale("other");
+		l.setDefaultLocale("default");
+		
+		for (int i = 0; i < 500; i++) {
+			defaultTable.setLocaleMapping("textID" + i, "default" + i);
+		}
+		l.registerLocaleResource("default", defaultTable);
+		l.registerLocaleResource("other", otherTable);
+		l.setLocale("other");
+		
+		int loads = l.getLocaleDataLoads();
+		for (int i = 0; i < 500; i++) {
+			if (!("default" + i).equals(l.getText("textID" + i, "other"))) {
+				fail("Did not fall back to default locale");
+			}
+		}
+		if (l.getLocaleDataLoads() - loads > 1) {
+			fail("Locale data rebuilt for each fallback lookup");
+		}
+		
+		TableLocaleSource newTable = new TableLocaleSource();
+		newTable.setLocaleMapping("textID0", "new0");
+		l.registerLocaleResource("default", newTable);
+		if (!"new0".equals(l.getRawText("default", "textID0"))) {
+			fail("Cached locale data not refreshed when resource registered");
+		}
+	}
+	
+	public void testLazyLocaleResources () {
+		Localizer l = new Localizer(true, false);
+		String[] locales = {"default", "a", "b", "c"};
+		for (int i = 0; i < locales.length; i++) {
+			TableLocaleSource table = new TableLocaleSource();
+			table.setLocaleMapping("textID", "text-" + locales[i]);
+			l.addAvailableLocale(locales[i]);
+			l.registerLocaleResource(locales[i], table);
+		}
+		l.setDefaultLocale("default");
+		l.setLocale("a");
+		
+		PrototypeFactory pf = new PrototypeFactory();
+		pf.addClass(TableLocaleSource.class);
+		Localizer m;
+		try {
+			m = (Localizer)ExtUtil.read(new ByteBufferDataInputStream(ByteBuffer.wrap(ExtUtil.serialize(l))), Localizer.class, pf);
+		} catch (Exception e) {
+			fail("Could not deserialize localizer: " + e.getMessage());
+			return;
+		}
+		
+		if (!m.isLocaleLoaded("default") || !m.isLocaleLoaded("a")) {
+			fail("Current and default locales not loaded after deserialization");
+		}
+		if (m.isLocaleLoaded("b") || m.isLocaleLoaded("c")) {
+			fail("Unused locales loaded during deserialization");
+		}
+		
+		//a locale that was never loaded is written back out unchanged
+		if (!Arrays.equals(ExtUtil.serialize(l), ExtUtil.serialize(m))) {
+			fail("Unloaded locale not re-serialized faithfully");
+		}
+		
+		if (!"text-b".equals(m.getText("textID", "b"))) {
+			fail("Lazily loaded locale has wrong text");
+		}
+		if (!m.isLocaleLoaded("b") || m.isLocaleLoaded("c")) {
+			fail("Locale loading not limited to the locale used");
+		}
+		if (!l.equals(m)) {
+			fail("Deserialized localizer not equal to original");
+		}
+	}
+	
 	public void testGetTextNoCurrentLocale () {
 		Localizer l = new Localizer();
 		TableLocaleSource table = new TableLocaleSource();
@@ -23,12 +23,16 @@ import j2meunit.framework.TestSuite;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
 import org.javarosa.core.util.OrderedHashtable;
+import org.javarosa.core.util.externalizable.ByteBufferDataInputStream;
+import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapBase;
 import org.javarosa.core.util.externalizable.ExtWrapList;
@@ -62,6 +66,12 @@ public class ExternalizableTest extends TestCase {
 				((ExternalizableTest)tc).doTests();
 			}
 		}));
+		
+		aSuite.addTest(new ExternalizableTest("ByteBuffer Test", new TestMethod() {
+			public void run (TestCase tc) {
+				((ExternalizableTest)tc).doByteBufferTests();
+			}
+		}));
 			
 		return aSuite;
 	}
@@ -303,4 +313,85 @@ public class ExternalizableTest extends TestCase {
 		m.put("e", new ExtWrapList(vs));
 		testExternalizable(new ExtWrapMapPoly(m), new ExtWrapMapPoly(String.class, true), pf);
 	}
+	
+	public void doByteBufferTests () {
+		PrototypeFactory pf = new PrototypeFactory();
+		pf.addClass(SampleExtz.class);
+
+		StringBuffer longString = new StringBuffer();
+		for (int i = 0; i < 100; i++) {
+			longString.append("\u00e9\u4e2d-" + i);
+		}
+		
+		testByteBuffer("string", String.class, pf);
+		testByteBuffer("", String.class, pf);
+		testByteBuffer("\u00e9t\u00e9 \u4e2d\u6587", String.class, pf);
+		testByteBuffer("nul\u0000char", String.class, pf);
+		testByteBuffer("clef \ud834\udd1e", String.class, pf);
+		testByteBuffer(longString.toString(), String.class, pf);
+		testByteBuffer(new Integer(-1234567890), Integer.class, pf);
+		testByteBuffer(new Long(1234567890123456789l), Long.class, pf);
+		testByteBuffer(new Date(), Date.class, pf);
+		testByteBuffer(new SampleExtz("\u00fcber", "mom"), SampleExtz.class, pf);
+		
+		Vector v = new Vector();
+		v.addElement("alpha");
+		v.addElement("\u03b2\u03b7\u03c4\u03b1");
+		v.addElement(new Integer(66066066));
+		v.addElement(new SampleExtz("hello", "dolly"));
+		testByteBuffer(new ExtWrapListPoly(v), new ExtWrapListPoly(), pf);
+		testByteBuffer(new ExtWrapTagged(new ExtWrapListPoly(v)), new ExtWrapTagged(), pf);
+		
+		//reads must leave the buffer positioned right after the object
+		byte[] first = ExtUtil.serialize("first \u00e9");
+		byte[] second = ExtUtil.serialize(new Integer(17));
+		ByteBuffer both = ByteBuffer.allocate(first.length + second.length);
+		both.put(first).put(second).flip();
+		try {
+			ByteBufferDataInputStream in = new ByteBufferDataInputStream(both);
+			if (!"first \u00e9".equals(ExtUtil.readString(in)) || ExtUtil.readInt(in) != 17 || both.hasRemaining()) {
+				fail("ByteBuffer reads did not leave the buffer positioned correctly");
+			}
+		} catch (IOException ioe) {
+			fail("ByteBuffer reads failed: " + ioe.getMessage());
+		}
+		
+		//truncated data
+		byte[] data = ExtUtil.serialize("truncated");
+		try {
+			ExtUtil.deserialize(ByteBuffer.wrap(data, 0, data.length - 1), String.class);
+			fail("Truncated string was read without error");
+		} catch (DeserializationException de) {
+			//expected
+		}
+	}
+
+	//round-trip through both a heap and a direct buffer
+	private void testByteBuffer (Object orig, Object template, PrototypeFactory pf) {
+		byte[] bytes = ExtUtil.serialize(orig);
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		ByteBuffer[] buffers = {ByteBuffer.wrap(bytes), direct};
+		
+		for (int i = 0; i < buffers.length; i++) {
+			Object deser;
+			try {
+				ByteBufferDataInputStream in = new ByteBufferDataInputStream(buffers[i]);
+				if (template instanceof Class) {
+					deser = ExtUtil.read(in, (Class)template, pf);
+				} else {
+					deser = ExtUtil.read(in, (ExternalizableWrapper)template, pf);
+				}
+			} catch (Exception e) {
+				fail("ByteBuffer deserialization failed for " + printObj(orig) + ": " + e.getClass().getName() + " " + e.getMessage());
+				return;
+			}
+			
+			if (!ExtUtil.equals(orig, deser)) {
+				fail("ByteBuffer deserialization mismatch: " + printObj(orig) + " became " + printObj(deser));
+			} else if (buffers[i].hasRemaining()) {
+				fail("ByteBuffer deserialization of " + printObj(orig) + " did not consume the whole buffer");
+			}
+		}
+	}
 }
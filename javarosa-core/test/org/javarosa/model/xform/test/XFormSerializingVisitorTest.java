@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009 JavaRosa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.javarosa.model.xform.test;
+
+import j2meunit.framework.Test;
+import j2meunit.framework.TestCase;
+import j2meunit.framework.TestMethod;
+import j2meunit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.DataModelTree;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.test.FormDefTest;
+import org.javarosa.model.xform.XFormSerializingVisitor;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xform.parse.XFormParser;
+
+public class XFormSerializingVisitorTest extends TestCase {
+	public XFormSerializingVisitorTest(String name, TestMethod rTestMethod) {
+		super(name, rTestMethod);
+	}
+	
+	public XFormSerializingVisitorTest(String name) {
+		super(name);
+	}
+	
+	public XFormSerializingVisitorTest() {
+		super();
+	}	
+	
+	public final static int NUM_TESTS = 2;
+
+	public Test suite() {
+		TestSuite aSuite = new TestSuite();
+		
+		for (int i = 1; i <= NUM_TESTS; i++) {
+			final int testID = i;
+			aSuite.addTest(new XFormSerializingVisitorTest("XFormSerializingVisitor Test " + i, new TestMethod() {
+				public void run (TestCase tc) {
+					((XFormSerializingVisitorTest)tc).doTest(testID);
+				}
+			}));
+		}
+			
+		return aSuite;
+	}
+
+	public void doTest (int i) {
+		switch (i) {
+		case 1: testStreamMatchesDocument(FormDefTest.ITEXT_FORM, null); break;
+		case 2: testStreamMatchesDocument(FormDefTest.REPEAT_FORM, "urn:test"); break;
+		}
+	}
+
+	private final static String TEXT = "h\u00e9llo & <goodbye>";
+
+	public void testStreamMatchesDocument (String xform, String schema) {
+		FormDef f = FormDefTest.parse(xform);
+		DataModelTree model = (DataModelTree)f.getDataModel();
+		model.schema = schema;
+		if (model.resolveReference(ref("/data/q")) != null) {
+			f.setValue(new StringData(TEXT), ref("/data/q"));
+		}
+
+		try {
+			byte[] document = new XFormSerializingVisitor().serializeDataModel(model);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (!new XFormSerializingVisitor().serializeDataModel(model, out)) {
+				fail("nothing serialized");
+			}
+			byte[] streamed = out.toByteArray();
+			
+			String text = new String(streamed, "UTF-8");
+			if (!text.startsWith("<?xml version='1.0' encoding='UTF-8' ?>")) {
+				fail("missing encoding declaration: " + text);
+			}
+			if (model.resolveReference(ref("/data/q")) != null && text.indexOf("h\u00e9llo &amp; &lt;goodbye&gt;") == -1) {
+				fail("text not written as UTF-8: " + text);
+			}
+			
+			//the two differ in how non-ascii text is escaped, so compare what they parse back into
+			String reparsedDocument = new String(new XFormSerializingVisitor().serializeDataModel(XFormParser.restoreDataModel(document, null)));
+			String reparsedStreamed = new String(new XFormSerializingVisitor().serializeDataModel(XFormParser.restoreDataModel(streamed, null)));
+			if (!reparsedDocument.equals(reparsedStreamed)) {
+				fail("streamed instance differs: " + reparsedDocument + " vs. " + reparsedStreamed);
+			}
+		} catch (IOException ioe) {
+			fail(ioe.getMessage());
+		}
+	}
+
+	private TreeReference ref (String xpath) {
+		return (TreeReference)new XPathReference(xpath).getReference();
+	}
+}
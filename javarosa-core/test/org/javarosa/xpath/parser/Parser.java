@@ -31,6 +31,8 @@ import org.javarosa.xpath.parser.ast.ASTNodePathStep;
 import org.javarosa.xpath.parser.ast.ASTNodePredicate;
 import org.javarosa.xpath.parser.ast.ASTNodeUnaryOp;
 
+/* the original multi-pass parser, replaced by ExpressionParser; kept as the reference XPathParseTest checks it against */
+
 /* if you try to edit this code, you will likely break it */
 
 public class Parser {
@@ -27,10 +27,19 @@ import java.util.Vector;
 import org.javarosa.core.model.IFormDataModel;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.condition.IFunctionHandler;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.SelectMultiData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.model.instance.DataModelTree;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.utils.DateUtils;
 import org.javarosa.xpath.IExprDataType;
 import org.javarosa.xpath.XPathException;
 import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.XPathSelectionList;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.XPathUnhandledException;
 import org.javarosa.xpath.XPathUnsupportedException;
@@ -102,6 +111,122 @@ public class XPathEvalTest extends TestCase {
 		}
 	}
 
+	private void testSelections () {
+		Vector sv = new Vector();
+		sv.addElement(new Selection("apple"));
+		sv.addElement(new Selection("baby"));
+		sv.addElement(new Selection("crimson"));
+		TreeElement data = new TreeElement("data");
+		TreeElement multi = new TreeElement("multi");
+		multi.setValue(new SelectMultiData(sv));
+		data.addChild(multi);
+		TreeElement none = new TreeElement("none");
+		none.setValue(new SelectMultiData(new Vector()));
+		data.addChild(none);
+		DataModelTree dm = new DataModelTree(data);
+		EvaluationContext ec = new EvaluationContext(new EvaluationContext(), TreeReference.rootRef());
+
+		Object raw = null;
+		try {
+			raw = XPathParseTool.parseXPath("/data/multi").eval(dm, ec);
+		} catch (XPathSyntaxException xpse) { }
+		if (!(raw instanceof XPathSelectionList)) {
+			fail("Multi-select answer not evaluated as a selection list");
+		}
+
+		testEval("selected(/data/multi, 'baby')", dm, ec, Boolean.TRUE);
+		testEval("selected(/data/multi, '  crimson ')", dm, ec, Boolean.TRUE);
+		testEval("selected(/data/multi, 'bab')", dm, ec, Boolean.FALSE);
+		testEval("selected(/data/none, 'apple')", dm, ec, Boolean.FALSE);
+		testEval("count-selected(/data/multi)", dm, ec, new Double(3.0));
+		testEval("count-selected(/data/none)", dm, ec, new Double(0.0));
+		testEval("count-selected('apple baby')", dm, ec, new Double(2.0));
+		testEval("string(/data/multi)", dm, ec, "apple baby crimson");
+		testEval("/data/multi = 'apple baby crimson'", dm, ec, Boolean.TRUE);
+		testEval("boolean(/data/multi)", dm, ec, Boolean.TRUE);
+		testEval("boolean(/data/none)", dm, ec, Boolean.FALSE);
+		testEval("concat(/data/multi, '!')", dm, ec, "apple baby crimson!");
+
+		//custom functions still get the xml string
+		EvaluationContext fec = new EvaluationContext(getFunctionHandlers(), TreeReference.rootRef());
+		testEval("raw(/data/multi)", dm, fec, "[String:apple baby crimson]");
+	}
+
+	private TreeElement addRow (TreeElement parent, int mult, IAnswerData id, int age) {
+		TreeElement row = new TreeElement("r", mult);
+		row.repeatable = true;
+		TreeElement idNode = new TreeElement("id");
+		idNode.setValue(id);
+		row.addChild(idNode);
+		TreeElement ageNode = new TreeElement("age");
+		ageNode.setValue(new IntegerData(age));
+		row.addChild(ageNode);
+		parent.addChild(row);
+		return row;
+	}
+
+	private void testPredicates () {
+		TreeElement data = new TreeElement("data");
+		TreeElement key = new TreeElement("key");
+		key.setValue(new StringData("b"));
+		data.addChild(key);
+		TreeElement a = addRow(data, 0, new StringData("a"), 70);
+		addRow(data, 1, new StringData("b"), 30);
+		TreeElement c = addRow(data, 2, new StringData("c"), 65);
+		addRow(data, 3, new IntegerData(3), 80);
+		DataModelTree dm = new DataModelTree(data);
+		EvaluationContext ec = new EvaluationContext(new EvaluationContext(), TreeReference.rootRef());
+
+		testEval("count(/data/r[age > 60])", dm, ec, new Double(3.0));
+		testEval("sum(/data/r[age < 70]/age)", dm, ec, new Double(95.0));
+		testEval("/data/r[id = 'b']/age * 2", dm, ec, new Double(60.0));
+		testEval("/data/r[id = /data/key]/age + 0", dm, ec, new Double(30.0));
+		testEval("string(/data/r[2]/id)", dm, ec, "b");
+		testEval("/data/r[age > 60][2]/id = 'c'", dm, ec, Boolean.TRUE);
+		testEval("count(/data/r[id = 3])", dm, ec, new Double(1.0));
+		testEval("count(/data/r[id = '3'])", dm, ec, new Double(1.0));
+		testEval("count(/data/r[id = 'x'])", dm, ec, new Double(0.0));
+		testEval("/data/r[id = 'x']/age = ''", dm, ec, Boolean.TRUE);
+		testEval("/data/r/self::node()[1]", dm, ec, new XPathUnsupportedException());
+
+		//custom functions still get a plain vector of refs
+		EvaluationContext fec = new EvaluationContext(getFunctionHandlers(), TreeReference.rootRef());
+		testEval("raw(/data/r[age > 60])", dm, fec, "[Vector:[/data/r[1], /data/r[3], /data/r[4]]]");
+
+		//the index on id is kept up to date
+		testEval("count(/data/r[id = 'c'])", dm, ec, new Double(1.0));
+		c.setRelevant(false);
+		testEval("count(/data/r[id = 'c'])", dm, ec, new Double(0.0));
+		testEval("count(/data/r[age > 60])", dm, ec, new Double(2.0));
+		a.getChild("id", 0).setValue(new StringData("c"));
+		testEval("count(/data/r[id = 'c'])", dm, ec, new Double(1.0));
+		addRow(data, 4, new StringData("c"), 10);
+		testEval("count(/data/r[id = 'c'])", dm, ec, new Double(2.0));
+		testEval("/data/r[id = 'c'][2]/age + 0", dm, ec, new Double(10.0));
+	}
+
+	private void testRegexCache (EvaluationContext ec) {
+		int hits = XPathFuncExpr.getRegexCacheHits();
+		int misses = XPathFuncExpr.getRegexCacheMisses();
+		testEval("regex('abc', concat('^', 'a', '.*'))", null, ec, Boolean.TRUE);
+		testEval("regex('xyz', concat('^', 'a', '.*'))", null, ec, Boolean.FALSE);
+		if (XPathFuncExpr.getRegexCacheMisses() != misses + 1 || XPathFuncExpr.getRegexCacheHits() != hits + 1) {
+			fail("Regular expression was not reused from cache");
+		}
+		
+		//literal patterns are compiled up front
+		try {
+			XPathExpression xpe = XPathParseTool.parseXPath("regex('5551234', '^[0-9]{7}$')");
+			xpe.compile(null, null);
+			misses = XPathFuncExpr.getRegexCacheMisses();
+			if (!Boolean.TRUE.equals(xpe.eval(null, ec)) || XPathFuncExpr.getRegexCacheMisses() != misses) {
+				fail("Literal regular expression was not precompiled");
+			}
+		} catch (XPathSyntaxException xpse) {
+			fail("Syntax error");
+		}
+	}
+	
 	public void doTests () {
 		EvaluationContext ec = getFunctionHandlers();
 		
@@ -113,7 +238,6 @@ public class XPathEvalTest extends TestCase {
 		testEval("/cant//support", null, null, new XPathUnsupportedException());
 		testEval("/text()", null, null, new XPathUnsupportedException());
 		testEval("/namespace:*", null, null, new XPathUnsupportedException());
-		testEval("/blah[5]", null, null, new XPathUnsupportedException());
 		testEval("(filter-expr)[5]", null, null, new XPathUnsupportedException());
 		testEval("(filter-expr)/path", null, null, new XPathUnsupportedException());
 		/* numeric literals */
@@ -368,6 +492,10 @@ public class XPathEvalTest extends TestCase {
 		testEval("check-types(55, '55', false(), '1999-09-09', get-custom(false()))", null, ec, Boolean.TRUE);
 		testEval("check-types(55, '55', false(), '1999-09-09', get-custom(true()))", null, ec, Boolean.TRUE);
 		testEval("regex('12345','[0-9]+')", null, ec, Boolean.TRUE);
+		testEval("regex('12345','^[a-z]+$')", null, ec, Boolean.FALSE);
+		testRegexCache(ec);
+		testSelections();
+		testPredicates();
 		
 		try {
 			testEval("null-proto()", null, ec, new XPathUnhandledException());
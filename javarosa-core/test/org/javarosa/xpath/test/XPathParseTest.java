@@ -28,6 +28,8 @@ import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.core.util.test.ExternalizableTest;
 import org.javarosa.xpath.XPathParseTool;
 import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.Lexer;
+import org.javarosa.xpath.parser.Parser;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 
 
@@ -280,12 +282,31 @@ public class XPathParseTest extends TestCase {
 		}
 	}
 
+	//the multi-pass AST parser is kept as the reference for ExpressionParser; it must produce the same tree
+	private void testReferenceParser (String expr, String expected) {
+		String result;
+		try {
+			XPathExpression xpe = Parser.parse(Lexer.lex(expr));
+			result = (xpe != null ? xpe.toString() : null);
+		} catch (XPathSyntaxException xse) {
+			result = null;
+		}
+		
+		if (expected == null ? result != null : !expected.equals(result)) {
+			this.fail("Reference XPath parser disagrees." +
+						"\n    expression:[" + expr + "]" +
+						"\n    expected:[" + (expected == null ? "(syntax error)" : expected) + "]" +
+						"\n    result:[" + (result == null ? "(syntax error)" : result) + "]");
+		}
+	}
+
 	public void testParse (String expr, String expected) {
 		if (expected != null) {
 			testXPathValid(expr, expected);
 		} else {
 			testXPathInvalid(expr);
 		}
+		testReferenceParser(expr, expected);
 	}
 }
 